@@ -26,14 +26,357 @@ import java.beans.XMLEncoder;
 import java.io.BufferedOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
 import java.util.Comparator;
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public abstract class AbstractBag<T> implements Bag<T> {
 
   // The order relation is a binary relation that ranks values stored in a Bag against each other.
 
-  Comparator<T> orderRelation;
+  transient Comparator<T> orderRelation;
+
+  // The interner set by the BagFactory, if any. Values are stored and looked up by their canonical objects.
+
+  transient Interner<T> interner;
+
+  // Publishes changes in count to subscribers. Created by the first call to changes, and never persisted.
+
+  private transient volatile BagChangePublisher<T> changePublisher;
+
+  // The count of counts, maintained on every change once created by countHistogram. Never persisted.
+
+  private transient volatile CountHistogram countHistogram;
+
+  // The sum of entryHash over the entries, kept up to date on every change once computed by fingerprint. Never
+  // persisted.
+
+  private transient long fingerprint;
+  private transient volatile boolean fingerprinting;
+
+  // The occupancy of its storage below which a bag trims the storage after a value is removed, or 0 never to.
+
+  private double shrinkThreshold;
+
+  /*
+    Sizes used by estimatedMemoryBytes, as laid out by a 64-bit JVM with compressed references. Objects and arrays
+    are padded to a multiple of 8 bytes. BAG_FIELDS is the size of the fields declared in this class.
+   */
+  static final int OBJECT_HEADER = 12;
+  static final int ARRAY_HEADER = 16;
+  static final int REFERENCE = 4;
+  static final int BAG_FIELDS = 4 * REFERENCE + 2 * 8 + 1;
+  static final int HASH_MAP = 48;
+  static final int HASH_MAP_NODE = 32;
+
+  /*
+    Return the canonical object for a value being stored in the bag.
+   */
+  T intern(T value) {
+    return (interner == null) ? value : interner.intern(value);
+  }
+
+  /*
+    Return the canonical object for a value being looked up, without adding it to the interner.
+   */
+  T canonical(T value) {
+    return (interner == null) ? value : interner.canonical(value);
+  }
+
+  /*
+    Java serialization. Each implementation writes its own state as a count of entries followed by each value
+    and its count as a variable length integer (see writeEntries), rather than its internal object graph. The
+    order relation is written if it is serializable; otherwise, as with bean persistence, a deserialized bag
+    gets the default order relation. The interner is not written.
+   */
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    out.writeObject(isSerializable(orderRelation) ? orderRelation : null);
+  }
+
+  /*
+    A comparator built by Comparator.comparing is marked Serializable but fails to serialize if the function it
+    was given is not, so the only reliable check is to try it.
+   */
+  private static boolean isSerializable(Object object) {
+    if (!(object instanceof Serializable)) return false;
+    try (ObjectOutputStream out = new ObjectOutputStream(OutputStream.nullOutputStream())) {
+      out.writeObject(object);
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    orderRelation = (Comparator<T>) in.readObject();
+    if (orderRelation == null) {
+      orderRelation = Comparator.comparing(Objects::hashCode);
+    }
+  }
+
+  /*
+    Write the number of distinct values, then each value followed by its count.
+   */
+  void writeEntries(ObjectOutputStream out) throws IOException {
+    BagDelta.writeVarInt(out, size());
+    for (Iterator<Map.Entry<T, Integer>> entries = entryIterator(); entries.hasNext(); ) {
+      Map.Entry<T, Integer> entry = entries.next();
+      out.writeObject(entry.getKey());
+      BagDelta.writeVarInt(out, entry.getValue());
+    }
+  }
+
+  public BagChangePublisher<T> changes() {
+    if (changePublisher == null) {
+      synchronized (this) {
+        if (changePublisher == null) {
+          changePublisher = new BagChangePublisher<>();
+        }
+      }
+    }
+    return changePublisher;
+  }
+
+  public CountHistogram countHistogram() {
+    if (countHistogram == null) {
+      synchronized (this) {
+        if (countHistogram == null) {
+          CountHistogram histogram = new CountHistogram();
+          for (Iterator<Map.Entry<T, Integer>> entries = entryIterator(); entries.hasNext(); ) {
+            histogram.update(0, entries.next().getValue());
+          }
+          countHistogram = histogram;
+        }
+      }
+    }
+    return countHistogram;
+  }
+
+  /*
+    Return true if changes in count are being published or added into the fingerprint, which need the changed
+    value, so that an implementation can skip creating the value otherwise.
+   */
+  boolean publishingChanges() {
+    return changePublisher != null || fingerprinting;
+  }
+
+  /*
+    Return true if changes in count are being published, counted in the histogram or added into the fingerprint.
+   */
+  boolean trackingChanges() {
+    return changePublisher != null || countHistogram != null || fingerprinting;
+  }
+
+  /*
+    Called by implementations after the count of a stored value has changed.
+   */
+  void changed(T value, int oldCount, int newCount) {
+    countChanged(oldCount, newCount);
+    if (fingerprinting) {
+      fingerprint += entryHash(value, newCount) - entryHash(value, oldCount);
+    }
+    BagChangePublisher<T> publisher = changePublisher;
+    if (publisher != null) {
+      publisher.record(value, oldCount, newCount);
+    }
+  }
+
+  /*
+    Update the histogram only, for implementations that would have to create the value to call changed.
+   */
+  void countChanged(int oldCount, int newCount) {
+    CountHistogram histogram = countHistogram;
+    if (histogram != null) {
+      histogram.update(oldCount, newCount);
+    }
+  }
+
+  public long fingerprint() {
+    if (!fingerprinting) {
+      synchronized (this) {
+        if (!fingerprinting) {
+          fingerprint = fingerprintOf(entryIterator());
+          fingerprinting = true;
+        }
+      }
+    }
+    return fingerprint;
+  }
+
+  /*
+    Return the fingerprint of the given entries, for bags that cannot keep theirs up to date and compute it on
+    every call instead.
+   */
+  static <T> long fingerprintOf(Iterator<Map.Entry<T, Integer>> entries) {
+    long fingerprint = 0;
+    while (entries.hasNext()) {
+      Map.Entry<T, Integer> entry = entries.next();
+      fingerprint += entryHash(entry.getKey(), entry.getValue());
+    }
+    return fingerprint;
+  }
+
+  /*
+    Hash a value and its count together, or return 0 for a count of 0 so that a value leaving the bag subtracts
+    what it added. The hash code and count are packed into one long, which is then mixed as in MurmurHash3, so that
+    the entries' hashes can be added up into a fingerprint that does not depend on their order.
+   */
+  static long entryHash(Object value, int count) {
+    if (count == 0) return 0;
+    long hash = ((long) Objects.hashCode(value) << 32) | (count & 0xFFFFFFFFL);
+    hash = (hash ^ (hash >>> 33)) * 0xFF51AFD7ED558CCDL;
+    hash = (hash ^ (hash >>> 33)) * 0xC4CEB9FE1A85EC53L;
+    return hash ^ (hash >>> 33);
+  }
+
+  /*
+    Two bags are equal if they hold the same values with the same counts, whatever their implementations. Bags of
+    different sizes or fingerprints are told apart without looking at their contents; otherwise each value of this
+    bag is looked up in the other.
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  public boolean equals(Object o) {
+    if (o == this) return true;
+    if (!(o instanceof Bag)) return false;
+    Bag<T> other = (Bag<T>) o;
+    if (size() != other.size() || fingerprint() != other.fingerprint()) return false;
+    try {
+      for (Iterator<Map.Entry<T, Integer>> entries = entryIterator(); entries.hasNext(); ) {
+        Map.Entry<T, Integer> entry = entries.next();
+        if (other.countOf(entry.getKey()) != entry.getValue()) return false;
+      }
+    } catch (ClassCastException e) {
+      return false;
+    }
+    return true;
+  }
+
+  @Override
+  public int hashCode() {
+    return Long.hashCode(fingerprint());
+  }
+
+  static long objectBytes(long fieldBytes) {
+    return align(OBJECT_HEADER + fieldBytes);
+  }
+
+  static long arrayBytes(int length, int elementBytes) {
+    return align(ARRAY_HEADER + (long) length * elementBytes);
+  }
+
+  private static long align(long bytes) {
+    return (bytes + 7) & ~7L;
+  }
+
+  /*
+    HashMap does not expose the length of its table, so bags holding one follow it with these methods. The table is
+    created with a length of 16 by the first put into an empty map, and doubles whenever the entries exceed three
+    quarters of it. It never shrinks, so trimming means copying the entries into a map sized for them.
+   */
+  static int hashTableCapacity(int entries) {
+    return (entries == 0) ? 0 : grownTableCapacity(0, entries);
+  }
+
+  static int grownTableCapacity(int tableCapacity, int entries) {
+    if (tableCapacity == 0) {
+      tableCapacity = 16;
+    }
+    while (entries > (int) (tableCapacity * 0.75f)) {
+      tableCapacity *= 2;
+    }
+    return tableCapacity;
+  }
+
+  /*
+    Return the smallest table length that holds the given number of entries, or 0 for an empty map, whose table is
+    not created until the first put.
+   */
+  static int trimmedTableCapacity(int entries) {
+    if (entries == 0) return 0;
+    int tableCapacity = 1;
+    while (entries > (int) (tableCapacity * 0.75f)) {
+      tableCapacity *= 2;
+    }
+    return tableCapacity;
+  }
+
+  /*
+    Copy a map into a new one whose table has the length trimmedTableCapacity gives. The entries are put one at a
+    time, as copying the whole map can choose a longer table.
+   */
+  static <K, V> HashMap<K, V> trimmedCopy(HashMap<K, V> map) {
+    int tableCapacity = trimmedTableCapacity(map.size());
+    HashMap<K, V> trimmed = (tableCapacity == 0) ? new HashMap<>() : new HashMap<>(tableCapacity);
+    for (Map.Entry<K, V> entry : map.entrySet()) {
+      trimmed.put(entry.getKey(), entry.getValue());
+    }
+    return trimmed;
+  }
+
+  /*
+    Return the size of a HashMap with the given number of entries and table length, not counting the keys and
+    values.
+   */
+  static long hashMapBytes(int entries, int tableCapacity) {
+    return HASH_MAP + ((tableCapacity == 0) ? 0 : arrayBytes(tableCapacity, REFERENCE))
+        + (long) entries * HASH_MAP_NODE;
+  }
+
+  /*
+    This version counts only the fields declared here, for bags that hold no storage of their own.
+   */
+  public long estimatedMemoryBytes() {
+    return objectBytes(BAG_FIELDS);
+  }
+
+  public void trimToSize() {
+  }
+
+  public double getShrinkThreshold() {
+    return shrinkThreshold;
+  }
+
+  public void setShrinkThreshold(double shrinkThreshold) {
+    if (shrinkThreshold < 0 || shrinkThreshold >= 1) {
+      throw new IllegalArgumentException("The shrink threshold must be at least 0 and less than 1");
+    }
+    this.shrinkThreshold = shrinkThreshold;
+  }
+
+  /*
+    Return the fraction of the bag's storage in use, which implementations with spare capacity override. A bag
+    whose storage is already at its smallest should return 1.
+   */
+  double occupancy() {
+    return 1.0;
+  }
+
+  /*
+    Called by implementations after a value has been removed, to trim the storage if the shrink threshold is set
+    and the occupancy has fallen below it.
+   */
+  void valueRemoved() {
+    if (shrinkThreshold > 0 && occupancy() < shrinkThreshold) {
+      trimToSize();
+    }
+  }
 
   public Bag<T> createMergedAllOccurrences(Bag<T> b) throws BagException {
     Bag<T> result = BagFactory.getInstance().getBag(Comparator.naturalOrder());
@@ -61,6 +404,50 @@ public abstract class AbstractBag<T> implements Bag<T> {
     return result;
   }
 
+  /*
+    Return an iterator over the values in the bag paired with their counts. This version calls countOf for each
+    value, and implementations override it to read their storage directly.
+   */
+  Iterator<Map.Entry<T, Integer>> entryIterator() {
+    Iterator<T> values = iterator();
+    return new Iterator<Map.Entry<T, Integer>>() {
+      public boolean hasNext() {
+        return values.hasNext();
+      }
+
+      public Map.Entry<T, Integer> next() {
+        T value = values.next();
+        return new AbstractMap.SimpleImmutableEntry<>(value, countOf(value));
+      }
+    };
+  }
+
+  public Map<T, Integer> asMap() {
+    return new BagMap<>(this);
+  }
+
+  public Collection<T> asCollection() {
+    return new BagCollection<>(this);
+  }
+
+  public Stream<Map.Entry<T, Integer>> entryStream() {
+    Spliterator<Map.Entry<T, Integer>> spliterator = Spliterators.spliterator(entryIterator(), size(),
+        Spliterator.DISTINCT | Spliterator.NONNULL);
+    return StreamSupport.stream(spliterator, false);
+  }
+
+  public BagView<T> mergedView(Bag<T> b) {
+    return new BagView<>(this, b, null, false, orderRelation);
+  }
+
+  public BagView<T> uniqueView(Bag<T> b) {
+    return new BagView<>(this, b, null, true, orderRelation);
+  }
+
+  public BagView<T> filteredView(Predicate<? super T> predicate) {
+    return new BagView<>(this, null, predicate, false, orderRelation);
+  }
+
   @Override
   public String toString() {
     // The StringBuilder class is used for efficient append operations in a loop
@@ -98,16 +485,119 @@ public abstract class AbstractBag<T> implements Bag<T> {
     }
 
     for (T value: bag) {
-      int i = 0;
-      while (i < bag.countOf(value) && result.contains(value)) {
-        result.remove(value);
-        i++;
-      }
+      result.removeWithOccurrences(value, bag.countOf(value));
     }
 
     return result;
   }
 
+  /*
+    Read the counts of older into a map once, then walk this bag's entries matching each value in the map, so the
+    diff is linear in the sizes of the two bags whatever their lookup costs. Values left in the map were removed.
+   */
+  public BagDelta<T> diff(Bag<T> older) {
+    BagDelta<T> delta = new BagDelta<>();
+    HashMap<T, Integer> olderCounts = new HashMap<>();
+    older.entryStream().forEach(entry -> olderCounts.put(entry.getKey(), entry.getValue()));
+    for (Iterator<Map.Entry<T, Integer>> entries = entryIterator(); entries.hasNext(); ) {
+      Map.Entry<T, Integer> entry = entries.next();
+      Integer olderCount = olderCounts.remove(entry.getKey());
+      delta.add(entry.getKey(), entry.getValue() - ((olderCount == null) ? 0 : olderCount));
+    }
+    for (Map.Entry<T, Integer> entry : olderCounts.entrySet()) {
+      delta.add(entry.getKey(), -entry.getValue());
+    }
+    return delta;
+  }
+
+  /*
+    The delta is applied as a batch, so the bag is left unchanged if it does not have room for the values added.
+   */
+  public void applyDelta(BagDelta<T> delta) throws BagException {
+    BagBatch<T> batch = new BagBatch<>();
+    for (int i = 0; i < delta.size(); i++) {
+      int change = delta.getChange(i);
+      if (change > 0) {
+        batch.add(delta.getValue(i), change);
+      } else {
+        batch.remove(delta.getValue(i), -change);
+      }
+    }
+    applyBatch(batch);
+  }
+
+  /*
+    Return true if contains, countOf, size and iteration never change the bag, so that they can run at the same
+    time as each other, and be read optimistically by ReadMostlyBag.
+   */
+  boolean readOnlyLookups() {
+    return false;
+  }
+
+  /*
+    Apply a batch in three steps, each of which an implementation can override: find the current count of every
+    value in the batch, check that the bag has room for the values the batch adds, and only then change the counts.
+   */
+  public void applyBatch(BagBatch<T> batch) throws BagException {
+    BagBatch.Sorted<T> sorted = batch.sortedBy(orderRelation);
+    if (sorted.size == 0) return;
+    int[] before = countsOf(sorted);
+    checkCapacity(sorted, before);
+    applySorted(sorted, before);
+  }
+
+  /*
+    Return the current count of each value of a sorted batch. This version calls countOf for each value, which
+    suits bags with fast lookups; bags that scan for a value override it to look up every stored value in the batch
+    instead, in one pass over their storage.
+   */
+  int[] countsOf(BagBatch.Sorted<T> batch) {
+    int[] counts = new int[batch.size];
+    for (int i = 0; i < batch.size; i++) {
+      counts[i] = countOf(batch.valueAt(i));
+    }
+    return counts;
+  }
+
+  /*
+    Throw BagException if applying a batch to the bag, whose values currently have the counts given, would leave
+    more distinct values than the bag can hold.
+   */
+  void checkCapacity(BagBatch.Sorted<T> batch, int[] before) throws BagException {
+    int size = size();
+    for (int i = 0; i < batch.size; i++) {
+      if (before[i] == 0 && batch.changes[i] > 0) size++;
+      if (before[i] > 0 && before[i] + batch.changes[i] <= 0) size--;
+    }
+    if (size > capacityLimit()) {
+      throw new BagException("Bag is full");
+    }
+  }
+
+  /*
+    Return the number of distinct values the bag can hold, for bags that throw BagException when full.
+   */
+  int capacityLimit() {
+    return Integer.MAX_VALUE;
+  }
+
+  /*
+    Change the counts of the values of a checked batch. This version removes first and then adds, one value at a
+    time, so the bag never holds more values than it will at the end.
+   */
+  void applySorted(BagBatch.Sorted<T> batch, int[] before) throws BagException {
+    for (int i = 0; i < batch.size; i++) {
+      if (batch.changes[i] < 0) {
+        removeWithOccurrences(batch.valueAt(i), -batch.changes[i]);
+      }
+    }
+    for (int i = 0; i < batch.size; i++) {
+      if (batch.changes[i] > 0) {
+        addWithOccurrences(batch.valueAt(i), batch.changes[i]);
+      }
+    }
+  }
+
   public void persist(String path) throws IOException {
     XMLEncoder xmlEncoder = new XMLEncoder(new BufferedOutputStream(new FileOutputStream(path)));
     xmlEncoder.writeObject(this);
@@ -1,56 +1,44 @@
 package uk.ac.ucl.bag;
 
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.AbstractMap;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Iterator;
-import java.util.ArrayList;
+import java.util.Map;
 import java.util.Objects;
 
 /*
-   This class implements Bags using an ArrayList as the internal data structure.
+   This class implements Bags using a pair of parallel arrays as the internal data structure. The values are held
+   in an Object array and their occurrence counts in an int array at the same index, so a lookup scans a single
+   contiguous array and no per-value wrapper object is allocated.
    It is implemented as a JavaBeans component @see AbstractBag.java
+
+   By default values are kept in the order they were added, and removing a value moves the last value into the
+   freed slot rather than shifting the rest of the array down. A sorted ArrayBag instead keeps the values ordered
+   by the order relation, so lookups can use binary search at the cost of shifting on insertion and removal.
 */
 public class ArrayBag<T> extends AbstractBag<T> {
-  /*
-     Objects of class Element store a value and its occurrence count. It is implemented as a JavaBeans component
-     @see AbstractBag.java. Note that the class is static (nested top level class) and does not have access to the scope
-     of class ArrayBag even though it is nested inside the class. This means that the type variable
-     T is not in scope, so class Element has to be declared using a different type variable E.
-  */
-  public static class Element<E> {
-    public int count;
-    public E value;
-    public Element(int count, E value) {
-      this.count = count;
-      this.value = value;
-    }
-
-    public Element() {}
-
-    public int getCount() {
-      return count;
-    }
-
-    public void setCount(int count) {
-      this.count = count;
-    }
-
-    public E getValue() {
-      return value;
-    }
-
-    public void setValue(E value) {
-      this.value = value;
-    }
-  }
+  private static final int INITIAL_CAPACITY = 8;
 
   private int maxSize;
-  private ArrayList<Element<T>> contents;
+  private transient Object[] values;
+  private transient int[] counts;
+  private transient int size;
+  private final boolean sorted;
 
   public ArrayBag() throws BagException {
     this(MAX_SIZE, Comparator.comparing(Objects::hashCode));
   }
 
   public ArrayBag(int maxSize, Comparator<T> orderRelation) throws BagException {
+    this(maxSize, orderRelation, false);
+  }
+
+  public ArrayBag(int maxSize, Comparator<T> orderRelation, boolean sorted) throws BagException {
     if (maxSize > MAX_SIZE) {
       throw new BagException("Attempting to create a Bag with size greater than maximum");
     }
@@ -58,7 +46,10 @@ public class ArrayBag<T> extends AbstractBag<T> {
       throw new BagException("Attempting to create a Bag with size less than 1");
     }
     this.maxSize = maxSize;
-    contents = new ArrayList<>();
+    values = new Object[Math.min(INITIAL_CAPACITY, maxSize)];
+    counts = new int[values.length];
+    size = 0;
+    this.sorted = sorted;
     this.orderRelation = orderRelation;
   }
 
@@ -70,79 +61,354 @@ public class ArrayBag<T> extends AbstractBag<T> {
     this.maxSize = maxSize;
   }
 
-  public ArrayList<Element<T>> getContents() {
-    return contents;
+  public Object[] getValues() {
+    return values;
   }
 
-  public void setContents(ArrayList<Element<T>> contents) {
-    this.contents = contents;
+  public void setValues(Object[] values) {
+    this.values = values;
   }
 
-  public void add(T value) throws BagException {
-    for (Element<T> element : contents) {
-      if (orderRelation.compare(element.value, value) == 0) {
-        element.count++;
-        return;
+  public int[] getCounts() {
+    return counts;
+  }
+
+  public void setCounts(int[] counts) {
+    this.counts = counts;
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  public void setSize(int size) {
+    this.size = size;
+  }
+
+  /*
+    The sorted flag is deliberately read-only so that it is not written out by bean persistence. The order
+    relation is not persisted either, so a loaded bag cannot rely on its values being sorted by the comparator
+    it is given and always comes back as an unsorted bag.
+   */
+  public boolean isSorted() {
+    return sorted;
+  }
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    writeEntries(out);
+  }
+
+  /*
+    Read the entries written by writeEntries back into the arrays. A sorted bag whose order relation could not be
+    serialized is re-sorted by the default order relation it now has.
+   */
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    int count = BagDelta.readVarInt(in);
+    if (count > maxSize) {
+      throw new InvalidObjectException("Bag holds more values than its maximum size");
+    }
+    values = new Object[Math.max(count, Math.min(INITIAL_CAPACITY, maxSize))];
+    counts = new int[values.length];
+    for (int i = 0; i < count; i++) {
+      values[i] = in.readObject();
+      counts[i] = BagDelta.readVarInt(in);
+    }
+    size = count;
+    if (sorted) {
+      sortValues();
+    }
+  }
+
+  private void sortValues() {
+    Integer[] order = new Integer[size];
+    for (int i = 0; i < size; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, (i, j) -> orderRelation.compare(valueAt(i), valueAt(j)));
+    Object[] sortedValues = new Object[values.length];
+    int[] sortedCounts = new int[counts.length];
+    for (int i = 0; i < size; i++) {
+      sortedValues[i] = values[order[i]];
+      sortedCounts[i] = counts[order[i]];
+    }
+    values = sortedValues;
+    counts = sortedCounts;
+  }
+
+  @SuppressWarnings("unchecked")
+  private T valueAt(int index) {
+    return (T) values[index];
+  }
+
+  /*
+    Return the index of value, or if it is not present, (-(insertion point) - 1) as Arrays.binarySearch does.
+    For an unsorted bag the insertion point is always the end of the array. A stored value that is the same
+    object as the one looked up matches without calling the order relation.
+   */
+  private int indexOf(T value) {
+    value = canonical(value);
+    if (sorted) {
+      int low = 0;
+      int high = size - 1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        int cmp = (values[mid] == value) ? 0 : orderRelation.compare(valueAt(mid), value);
+        if (cmp < 0) {
+          low = mid + 1;
+        } else if (cmp > 0) {
+          high = mid - 1;
+        } else {
+          return mid;
+        }
+      }
+      return -(low + 1);
+    }
+    for (int i = 0 ; i < size ; i++) {
+      if (values[i] == value || orderRelation.compare(valueAt(i), value) == 0) {
+        return i;
       }
     }
-    if (contents.size() < maxSize) {
-      contents.add(new Element<>(1,value));
+    return -(size + 1);
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity > values.length) {
+      int newCapacity = Math.min(Math.max(values.length * 2, capacity), maxSize);
+      values = Arrays.copyOf(values, newCapacity);
+      counts = Arrays.copyOf(counts, newCapacity);
+    }
+  }
+
+  private void insertAt(int index, T value, int count) {
+    ensureCapacity(size + 1);
+    if (index < size) {
+      System.arraycopy(values, index, values, index + 1, size - index);
+      System.arraycopy(counts, index, counts, index + 1, size - index);
+    }
+    values[index] = value;
+    counts[index] = count;
+    size++;
+  }
+
+  private void removeAt(int index) {
+    int last = size - 1;
+    if (sorted) {
+      System.arraycopy(values, index + 1, values, index, last - index);
+      System.arraycopy(counts, index + 1, counts, index, last - index);
     } else {
-      throw new BagException("Bag is full");
+      values[index] = values[last];
+      counts[index] = counts[last];
     }
+    values[last] = null;
+    counts[last] = 0;
+    size = last;
+  }
+
+  public void add(T value) throws BagException {
+    addWithOccurrences(value, 1);
   }
 
   public void addWithOccurrences(T value, int occurrences) throws BagException {
-    for (int i = 0 ; i < occurrences ; i++) {
-      add(value);
+    if (occurrences < 1) return;
+    int index = indexOf(value);
+    if (index >= 0) {
+      counts[index] += occurrences;
+      changed(valueAt(index), counts[index] - occurrences, counts[index]);
+    } else if (size < maxSize) {
+      index = -(index + 1);
+      insertAt(index, intern(value), occurrences);
+      changed(valueAt(index), 0, occurrences);
+    } else {
+      throw new BagException("Bag is full");
     }
   }
 
   public boolean contains(T value) {
-    for (Element<T> element : contents) {
-      if (orderRelation.compare(element.value, value) == 0) {
-        return true;
+    return indexOf(value) >= 0;
+  }
+
+  public int countOf(T value) {
+    int index = indexOf(value);
+    return (index >= 0) ? counts[index] : 0;
+  }
+
+  public void remove(T value) {
+    removeWithOccurrences(value, 1);
+  }
+
+  public void removeWithOccurrences(T value, int occurrences) {
+    if (occurrences < 1) return;
+    int index = indexOf(value);
+    if (index >= 0) {
+      T stored = valueAt(index);
+      int oldCount = counts[index];
+      counts[index] -= occurrences;
+      if (counts[index] <= 0) {
+        removeAt(index);
+        changed(stored, oldCount, 0);
+        valueRemoved();
+      } else {
+        changed(stored, oldCount, counts[index]);
       }
     }
-    return false;
   }
 
-  public int countOf(T value) {
-    for (Element<T> element : contents) {
-      if (orderRelation.compare(element.value, value) == 0) {
-        return element.count;
+  /*
+    Remove every value from the bag, keeping the current capacity of the arrays.
+   */
+  public void clear() {
+    if (trackingChanges()) {
+      for (int i = 0; i < size; i++) {
+        changed(valueAt(i), counts[i], 0);
       }
     }
-    return 0; 
+    Arrays.fill(values, 0, size, null);
+    Arrays.fill(counts, 0, size, 0);
+    size = 0;
   }
 
-  public void remove(T value) {
-    for (int i = 0 ; i < contents.size() ; i++) {
-      Element<T> element = contents.get(i);
-      if (orderRelation.compare(element.value, value) == 0) {
-        element.count--;
-        if (element.count == 0) {
-          contents.remove(element);
-          return;
+  @Override
+  boolean readOnlyLookups() {
+    return true;
+  }
+
+  @Override
+  int capacityLimit() {
+    return maxSize;
+  }
+
+  /*
+    An unsorted bag looks up each of its values in the sorted batch, rather than scanning the array for each value
+    of the batch. A sorted bag is searched for each value of the batch instead.
+   */
+  @Override
+  int[] countsOf(BagBatch.Sorted<T> batch) {
+    if (sorted) return super.countsOf(batch);
+    int[] before = new int[batch.size];
+    for (int i = 0; i < size; i++) {
+      int index = batch.indexOf(valueAt(i));
+      if (index >= 0) {
+        before[index] = counts[i];
+      }
+    }
+    return before;
+  }
+
+  /*
+    Update the counts of the stored values in one pass, closing up the slots of values whose count reaches zero
+    without changing the order of the rest, and then add the new values: at the end of an unsorted bag, or merged
+    into a sorted bag from the end of the array, as the batch is in the same order.
+   */
+  @Override
+  void applySorted(BagBatch.Sorted<T> batch, int[] before) {
+    int kept = 0;
+    for (int i = 0; i < size; i++) {
+      T value = valueAt(i);
+      int count = counts[i];
+      int index = batch.indexOf(value);
+      if (index >= 0) {
+        int newCount = Math.max(0, count + batch.changes[index]);
+        changed(value, count, newCount);
+        count = newCount;
+      }
+      if (count > 0) {
+        values[kept] = value;
+        counts[kept] = count;
+        kept++;
+      }
+    }
+    boolean removed = kept < size;
+    Arrays.fill(values, kept, size, null);
+    Arrays.fill(counts, kept, size, 0);
+    size = kept;
+
+    int added = 0;
+    for (int i = 0; i < batch.size; i++) {
+      if (before[i] == 0 && batch.changes[i] > 0) added++;
+    }
+    if (added > 0) {
+      ensureCapacity(size + added);
+      if (sorted) {
+        int target = size + added;
+        int source = size - 1;
+        for (int i = batch.size - 1; i >= 0; i--) {
+          if (before[i] != 0 || batch.changes[i] <= 0) continue;
+          T value = batch.valueAt(i);
+          while (source >= 0 && orderRelation.compare(valueAt(source), value) > 0) {
+            target--;
+            values[target] = values[source];
+            counts[target] = counts[source];
+            source--;
+          }
+          target--;
+          values[target] = intern(value);
+          counts[target] = batch.changes[i];
+        }
+      } else {
+        int target = size;
+        for (int i = 0; i < batch.size; i++) {
+          if (before[i] != 0 || batch.changes[i] <= 0) continue;
+          values[target] = intern(batch.valueAt(i));
+          counts[target] = batch.changes[i];
+          target++;
+        }
+      }
+      size += added;
+      for (int i = 0; i < batch.size; i++) {
+        if (before[i] == 0 && batch.changes[i] > 0) {
+          changed(canonical(batch.valueAt(i)), 0, batch.changes[i]);
         }
       }
     }
+    if (removed) {
+      valueRemoved();
+    }
+  }
+
+  /*
+    The object's fields are maxSize, values, counts, size and sorted.
+   */
+  @Override
+  public long estimatedMemoryBytes() {
+    return objectBytes(BAG_FIELDS + 4 * 4 + 1) + arrayBytes(values.length, REFERENCE)
+        + arrayBytes(counts.length, 4);
+  }
+
+  /*
+    Shrink the arrays to the number of values held. They grow again by doubling as values are added.
+   */
+  @Override
+  public void trimToSize() {
+    if (values.length > size) {
+      values = Arrays.copyOf(values, size);
+      counts = Arrays.copyOf(counts, size);
+    }
+  }
+
+  /*
+    Arrays no longer than the initial capacity are never worth shrinking.
+   */
+  @Override
+  double occupancy() {
+    return (values.length <= INITIAL_CAPACITY) ? 1.0 : (double) size / values.length;
   }
 
   public boolean isEmpty()
   {
-    return contents.size() == 0;
+    return size == 0;
   }
 
   public int size()
   {
-    return contents.size();
+    return size;
   }
 
   /* This class implements the iterator interface to allow the unique values in ArrayBag objects to be iterated through.
-   * The iterator returns each unique value without any copies (i.e., one value for each element in the
-   * ArrayList data structure). Notice that this class is not declared static and is a nested inner class, which
-   * does have access to the scope of the ArrayBag class, allowing it to access the ArrayList data structure
+   * The iterator returns each unique value without any copies (i.e., one value for each used slot in the
+   * values array). Notice that this class is not declared static and is a nested inner class, which
+   * does have access to the scope of the ArrayBag class, allowing it to access the arrays
    * directly. The use of the static keyword when declaring nested classes makes an important difference.
    * The class is still private, though, and cannot be accessed outside the scope of the ArrayBag class.
    * However, a reference to an object of the class can be returned as a reference of type Iterator.
@@ -151,13 +417,12 @@ public class ArrayBag<T> extends AbstractBag<T> {
     private int index = 0;
 
     public boolean hasNext() {
-      if (index < contents.size()) return true;
-      return false;
+      return index < size;
     }
 
     public T next()
     {
-      return contents.get(index++).value;
+      return valueAt(index++);
     }
   }
 
@@ -177,24 +442,23 @@ public class ArrayBag<T> extends AbstractBag<T> {
   private class ArrayBagIterator implements Iterator<T> {
     private int index = 0;
     private int count = 0;
-    
+
     public boolean hasNext() {
-      if (index < contents.size()) {
-        if (count < contents.get(index).count) return true;
-        if ((count == contents.get(index).count) && ((index + 1) < contents.size())) return true;
+      if (index < size) {
+        if (count < counts[index]) return true;
+        if ((count == counts[index]) && ((index + 1) < size)) return true;
       }
       return false;
     }
 
     public T next() {
-      if (count < contents.get(index).count) {
-        T value = contents.get(index).value;
+      if (count < counts[index]) {
         count++;
-        return value;
+        return valueAt(index);
       }
       count = 1;
       index++;
-      return contents.get(index).value;
+      return valueAt(index);
     }
   }
 
@@ -202,4 +466,24 @@ public class ArrayBag<T> extends AbstractBag<T> {
   {
     return new ArrayBagIterator();
   }
+
+  /*
+    Return the values and counts straight from the parallel arrays.
+   */
+  @Override
+  Iterator<Map.Entry<T, Integer>> entryIterator() {
+    return new Iterator<Map.Entry<T, Integer>>() {
+      private int index = 0;
+
+      public boolean hasNext() {
+        return index < size;
+      }
+
+      public Map.Entry<T, Integer> next() {
+        Map.Entry<T, Integer> entry = new AbstractMap.SimpleImmutableEntry<>(valueAt(index), counts[index]);
+        index++;
+        return entry;
+      }
+    };
+  }
 }
@@ -2,7 +2,14 @@ package uk.ac.ucl.bag;
 
 import java.beans.XMLDecoder;
 import java.io.*;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Predicate;
+import java.util.stream.Collector;
+import java.util.stream.Stream;
 
 /**
  * A Bag is a data structure that can hold a collection of values (really object references of course), along with
@@ -45,6 +52,51 @@ public interface Bag<T> extends Iterable<T>, Serializable {
     return object;
   }
 
+  /**
+   * Return a Collector that adds the elements of a stream to a new bag created by the BagFactory. The partial bags
+   * of a parallel stream are merged by adding the entries of the smaller one to the larger.
+   * A BagException thrown because the bag is full is rethrown as an IllegalStateException.
+   * @param orderRelation The order relation of the bags created.
+   * @return The collector.
+   */
+  static <T> Collector<T, ?, Bag<T>> toBag(Comparator<T> orderRelation) {
+    return Collector.of(
+        () -> newBag(orderRelation),
+        (bag, value) -> addTo(bag, value, 1),
+        (left, right) -> {
+          Bag<T> larger = (left.size() >= right.size()) ? left : right;
+          Bag<T> smaller = (larger == left) ? right : left;
+          smaller.entryStream().forEach(entry -> addTo(larger, entry.getKey(), entry.getValue()));
+          return larger;
+        },
+        Collector.Characteristics.UNORDERED, Collector.Characteristics.IDENTITY_FINISH);
+  }
+
+  /**
+   * Return a Collector that adds the elements of a stream to a new bag, using the default order relation.
+   * @return The collector.
+   */
+  static <T> Collector<T, ?, Bag<T>> toBag() {
+    return toBag(Comparator.comparing(Objects::hashCode));
+  }
+
+  private static <T> Bag<T> newBag(Comparator<T> orderRelation) {
+    try {
+      BagFactory<T> factory = BagFactory.getInstance();
+      return factory.getBag(orderRelation);
+    } catch (BagException e) {
+      throw new IllegalStateException(e.getMessage(), e);
+    }
+  }
+
+  private static <T> void addTo(Bag<T> bag, T value, int occurrences) {
+    try {
+      bag.addWithOccurrences(value, occurrences);
+    } catch (BagException e) {
+      throw new IllegalStateException(e.getMessage(), e);
+    }
+  }
+
    /**
     * Add a value to a bag.
     * @param value The value to add.
@@ -84,6 +136,14 @@ public interface Bag<T> extends Iterable<T>, Serializable {
    */
   void remove(T value);
 
+  /**
+   * Remove the given number of occurrences of value from the bag. If the count of the value
+   * drops to zero or below, remove the value as well. Do nothing if the value is not in the bag.
+   * @param value The value to remove.
+   * @param occurrences The number of occurrences to remove.
+   */
+  void removeWithOccurrences(T value, int occurrences);
+
   /**
    * Determine the number of distinct values stored in the bag. The number of
    * occurrences of each value is not taken into account.
@@ -111,6 +171,76 @@ public interface Bag<T> extends Iterable<T>, Serializable {
 
   Bag<T> subtract(Bag<T> bag) throws BagException;
 
+  /**
+   * Compute the changes that turn an older version of this bag into this bag. Only values whose counts differ
+   * are recorded, so the delta is proportional to the number of changes rather than the size of the bag.
+   * @param older The older version of the bag.
+   * @return The delta, with a positive change for values added and a negative change for values removed.
+   */
+  BagDelta<T> diff(Bag<T> older);
+
+  /**
+   * Apply the changes recorded in a delta to this bag.
+   * @param delta The delta to apply, usually computed by diff against a copy of this bag.
+   * @throws BagException If the bag does not have room for the values the delta adds, in which case it is left
+   * unchanged.
+   */
+  void applyDelta(BagDelta<T> delta) throws BagException;
+
+  /**
+   * Apply all the adds and removes recorded in a batch as one operation, looking up the values of the batch
+   * together rather than one at a time. Either every change is made or, if the bag would become full, none is.
+   * @param batch The batch to apply.
+   * @throws BagException If the bag cannot hold the values the batch adds, in which case it is left unchanged.
+   */
+  void applyBatch(BagBatch<T> batch) throws BagException;
+
+  /**
+   * Return the publisher of the changes in count made to this bag by adding and removing values. The publisher is
+   * created by the first call, and changes are only collected while it has subscribers.
+   * @return The publisher, the same object on every call.
+   */
+  BagChangePublisher<T> changes();
+
+  /**
+   * Return the count of counts of this bag, giving the number of values that occur k times. The histogram is built
+   * by the first call and then kept up to date as values are added and removed.
+   * @return The histogram, the same object on every call.
+   */
+  CountHistogram countHistogram();
+
+  /**
+   * Return a 64-bit hash of the contents of the bag, combining a hash of each value and its count so that it does
+   * not depend on the order of the values. Bags with the same contents have the same fingerprint, whatever their
+   * implementation, as long as equal values have equal hash codes. The fingerprint is computed by the first call
+   * and then kept up to date as values are added and removed, so later calls take constant time. It is the basis of
+   * equals and hashCode, which compare the contents of bags.
+   * @return The fingerprint.
+   */
+  long fingerprint();
+
+  /**
+   * Estimate the heap memory used by the bag's own storage, including spare capacity but not the values stored,
+   * which may be shared with other objects, nor the change publisher or count histogram.
+   * @return The estimated size in bytes.
+   */
+  long estimatedMemoryBytes();
+
+  /**
+   * Release the spare capacity of the bag's storage, so that it holds no more than its current contents need.
+   * The contents of the bag are unchanged.
+   */
+  void trimToSize();
+
+  /**
+   * Make the bag trim its storage automatically, as trimToSize does, when a value is removed and the fraction of
+   * the storage in use falls below the threshold. A threshold well below one half avoids trimming storage that
+   * will soon grow again.
+   * @param shrinkThreshold The occupancy below which the storage is trimmed, or 0 to never trim automatically.
+   * @throws IllegalArgumentException If the threshold is negative or not less than 1.
+   */
+  void setShrinkThreshold(double shrinkThreshold);
+
   /**
    * Writes a textual representation of the Bag object to a file
    * @param file The path of the file that stores the object state.
@@ -136,6 +266,49 @@ public interface Bag<T> extends Iterable<T>, Serializable {
    */
   Bag<T> createMergedAllOccurrences(Bag<T> b) throws BagException;
 
+  /**
+   * Return a read-only view of the contents of this and the argument Bag, with the count of each value being the
+   * combined counts. Nothing is copied: the view asks both bags on each call, and reflects later changes to them.
+   * @param b The bag to add.
+   * @return The view.
+   */
+  BagView<T> mergedView(Bag<T> b);
+
+  /**
+   * Return a read-only view of the unique contents of this and the argument Bag, with each value having a count
+   * of 1. Nothing is copied.
+   * @param b The bag to add.
+   * @return The view.
+   */
+  BagView<T> uniqueView(Bag<T> b);
+
+  /**
+   * Return a read-only view of the values of this bag accepted by a predicate, with their counts. Nothing is
+   * copied.
+   * @param predicate The predicate values must satisfy to be in the view.
+   * @return The view.
+   */
+  BagView<T> filteredView(Predicate<? super T> predicate);
+
+  /**
+   * Return a live Map view of the bag, mapping each value to its count. Changes to the bag show through the map,
+   * and putting a count in the map adds or removes occurrences of the value.
+   * @return The map.
+   */
+  Map<T, Integer> asMap();
+
+  /**
+   * Return a live Collection view of the bag holding every occurrence of every value.
+   * @return The collection.
+   */
+  Collection<T> asCollection();
+
+  /**
+   * Return a stream of the values in the bag paired with their counts, read directly from the bag's storage.
+   * @return The stream of entries.
+   */
+  Stream<Map.Entry<T, Integer>> entryStream();
+
   /**
    * Create an iterator that will iterate through every value and every occurrence of each value.
    * The default iterator method (declared by Iterator) will iterate through each value only without
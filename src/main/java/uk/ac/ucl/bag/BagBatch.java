@@ -0,0 +1,173 @@
+package uk.ac.ucl.bag;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * A BagBatch collects adds and removes to be applied to a bag together with Bag.applyBatch, which looks up every
+ * value in the batch with a single pass over the bag's storage and either applies all the changes or, if the bag
+ * would become full, none of them.
+ *
+ * The changes to each value are combined into one net change as they are recorded, so a batch holds a value at
+ * most once. As with removeWithOccurrences, a net removal of more occurrences than the bag holds removes the value.
+ * Values are combined here by equals and hashCode, and again by the order relation of the bag the batch is applied
+ * to.
+ *
+ * @param <T> The type of the values in the batch
+ */
+public class BagBatch<T> {
+  private final ArrayList<T> values = new ArrayList<>();
+  private int[] changes = new int[8];
+  private final HashMap<T, Integer> indexes = new HashMap<>();
+
+  /**
+   * Record an occurrence of a value to add.
+   * @param value The value.
+   * @return This batch.
+   */
+  public BagBatch<T> add(T value) {
+    return add(value, 1);
+  }
+
+  /**
+   * Record occurrences of a value to add. A number less than 1 is ignored.
+   * @param value The value.
+   * @param occurrences The number of occurrences.
+   * @return This batch.
+   */
+  public BagBatch<T> add(T value, int occurrences) {
+    if (occurrences > 0) {
+      change(value, occurrences);
+    }
+    return this;
+  }
+
+  /**
+   * Record an occurrence of a value to remove.
+   * @param value The value.
+   * @return This batch.
+   */
+  public BagBatch<T> remove(T value) {
+    return remove(value, 1);
+  }
+
+  /**
+   * Record occurrences of a value to remove. A number less than 1 is ignored.
+   * @param value The value.
+   * @param occurrences The number of occurrences.
+   * @return This batch.
+   */
+  public BagBatch<T> remove(T value, int occurrences) {
+    if (occurrences > 0) {
+      change(value, -occurrences);
+    }
+    return this;
+  }
+
+  private void change(T value, int change) {
+    Integer index = indexes.get(value);
+    if (index != null) {
+      changes[index] += change;
+      return;
+    }
+    if (values.size() == changes.length) {
+      changes = Arrays.copyOf(changes, changes.length * 2);
+    }
+    indexes.put(value, values.size());
+    changes[values.size()] = change;
+    values.add(value);
+  }
+
+  /**
+   * @return The number of distinct values in the batch.
+   */
+  public int size() {
+    return values.size();
+  }
+
+  public boolean isEmpty() {
+    return values.isEmpty();
+  }
+
+  public T getValue(int index) {
+    return values.get(index);
+  }
+
+  /**
+   * @param index The index of the value.
+   * @return The net change in the count of the value, negative for removals.
+   */
+  public int getChange(int index) {
+    return changes[index];
+  }
+
+  /*
+    The batch sorted by the order relation of the bag it is applied to, with values that compare equal combined
+    and values whose net change is zero left out, so that a bag can find a value's change by binary search.
+   */
+  static class Sorted<T> {
+    final Comparator<T> orderRelation;
+    final Object[] values;
+    final int[] changes;
+    final int size;
+
+    Sorted(Comparator<T> orderRelation, Object[] values, int[] changes, int size) {
+      this.orderRelation = orderRelation;
+      this.values = values;
+      this.changes = changes;
+      this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    T valueAt(int index) {
+      return (T) values[index];
+    }
+
+    /*
+      Return the index of value, or -1 if it is not in the batch.
+     */
+    int indexOf(T value) {
+      int low = 0;
+      int high = size - 1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        int cmp = (values[mid] == value) ? 0 : orderRelation.compare(valueAt(mid), value);
+        if (cmp < 0) {
+          low = mid + 1;
+        } else if (cmp > 0) {
+          high = mid - 1;
+        } else {
+          return mid;
+        }
+      }
+      return -1;
+    }
+  }
+
+  Sorted<T> sortedBy(Comparator<T> orderRelation) {
+    Integer[] order = new Integer[values.size()];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, (i, j) -> orderRelation.compare(values.get(i), values.get(j)));
+    Object[] sortedValues = new Object[order.length];
+    int[] sortedChanges = new int[order.length];
+    int size = 0;
+    for (int i = 0; i < order.length; ) {
+      T value = values.get(order[i]);
+      int change = 0;
+      while (i < order.length && orderRelation.compare(values.get(order[i]), value) == 0) {
+        change += changes[order[i]];
+        i++;
+      }
+      if (change != 0) {
+        sortedValues[size] = value;
+        sortedChanges[size] = change;
+        size++;
+      }
+    }
+    return new Sorted<>(orderRelation, sortedValues, sortedChanges, size);
+  }
+}
@@ -0,0 +1,36 @@
+package uk.ac.ucl.bag;
+
+/**
+ * A BagChange records that the count of a value in a bag changed, as published by Bag.changes. A count of zero
+ * means the value is not in the bag.
+ *
+ * @param <T> The type of the value
+ */
+public class BagChange<T> {
+  private final T value;
+  private final int oldCount;
+  private final int newCount;
+
+  public BagChange(T value, int oldCount, int newCount) {
+    this.value = value;
+    this.oldCount = oldCount;
+    this.newCount = newCount;
+  }
+
+  public T getValue() {
+    return value;
+  }
+
+  public int getOldCount() {
+    return oldCount;
+  }
+
+  public int getNewCount() {
+    return newCount;
+  }
+
+  @Override
+  public String toString() {
+    return value + ": " + oldCount + " -> " + newCount;
+  }
+}
@@ -0,0 +1,165 @@
+package uk.ac.ucl.bag;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A BagChangePublisher publishes the changes in count made to a bag, in batches, to any number of
+ * java.util.concurrent.Flow subscribers. Each bag creates its publisher the first time Bag.changes is called.
+ *
+ * Changes are collected until batchSize distinct values have changed, maxDelayMillis has passed since the first of
+ * them, or flush is called, and then published as a single list. The delay means that a bag whose changes fall on a
+ * few hot values still publishes them promptly; timed flushes run on one daemon thread shared by every publisher.
+ * Batches are submitted in the order they were collected, even when several threads change the bag, so a
+ * subscriber can apply each change from its old count to its new one. Several changes to the same value within a
+ * batch are combined into one, from the count before the first change to the count after the last, so a subscriber
+ * sees at most one change per value per batch. Changes are only collected while there are subscribers.
+ *
+ * Delivery is asynchronous, using a SubmissionPublisher on the common fork/join pool. A subscriber that falls
+ * behind holds back the thread updating the bag once its buffer is full.
+ *
+ * A Listener can also be added to be told of every change as soon as it is made, on the thread making it, without
+ * batching. Listeners are used to keep other objects, such as a MergedBag, exactly in step with the bag.
+ *
+ * @param <T> The type of the values in the bag
+ */
+public class BagChangePublisher<T> implements Flow.Publisher<List<BagChange<T>>>, AutoCloseable {
+  /**
+   * Told of each change in count synchronously, by the thread that changed the bag.
+   */
+  public interface Listener<T> {
+    void changed(T value, int oldCount, int newCount);
+  }
+
+  private static final int DEFAULT_BATCH_SIZE = 64;
+  private static final long DEFAULT_MAX_DELAY_MILLIS = 100;
+
+  /*
+    The thread running timed flushes, created when the first one is scheduled.
+   */
+  private static class FlushTimer {
+    static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "BagChangePublisher flush");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  private final SubmissionPublisher<List<BagChange<T>>> publisher = new SubmissionPublisher<>();
+  private final LinkedHashMap<T, int[]> pending = new LinkedHashMap<>();
+  private final List<Listener<T>> listeners = new CopyOnWriteArrayList<>();
+  // Held while a batch is taken and submitted, so that batches are submitted in the order they are taken.
+  private final Object submitLock = new Object();
+  private int batchSize = DEFAULT_BATCH_SIZE;
+  private long maxDelayMillis = DEFAULT_MAX_DELAY_MILLIS;
+  private boolean flushScheduled;
+
+  public void subscribe(Flow.Subscriber<? super List<BagChange<T>>> subscriber) {
+    publisher.subscribe(subscriber);
+  }
+
+  public void addListener(Listener<T> listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(Listener<T> listener) {
+    listeners.remove(listener);
+  }
+
+  public synchronized int getBatchSize() {
+    return batchSize;
+  }
+
+  public synchronized void setBatchSize(int batchSize) {
+    this.batchSize = Math.max(1, batchSize);
+  }
+
+  public synchronized long getMaxDelayMillis() {
+    return maxDelayMillis;
+  }
+
+  /**
+   * @param maxDelayMillis The longest time a change waits before its batch is published, or 0 to publish only full
+   *                       batches and on flush.
+   */
+  public synchronized void setMaxDelayMillis(long maxDelayMillis) {
+    this.maxDelayMillis = Math.max(0, maxDelayMillis);
+  }
+
+  /*
+    Record a change in count, called by the bag after each update.
+   */
+  void record(T value, int oldCount, int newCount) {
+    if (oldCount == newCount) return;
+    if (!listeners.isEmpty()) {
+      for (Listener<T> listener : listeners) {
+        listener.changed(value, oldCount, newCount);
+      }
+    }
+    if (!publisher.hasSubscribers()) return;
+    boolean full;
+    synchronized (this) {
+      int[] counts = pending.get(value);
+      if (counts == null) {
+        pending.put(value, new int[] {oldCount, newCount});
+      } else {
+        counts[1] = newCount;
+      }
+      full = pending.size() >= batchSize;
+      if (!full && !flushScheduled && maxDelayMillis > 0) {
+        flushScheduled = true;
+        FlushTimer.TIMER.schedule(this::flush, maxDelayMillis, TimeUnit.MILLISECONDS);
+      }
+    }
+    if (full) {
+      flush();
+    }
+  }
+
+  private List<BagChange<T>> takePending() {
+    List<BagChange<T>> batch = new ArrayList<>(pending.size());
+    for (Map.Entry<T, int[]> entry : pending.entrySet()) {
+      int[] counts = entry.getValue();
+      if (counts[0] != counts[1]) {
+        batch.add(new BagChange<>(entry.getKey(), counts[0], counts[1]));
+      }
+    }
+    pending.clear();
+    return batch;
+  }
+
+  /**
+   * Publish the changes collected so far without waiting for the batch to fill.
+   */
+  public void flush() {
+    synchronized (submitLock) {
+      List<BagChange<T>> batch;
+      synchronized (this) {
+        batch = takePending();
+        flushScheduled = false;
+      }
+      if (!batch.isEmpty() && !publisher.isClosed()) {
+        publisher.submit(batch);
+      }
+    }
+  }
+
+  /**
+   * Publish any pending changes and complete every subscriber. Changes made to the bag afterwards are not
+   * published.
+   */
+  public void close() {
+    synchronized (submitLock) {
+      flush();
+      publisher.close();
+    }
+  }
+}
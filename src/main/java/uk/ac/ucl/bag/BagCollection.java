@@ -0,0 +1,64 @@
+package uk.ac.ucl.bag;
+
+import java.util.AbstractCollection;
+import java.util.Iterator;
+import java.util.Map;
+
+/*
+   This class implements the live Collection view returned by Bag.asCollection, holding every occurrence of every
+   value in the bag. Iteration uses the bag's allOccurrencesIterator, contains asks the bag, and size adds up the
+   counts in one pass over the bag's storage. add adds one occurrence, rethrowing a BagException as an
+   IllegalStateException, and remove removes one occurrence.
+ */
+class BagCollection<T> extends AbstractCollection<T> {
+  private final AbstractBag<T> bag;
+
+  BagCollection(AbstractBag<T> bag) {
+    this.bag = bag;
+  }
+
+  public Iterator<T> iterator() {
+    return bag.allOccurrencesIterator();
+  }
+
+  public int size() {
+    long total = 0;
+    for (Iterator<Map.Entry<T, Integer>> entries = bag.entryIterator(); entries.hasNext(); ) {
+      total += entries.next().getValue();
+    }
+    return (int) Math.min(total, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return bag.isEmpty();
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public boolean contains(Object value) {
+    try {
+      return bag.contains((T) value);
+    } catch (ClassCastException e) {
+      return false;
+    }
+  }
+
+  @Override
+  public boolean add(T value) {
+    try {
+      bag.add(value);
+    } catch (BagException e) {
+      throw new IllegalStateException(e.getMessage(), e);
+    }
+    return true;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public boolean remove(Object value) {
+    if (!contains(value)) return false;
+    bag.remove((T) value);
+    return true;
+  }
+}
@@ -0,0 +1,122 @@
+package uk.ac.ucl.bag;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A BagDelta records the changes in count of a number of values, for example the difference between two versions of
+ * a bag as returned by Bag.diff. Applying the delta to the older version with Bag.applyDelta gives the newer one.
+ *
+ * A delta only holds the values whose counts changed, so it can be written to a stream with writeTo and sent to a
+ * replica much more cheaply than the whole bag. Values are written with Java serialization and must therefore be
+ * Serializable; each count change is written as a variable length integer, taking a single byte for small changes.
+ *
+ * @param <T> The type of the values in the delta
+ */
+public class BagDelta<T> {
+  private ArrayList<T> values;
+  private int[] changes;
+
+  public BagDelta() {
+    values = new ArrayList<>();
+    changes = new int[8];
+  }
+
+  /**
+   * Record a change in the count of a value. A change of zero is ignored.
+   * @param value The value.
+   * @param change The amount the count of the value changed by, negative for removals.
+   */
+  public void add(T value, int change) {
+    if (change == 0) return;
+    if (values.size() == changes.length) {
+      changes = Arrays.copyOf(changes, changes.length * 2);
+    }
+    changes[values.size()] = change;
+    values.add(value);
+  }
+
+  /**
+   * @return The number of values whose count changed.
+   */
+  public int size() {
+    return values.size();
+  }
+
+  public boolean isEmpty() {
+    return values.isEmpty();
+  }
+
+  public T getValue(int index) {
+    return values.get(index);
+  }
+
+  public int getChange(int index) {
+    return changes[index];
+  }
+
+  /**
+   * Write the delta to a stream in binary form.
+   * @param out The stream to write to. It is flushed but not closed.
+   * @throws IOException If writing fails or a value is not serializable.
+   */
+  public void writeTo(OutputStream out) throws IOException {
+    ObjectOutputStream objects = new ObjectOutputStream(out);
+    writeVarInt(objects, values.size());
+    for (int i = 0; i < values.size(); i++) {
+      // Zigzag encoding keeps small negative changes as short as small positive ones.
+      int change = changes[i];
+      writeVarInt(objects, (change << 1) ^ (change >> 31));
+      objects.writeObject(values.get(i));
+    }
+    objects.flush();
+  }
+
+  /**
+   * Read a delta written by writeTo.
+   * @param in The stream to read from.
+   * @return The delta.
+   * @throws IOException If reading fails or the stream does not hold a delta.
+   */
+  @SuppressWarnings("unchecked")
+  public static <T> BagDelta<T> readFrom(InputStream in) throws IOException {
+    ObjectInputStream objects = new ObjectInputStream(in);
+    BagDelta<T> delta = new BagDelta<>();
+    int size = readVarInt(objects);
+    try {
+      for (int i = 0; i < size; i++) {
+        int encoded = readVarInt(objects);
+        int change = (encoded >>> 1) ^ -(encoded & 1);
+        delta.add((T) objects.readObject(), change);
+      }
+    } catch (ClassNotFoundException e) {
+      throw new IOException("Bag delta holds a value of an unknown class", e);
+    }
+    return delta;
+  }
+
+  static void writeVarInt(OutputStream out, int value) throws IOException {
+    while ((value & ~0x7F) != 0) {
+      out.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  static int readVarInt(InputStream in) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      int b = in.read();
+      if (b < 0) throw new EOFException();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) return value;
+    }
+    throw new IOException("Malformed variable length integer");
+  }
+}
@@ -1,6 +1,7 @@
 package uk.ac.ucl.bag;
 
 import java.util.Comparator;
+import java.util.Objects;
 
 /**
  * A factory to create Bag objects. The class is implemented as a Singleton, such that only one factory
@@ -22,6 +23,9 @@ public class BagFactory<T> {
   // The name of the class that the factory will create objects of.
   private String bagClass;
 
+  // The interner given to each bag created, or null for none.
+  private Interner<T> interner;
+
   // The constructor is private to prevent code in any other class creating an instance.
   private BagFactory() {
   }
@@ -36,6 +40,20 @@ public class BagFactory<T> {
     bagClass = aClass;
   }
 
+  /**
+   * Set the interner that bags created from now on will use to store and look up values, or null for none.
+   * @param interner the interner to share between the bags.
+   */
+  public void setInterner(Interner<T> interner)
+  {
+    this.interner = interner;
+  }
+
+  public Interner<T> getInterner()
+  {
+    return interner;
+  }
+
   /**
    * Create a bag that is an instance of the class the factory has been set to create.
    * @return The new bag.
@@ -43,15 +61,7 @@ public class BagFactory<T> {
    * which a bag object can be created.
    */
   public Bag<T> getBag() throws BagException {
-    if (bagClass.equals("ArrayBag")) {
-      return new ArrayBag<>();
-    } else if (bagClass.equals("MapBag")) {
-      return new MapBag<>();
-    } else if (bagClass.equals("LinkedListBag")) {
-      return new LinkedListBag<>();
-    }
-    throw new BagException
-            ("Attempting to use BagFactory to create something that is not a Bag");
+    return getBag(Bag.MAX_SIZE, Comparator.comparing(Objects::hashCode));
   }
 
   /**
@@ -77,14 +87,47 @@ public class BagFactory<T> {
    * which a bag object can be created.
    */
   public Bag<T> getBag(int maxSize, Comparator<T> orderRelation) throws BagException {
+    AbstractBag<T> bag;
     if (bagClass.equals("ArrayBag")) {
-      return new ArrayBag<>(maxSize, orderRelation);
+      bag = new ArrayBag<>(maxSize, orderRelation);
+    } else if (bagClass.equals("SortedArrayBag")) {
+      bag = new ArrayBag<>(maxSize, orderRelation, true);
     } else if (bagClass.equals("MapBag")) {
-      return new MapBag<>(maxSize, orderRelation);
+      bag = new MapBag<>(maxSize, orderRelation);
     } else if (bagClass.equals("LinkedListBag")) {
-      return new LinkedListBag<>(maxSize, orderRelation);
+      bag = new LinkedListBag<>(maxSize, orderRelation);
+    } else if (bagClass.equals("StringBag")) {
+      bag = stringBag(maxSize);
+    } else if (bagClass.equals("EvictingBag")) {
+      bag = new EvictingBag<>(maxSize, orderRelation);
+    } else {
+      throw new BagException
+        ("Attempting to use BagFactory to create something that is not a Bag");
     }
-    throw new BagException
-      ("Attempting to use BagFactory to create something that is not a Bag");
+    bag.interner = interner;
+    return bag;
+  }
+
+  /**
+   * Create a bag as getBag does, wrapped in a ReadMostlyBag so that it can be shared between threads that mostly
+   * read it.
+   * @param maxSize The maximum size of the new bag.
+   * @param orderRelation allows the user to specify how comparison is done for the values
+   * stored in a Bag
+   * @return The new bag.
+   * @throws BagException If the class is not recognised as one from
+   * which a bag object can be created.
+   */
+  public ReadMostlyBag<T> getReadMostlyBag(int maxSize, Comparator<T> orderRelation) throws BagException {
+    return new ReadMostlyBag<>((AbstractBag<T>) getBag(maxSize, orderRelation));
+  }
+
+  /*
+    A StringBag can only hold Strings, so it is up to the caller to only select it for a factory of Strings.
+    The order relation is not used, as values are compared by their bytes.
+   */
+  @SuppressWarnings("unchecked")
+  private AbstractBag<T> stringBag(int maxSize) throws BagException {
+    return (AbstractBag<T>) (AbstractBag<?>) new StringBag(maxSize);
   }
 }
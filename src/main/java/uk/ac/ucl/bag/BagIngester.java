@@ -0,0 +1,186 @@
+package uk.ac.ucl.bag;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A BagIngester counts the whitespace separated tokens of text files into a StringBag.
+ *
+ * Each file is memory mapped and split into one chunk per thread, with the chunk boundaries moved forward to the
+ * next whitespace byte so that no token is split between chunks. Every thread counts the tokens of its chunk into a
+ * StringBag of its own, straight from the UTF-8 bytes of the file, so no String is created per token and the
+ * threads do not share any state. The per-thread bags are then merged by adding the occurrences of each of their
+ * values to the result, as createMergedAllOccurrences does.
+ *
+ * Tokens are separated by ASCII whitespace (space, tab, line feed, vertical tab, form feed and carriage return)
+ * and must be UTF-8 encoded. The result is not limited to Bag.MAX_SIZE distinct values, as the vocabulary of a set of
+ * files is usually far larger than that; the ingester has a limit of its own, maxTokens, and a BagException is
+ * thrown if the files hold more distinct tokens than that.
+ */
+public class BagIngester {
+  // Chunks are mapped in windows of this size, as a single mapping cannot be larger than 2GB.
+  private static final long WINDOW_SIZE = 1L << 30;
+
+  /**
+   * The default maximum number of distinct tokens.
+   */
+  public static final int DEFAULT_MAX_TOKENS = 1 << 24;
+
+  private final int threads;
+  private final int maxTokens;
+
+  /**
+   * Create an ingester using one thread per available processor.
+   */
+  public BagIngester() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * @param threads The number of threads, and so chunks, to split each file into.
+   */
+  public BagIngester(int threads) {
+    this(threads, DEFAULT_MAX_TOKENS);
+  }
+
+  /**
+   * @param threads The number of threads, and so chunks, to split each file into.
+   * @param maxTokens The maximum number of distinct tokens, in each chunk and in the result.
+   */
+  public BagIngester(int threads, int maxTokens) {
+    this.threads = Math.max(1, threads);
+    this.maxTokens = Math.max(1, maxTokens);
+  }
+
+  /**
+   * Count the tokens of a number of files into a new bag.
+   * @param files The files to read.
+   * @return A bag holding the count of each distinct token.
+   * @throws IOException If a file cannot be read.
+   * @throws BagException If there are more than maxTokens distinct tokens.
+   */
+  public StringBag ingest(List<Path> files) throws IOException, BagException {
+    StringBag result = StringBag.withMaxSize(maxTokens);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      for (Path file : files) {
+        for (StringBag partial : ingestChunks(file, executor)) {
+          mergeInto(result, partial);
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+    return result;
+  }
+
+  private List<StringBag> ingestChunks(Path file, ExecutorService executor) throws IOException, BagException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long[] boundaries = chunkBoundaries(channel);
+      List<Callable<StringBag>> tasks = new ArrayList<>();
+      for (int i = 0; i + 1 < boundaries.length; i++) {
+        long start = boundaries[i];
+        long end = boundaries[i + 1];
+        if (start < end) {
+          tasks.add(() -> countTokens(channel, start, end));
+        }
+      }
+      List<StringBag> partials = new ArrayList<>(tasks.size());
+      for (Future<StringBag> future : executor.invokeAll(tasks)) {
+        partials.add(future.get());
+      }
+      return partials;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while reading " + file, e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof BagException) throw (BagException) cause;
+      if (cause instanceof IOException) throw (IOException) cause;
+      throw new IOException("Failed to read " + file, cause);
+    }
+  }
+
+  /*
+    Split the file into one chunk per thread, returning the start of each chunk followed by the end of the file.
+    Each boundary other than the first and last is moved forward to just after the next whitespace byte.
+   */
+  private long[] chunkBoundaries(FileChannel channel) throws IOException {
+    long size = channel.size();
+    long[] boundaries = new long[threads + 1];
+    boundaries[threads] = size;
+    ByteBuffer buffer = ByteBuffer.allocate(4096);
+    for (int i = 1; i < threads; i++) {
+      long position = Math.max(size / threads * i, boundaries[i - 1]);
+      boundaries[i] = size;
+      search:
+      while (position < size) {
+        buffer.clear();
+        int read = channel.read(buffer, position);
+        if (read <= 0) break;
+        for (int j = 0; j < read; j++) {
+          if (isDelimiter(buffer.get(j))) {
+            boundaries[i] = position + j + 1;
+            break search;
+          }
+        }
+        position += read;
+      }
+    }
+    return boundaries;
+  }
+
+  private static boolean isDelimiter(byte b) {
+    return b == ' ' || (b >= '\t' && b <= '\r');
+  }
+
+  /*
+    Count the tokens between start and end into a new bag. The bytes of the current token are gathered in a buffer,
+    which also carries a token across the edge of a mapping window.
+   */
+  private StringBag countTokens(FileChannel channel, long start, long end) throws IOException, BagException {
+    StringBag bag = StringBag.withMaxSize(maxTokens);
+    byte[] token = new byte[64];
+    int length = 0;
+    for (long window = start; window < end; window += WINDOW_SIZE) {
+      long windowSize = Math.min(WINDOW_SIZE, end - window);
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, window, windowSize);
+      while (buffer.hasRemaining()) {
+        byte b = buffer.get();
+        if (isDelimiter(b)) {
+          if (length > 0) {
+            bag.addBytes(token, 0, length, 1);
+            length = 0;
+          }
+        } else {
+          if (length == token.length) {
+            token = Arrays.copyOf(token, length * 2);
+          }
+          token[length++] = b;
+        }
+      }
+    }
+    if (length > 0) {
+      bag.addBytes(token, 0, length, 1);
+    }
+    return bag;
+  }
+
+  private static void mergeInto(Bag<String> result, Bag<String> partial) throws BagException {
+    for (String value : partial) {
+      result.addWithOccurrences(value, partial.countOf(value));
+    }
+  }
+}
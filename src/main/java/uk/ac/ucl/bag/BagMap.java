@@ -0,0 +1,136 @@
+package uk.ac.ucl.bag;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+   This class implements the live Map view returned by Bag.asMap, mapping each value in the bag to its count.
+   Lookups go straight to the bag, and the entry set iterates over the bag's own storage through entryIterator, so
+   building a map from a bag, or reading every count, is linear rather than calling countOf for each value.
+
+   put sets the count of a value by adding or removing the difference, and remove removes every occurrence. A
+   count of 0 removes the value; a negative count is rejected with IllegalArgumentException and a null count with
+   NullPointerException. A BagException raised by put because the bag is full is rethrown as an
+   IllegalStateException, as Map.put cannot throw it. Entries read from the entry set are snapshots and cannot be
+   changed, but the entry set's iterator supports remove, so clear and removing through the key set, values and
+   entry set all remove values from the bag.
+ */
+class BagMap<T> extends AbstractMap<T, Integer> {
+  private final AbstractBag<T> bag;
+
+  BagMap(AbstractBag<T> bag) {
+    this.bag = bag;
+  }
+
+  @SuppressWarnings("unchecked")
+  private int countOf(Object key) {
+    try {
+      return bag.countOf((T) key);
+    } catch (ClassCastException e) {
+      return 0;
+    }
+  }
+
+  @Override
+  public Integer get(Object key) {
+    int count = countOf(key);
+    return (count > 0) ? count : null;
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return countOf(key) > 0;
+  }
+
+  @Override
+  public int size() {
+    return bag.size();
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return bag.isEmpty();
+  }
+
+  @Override
+  public Integer put(T key, Integer count) {
+    if (count == null) {
+      throw new NullPointerException("A bag cannot map a value to a null count");
+    }
+    if (count < 0) {
+      throw new IllegalArgumentException("A bag cannot map a value to a negative count");
+    }
+    int oldCount = bag.countOf(key);
+    try {
+      if (count > oldCount) {
+        bag.addWithOccurrences(key, count - oldCount);
+      } else {
+        bag.removeWithOccurrences(key, oldCount - count);
+      }
+    } catch (BagException e) {
+      throw new IllegalStateException(e.getMessage(), e);
+    }
+    return (oldCount > 0) ? oldCount : null;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public Integer remove(Object key) {
+    int count = countOf(key);
+    if (count == 0) return null;
+    bag.removeWithOccurrences((T) key, count);
+    return count;
+  }
+
+  @Override
+  public Set<Map.Entry<T, Integer>> entrySet() {
+    return new AbstractSet<Map.Entry<T, Integer>>() {
+      public Iterator<Map.Entry<T, Integer>> iterator() {
+        return new EntryIterator();
+      }
+
+      public int size() {
+        return bag.size();
+      }
+    };
+  }
+
+  /*
+    This class iterates over the bag's entries. The bags' own iterators do not allow the bag to change under them,
+    so the first remove copies the entries not yet returned before changing the bag, and the rest of the iteration
+    reads the copy.
+   */
+  private class EntryIterator implements Iterator<Map.Entry<T, Integer>> {
+    private Iterator<Map.Entry<T, Integer>> entries = bag.entryIterator();
+    private boolean copied;
+    private Map.Entry<T, Integer> last;
+
+    public boolean hasNext() {
+      return entries.hasNext();
+    }
+
+    public Map.Entry<T, Integer> next() {
+      last = entries.next();
+      return last;
+    }
+
+    public void remove() {
+      if (last == null) {
+        throw new IllegalStateException("next has not been called since the last remove");
+      }
+      if (!copied) {
+        List<Map.Entry<T, Integer>> rest = new ArrayList<>();
+        entries.forEachRemaining(rest::add);
+        entries = rest.iterator();
+        copied = true;
+      }
+      bag.removeWithOccurrences(last.getKey(), last.getValue());
+      last = null;
+    }
+  }
+}
@@ -0,0 +1,261 @@
+package uk.ac.ucl.bag;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A BagPipeline feeds values from a number of sources into a target bag.
+ *
+ * Each source runs on its own thread and passes values to a Sink, which puts them on a bounded queue. When the
+ * queue is full the sink blocks, so a fast source is held back to the speed at which the bag is updated rather than
+ * filling memory. A single applier thread takes values off the queue in batches of up to batchSize, combines
+ * repeated values, and adds each distinct value of the batch to the target with one addWithOccurrences call while
+ * holding the target's lock.
+ *
+ * Source threads are virtual threads when the Java runtime supports them (Java 21 and later), so a pipeline can
+ * run a large number of mostly blocked sources such as sockets cheaply; on older runtimes they are daemon platform
+ * threads. The pipeline exposes the number of values and batches applied, the current queue depth and the
+ * throughput since it started.
+ *
+ * If adding to the target fails, because the bag is full or with any runtime exception, the applier records the
+ * failure and keeps taking values off the queue without applying them, so that sources are not blocked and close
+ * can finish; close then rethrows the failure.
+ *
+ * close waits for the sources and can throw InterruptedException, which AutoCloseable warns against because
+ * try-with-resources would then swallow the interrupt into a suppressed exception; callers should be prepared to
+ * handle it, and the warning is suppressed here.
+ *
+ * @param <T> The type of the values fed to the bag
+ */
+@SuppressWarnings("try")
+public class BagPipeline<T> implements AutoCloseable {
+  /**
+   * A source of values, run on its own thread until it returns.
+   */
+  public interface Source<T> {
+    void run(Sink<T> sink) throws Exception;
+  }
+
+  /**
+   * Accepts the values produced by a source, blocking while the pipeline's queue is full.
+   */
+  public interface Sink<T> {
+    void accept(T value) throws InterruptedException;
+  }
+
+  // Put on the queue by close to tell the applier no more values will arrive.
+  private static final Object END = new Object();
+
+  private static final ThreadFactory SOURCE_THREADS = sourceThreadFactory();
+
+  private final Bag<T> target;
+  private final int batchSize;
+  private final BlockingQueue<Object> queue;
+  // Guards closed and sources, so that no source is started once close has begun waiting for them.
+  private final Object lifecycle = new Object();
+  // Guards ended, so that END is put on the queue exactly once even if a close is interrupted and called again.
+  private final Object ending = new Object();
+  private final List<Thread> sources = new ArrayList<>();
+  private final List<Throwable> failures = new CopyOnWriteArrayList<>();
+  private final Thread applier;
+  private final AtomicLong applied = new AtomicLong();
+  private final AtomicLong batches = new AtomicLong();
+  private final long startNanos;
+  private volatile Exception applyFailure;
+  private boolean closed;
+  private boolean ended;
+
+  /**
+   * Create a pipeline and start its applier thread.
+   * @param target The bag the values are added to.
+   * @param queueCapacity The number of values that can wait in the queue before sources block.
+   * @param batchSize The largest number of values applied to the bag at once.
+   */
+  public BagPipeline(Bag<T> target, int queueCapacity, int batchSize) {
+    this.target = target;
+    this.batchSize = Math.max(1, batchSize);
+    queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+    startNanos = System.nanoTime();
+    applier = new Thread(this::applyBatches, "BagPipeline applier");
+    applier.setDaemon(true);
+    applier.start();
+  }
+
+  /*
+    Return a factory for virtual threads if Thread.ofVirtual exists in this runtime, found by reflection so the
+    class still compiles and runs on Java 11, and a factory for daemon platform threads otherwise.
+   */
+  private static ThreadFactory sourceThreadFactory() {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return runnable -> {
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        return thread;
+      };
+    }
+  }
+
+  /**
+   * @return True if source threads are virtual threads.
+   */
+  public static boolean usesVirtualThreads() {
+    Thread probe = SOURCE_THREADS.newThread(() -> { });
+    try {
+      return (Boolean) Thread.class.getMethod("isVirtual").invoke(probe);
+    } catch (ReflectiveOperationException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Start running a source on a thread of its own. An exception thrown by the source ends it and is recorded in
+   * getFailures.
+   * @param source The source.
+   * @throws IllegalStateException If the pipeline has been closed.
+   */
+  public void addSource(Source<T> source) {
+    Sink<T> sink = queue::put;
+    Thread thread = SOURCE_THREADS.newThread(() -> {
+      try {
+        source.run(sink);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (Throwable e) {
+        failures.add(e);
+      }
+    });
+    synchronized (lifecycle) {
+      if (closed) {
+        throw new IllegalStateException("Pipeline is closed");
+      }
+      sources.add(thread);
+      thread.start();
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void applyBatches() {
+    List<Object> batch = new ArrayList<>(batchSize);
+    Map<T, int[]> counts = new HashMap<>();
+    boolean ended = false;
+    try {
+      while (!ended) {
+        batch.add(queue.take());
+        queue.drainTo(batch, batchSize - 1);
+        for (Object value : batch) {
+          if (value == END) {
+            ended = true;
+          } else if (applyFailure == null) {
+            try {
+              counts.computeIfAbsent((T) value, key -> new int[1])[0]++;
+            } catch (RuntimeException e) {
+              applyFailure = e;
+            }
+          }
+        }
+        if (applyFailure == null && !counts.isEmpty()) {
+          apply(counts);
+        }
+        batch.clear();
+        counts.clear();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /*
+    Add a batch to the target, counting only the values that reached it. After a failure the rest of the batch, and
+    every later batch, is dropped.
+   */
+  private void apply(Map<T, int[]> counts) {
+    try {
+      synchronized (target) {
+        for (Map.Entry<T, int[]> entry : counts.entrySet()) {
+          target.addWithOccurrences(entry.getKey(), entry.getValue()[0]);
+          applied.addAndGet(entry.getValue()[0]);
+        }
+      }
+      batches.incrementAndGet();
+    } catch (BagException | RuntimeException e) {
+      applyFailure = e;
+    }
+  }
+
+  /**
+   * @return The number of values added to the bag, not counting values dropped after a failure.
+   */
+  public long getAppliedCount() {
+    return applied.get();
+  }
+
+  /**
+   * @return The number of batches applied to the bag.
+   */
+  public long getBatchCount() {
+    return batches.get();
+  }
+
+  /**
+   * @return The number of values waiting in the queue.
+   */
+  public int getQueueDepth() {
+    return queue.size();
+  }
+
+  /**
+   * @return The number of values added to the bag per second since the pipeline started.
+   */
+  public double getThroughput() {
+    double seconds = (System.nanoTime() - startNanos) / 1e9;
+    return (seconds > 0) ? applied.get() / seconds : 0;
+  }
+
+  /**
+   * @return The exceptions thrown by sources so far.
+   */
+  public List<Throwable> getFailures() {
+    return new ArrayList<>(failures);
+  }
+
+  /**
+   * Wait for every source to finish, then for the queue to be applied to the bag, and stop the applier thread.
+   * Sources can no longer be added once close has been called. If close is interrupted it can be called again,
+   * and carries on waiting where the interrupted call stopped.
+   * @throws BagException If the bag became full while values were applied. Values that did not fit are dropped.
+   * @throws RuntimeException If adding to the bag threw one. Values from then on are dropped.
+   * @throws InterruptedException If interrupted while waiting.
+   */
+  public void close() throws BagException, InterruptedException {
+    synchronized (lifecycle) {
+      closed = true;
+    }
+    synchronized (ending) {
+      if (!ended) {
+        for (Thread source : sources) {
+          source.join();
+        }
+        queue.put(END);
+        ended = true;
+      }
+    }
+    applier.join();
+    Exception failure = applyFailure;
+    if (failure instanceof BagException) {
+      throw (BagException) failure;
+    }
+    if (failure != null) {
+      throw (RuntimeException) failure;
+    }
+  }
+}
@@ -0,0 +1,458 @@
+package uk.ac.ucl.bag;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A BagSegment is an immutable file holding the entries of a bag sorted by an order relation, which can be queried
+ * without loading it.
+ *
+ * The file holds the entries in blocks of a fixed number of entries, each entry being the encoded value and the
+ * count as variable length integers, followed by a sparse index giving the first value and the file offset of each
+ * block, and a fixed size trailer locating the index. Opening a segment memory maps the file and reads only the
+ * index. countOf and contains then binary search the index and scan a single block, so a lookup touches one or two
+ * pages of the file whatever its size. Entries can also be iterated over in order, in full or for a range of values.
+ *
+ * Values are turned into bytes by a Codec; STRINGS encodes Strings as UTF-8 and serialized() uses Java
+ * serialization. The file is mapped in windows of 1GB, as a single mapped buffer cannot exceed 2GB, so a segment can
+ * be of any size; it can hold up to Integer.MAX_VALUE entries. Several segments can be queried together as one bag
+ * with SegmentBag.
+ *
+ * @param <T> The type of the values in the segment
+ */
+public class BagSegment<T> implements AutoCloseable {
+  /**
+   * Converts values to and from the bytes stored in a segment.
+   */
+  public interface Codec<T> {
+    byte[] encode(T value);
+
+    T decode(byte[] bytes);
+  }
+
+  public static final Codec<String> STRINGS = new Codec<String>() {
+    public byte[] encode(String value) {
+      return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public String decode(byte[] bytes) {
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+  };
+
+  /**
+   * @return A codec storing values in the Java serialization format.
+   */
+  public static <T extends Serializable> Codec<T> serialized() {
+    return new Codec<T>() {
+      public byte[] encode(T value) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+          out.writeObject(value);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+      }
+
+      @SuppressWarnings("unchecked")
+      public T decode(byte[] bytes) {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+          return (T) in.readObject();
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        } catch (ClassNotFoundException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    };
+  }
+
+  private static final int MAGIC = 0x42414753;
+  private static final int TRAILER_SIZE = 24;
+  private static final int WINDOW_SHIFT = 30;
+  public static final int DEFAULT_BLOCK_ENTRIES = 64;
+
+  /**
+   * Writes a segment file from entries supplied in increasing order of value, one block at a time, so a segment
+   * of any size can be written with the memory needed for its index.
+   *
+   * The index and trailer are only written by close if every add succeeded. If an add threw, close deletes the
+   * file instead, so a failed write never leaves a truncated file that opens as a complete segment.
+   */
+  public static class Writer<T> implements AutoCloseable {
+    private final Path path;
+    private final DataOutputStream out;
+    private final Comparator<T> orderRelation;
+    private final Codec<T> codec;
+    private final int blockEntries;
+    private final List<byte[]> indexKeys = new ArrayList<>();
+    private final List<Long> indexOffsets = new ArrayList<>();
+    private long position = 0;
+    private int entryCount = 0;
+    private T previous;
+    // Set while an add is in progress and left set if it throws.
+    private boolean failed;
+
+    public Writer(Path path, Comparator<T> orderRelation, Codec<T> codec, int blockEntries) throws IOException {
+      this.path = path;
+      out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
+      this.orderRelation = orderRelation;
+      this.codec = codec;
+      this.blockEntries = Math.max(1, blockEntries);
+    }
+
+    /**
+     * Append an entry.
+     * @param value The value, which must be greater than the previous value by the order relation.
+     * @param count The count of the value, which must be positive.
+     * @throws IOException If the file cannot be written.
+     * @throws IllegalArgumentException If the value is out of order or the count is not positive.
+     */
+    public void add(T value, int count) throws IOException {
+      if (failed) {
+        throw new IOException("An earlier entry could not be added to the segment");
+      }
+      failed = true;
+      if (count < 1) {
+        throw new IllegalArgumentException("Segment counts must be positive");
+      }
+      if (entryCount == Integer.MAX_VALUE) {
+        throw new IOException("A segment cannot hold more than " + Integer.MAX_VALUE + " entries");
+      }
+      if (entryCount > 0 && orderRelation.compare(previous, value) >= 0) {
+        throw new IllegalArgumentException("Segment entries must be added in increasing order");
+      }
+      byte[] key = codec.encode(value);
+      if (entryCount % blockEntries == 0) {
+        indexKeys.add(key);
+        indexOffsets.add(position);
+      }
+      writeVarInt(key.length);
+      out.write(key);
+      position += key.length;
+      writeVarInt(count);
+      previous = value;
+      entryCount++;
+      failed = false;
+    }
+
+    private void writeVarInt(int value) throws IOException {
+      while ((value & ~0x7F) != 0) {
+        out.write((value & 0x7F) | 0x80);
+        value >>>= 7;
+        position++;
+      }
+      out.write(value);
+      position++;
+    }
+
+    /**
+     * Write the index and trailer and close the file, or close and delete the file if an add failed.
+     */
+    public void close() throws IOException {
+      boolean complete = false;
+      try {
+        if (!failed) {
+          long indexOffset = position;
+          for (int i = 0; i < indexKeys.size(); i++) {
+            out.writeLong(indexOffsets.get(i));
+            position += 8;
+            writeVarInt(indexKeys.get(i).length);
+            out.write(indexKeys.get(i));
+            position += indexKeys.get(i).length;
+          }
+          out.writeLong(indexOffset);
+          out.writeInt(indexKeys.size());
+          out.writeInt(entryCount);
+          out.writeInt(blockEntries);
+          out.writeInt(MAGIC);
+          out.flush();
+          complete = true;
+        }
+      } finally {
+        try {
+          out.close();
+        } finally {
+          if (!complete) {
+            Files.deleteIfExists(path);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Write the entries of a bag to a new segment file.
+   * @param path The file to write.
+   * @param bag The bag.
+   * @param orderRelation The order relation the entries are sorted by.
+   * @param codec The codec for the values.
+   * @throws IOException If the file cannot be written.
+   */
+  public static <T> void write(Path path, Bag<T> bag, Comparator<T> orderRelation, Codec<T> codec)
+      throws IOException {
+    List<Map.Entry<T, Integer>> entries = new ArrayList<>(bag.size());
+    bag.entryStream().forEach(entries::add);
+    entries.sort((a, b) -> orderRelation.compare(a.getKey(), b.getKey()));
+    try (Writer<T> writer = new Writer<>(path, orderRelation, codec, DEFAULT_BLOCK_ENTRIES)) {
+      for (Map.Entry<T, Integer> entry : entries) {
+        writer.add(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  private final FileChannel channel;
+  // The file mapped in windows of 1 << windowShift bytes; window i starts at byte i << windowShift.
+  private final ByteBuffer[] windows;
+  private final int windowShift;
+  private final Comparator<T> orderRelation;
+  private final Codec<T> codec;
+  private final Object[] firstValues;
+  private final long[] blockOffsets;
+  private final int entryCount;
+  private final int blockEntries;
+
+  private BagSegment(Path path, Comparator<T> orderRelation, Codec<T> codec, int windowShift) throws IOException {
+    channel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      long size = channel.size();
+      if (size < TRAILER_SIZE) {
+        throw new IOException("Not a bag segment: " + path);
+      }
+      this.windowShift = windowShift;
+      long windowSize = 1L << windowShift;
+      windows = new ByteBuffer[(int) ((size + windowSize - 1) >>> windowShift)];
+      for (int i = 0; i < windows.length; i++) {
+        long start = (long) i << windowShift;
+        windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowSize, size - start));
+      }
+      Input trailer = new Input(size - TRAILER_SIZE);
+      long indexOffset = trailer.getLong();
+      int blockCount = trailer.getInt();
+      entryCount = trailer.getInt();
+      blockEntries = trailer.getInt();
+      if (trailer.getInt() != MAGIC || indexOffset < 0 || indexOffset > size - TRAILER_SIZE) {
+        throw new IOException("Not a bag segment: " + path);
+      }
+      this.orderRelation = orderRelation;
+      this.codec = codec;
+      firstValues = new Object[blockCount];
+      blockOffsets = new long[blockCount];
+      Input index = new Input(indexOffset);
+      for (int i = 0; i < blockCount; i++) {
+        blockOffsets[i] = index.getLong();
+        firstValues[i] = readValue(index);
+      }
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Open a segment file for reading.
+   * @param path The file.
+   * @param orderRelation The order relation the segment was written with.
+   * @param codec The codec the segment was written with.
+   * @return The segment.
+   * @throws IOException If the file cannot be read or is not a segment.
+   */
+  public static <T> BagSegment<T> open(Path path, Comparator<T> orderRelation, Codec<T> codec) throws IOException {
+    return new BagSegment<>(path, orderRelation, codec, WINDOW_SHIFT);
+  }
+
+  /*
+    Open a segment mapped in smaller windows, so that tests can cross window boundaries without writing a large file.
+   */
+  static <T> BagSegment<T> open(Path path, Comparator<T> orderRelation, Codec<T> codec, int windowShift)
+      throws IOException {
+    return new BagSegment<>(path, orderRelation, codec, windowShift);
+  }
+
+  /*
+    Reads the mapped file sequentially from a position, moving from one window to the next as it goes.
+   */
+  private class Input {
+    private long position;
+
+    Input(long position) {
+      this.position = position;
+    }
+
+    byte get() {
+      byte b = windows[(int) (position >>> windowShift)].get((int) (position & ((1L << windowShift) - 1)));
+      position++;
+      return b;
+    }
+
+    void get(byte[] bytes) {
+      for (int i = 0; i < bytes.length; i++) {
+        bytes[i] = get();
+      }
+    }
+
+    int getInt() {
+      int value = 0;
+      for (int i = 0; i < 4; i++) {
+        value = (value << 8) | (get() & 0xFF);
+      }
+      return value;
+    }
+
+    long getLong() {
+      return ((long) getInt() << 32) | (getInt() & 0xFFFFFFFFL);
+    }
+
+    int getVarInt() {
+      int value = 0;
+      for (int shift = 0; ; shift += 7) {
+        int b = get();
+        value |= (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) return value;
+      }
+    }
+  }
+
+  private T readValue(Input in) {
+    byte[] bytes = new byte[in.getVarInt()];
+    in.get(bytes);
+    return codec.decode(bytes);
+  }
+
+  @SuppressWarnings("unchecked")
+  private T firstValue(int block) {
+    return (T) firstValues[block];
+  }
+
+  /*
+    Return the last block whose first value is not greater than value, or -1 if value is before every block.
+   */
+  private int blockFor(T value) {
+    int low = 0;
+    int high = firstValues.length - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (orderRelation.compare(firstValue(mid), value) <= 0) {
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return high;
+  }
+
+  public Comparator<T> getOrderRelation() {
+    return orderRelation;
+  }
+
+  /**
+   * @return The number of distinct values in the segment.
+   */
+  public int size() {
+    return entryCount;
+  }
+
+  public int countOf(T value) {
+    int block = blockFor(value);
+    if (block < 0) return 0;
+    Input in = new Input(blockOffsets[block]);
+    int entries = Math.min(blockEntries, entryCount - block * blockEntries);
+    for (int i = 0; i < entries; i++) {
+      int cmp = orderRelation.compare(readValue(in), value);
+      int count = in.getVarInt();
+      if (cmp == 0) return count;
+      if (cmp > 0) break;
+    }
+    return 0;
+  }
+
+  public boolean contains(T value) {
+    return countOf(value) > 0;
+  }
+
+  /**
+   * Return an iterator over the entries of the segment in order.
+   * @return The iterator.
+   */
+  public Iterator<Map.Entry<T, Integer>> entries() {
+    return entries(null, null);
+  }
+
+  /**
+   * Return an iterator over the entries whose values lie in a range, in order.
+   * @param from The lowest value of the range, inclusive, or null to start at the first entry.
+   * @param to The end of the range, exclusive, or null to continue to the last entry.
+   * @return The iterator.
+   */
+  public Iterator<Map.Entry<T, Integer>> entries(T from, T to) {
+    int block = (from == null) ? 0 : Math.max(0, blockFor(from));
+    Input in = new Input((firstValues.length == 0) ? 0 : blockOffsets[block]);
+    int start = block * blockEntries;
+    return new Iterator<Map.Entry<T, Integer>>() {
+      private int index = start;
+      private Map.Entry<T, Integer> next = advance();
+
+      private Map.Entry<T, Integer> advance() {
+        while (index < entryCount) {
+          index++;
+          T value = readValue(in);
+          int count = in.getVarInt();
+          if (to != null && orderRelation.compare(value, to) >= 0) break;
+          if (from == null || orderRelation.compare(value, from) >= 0) {
+            return new AbstractMap.SimpleImmutableEntry<>(value, count);
+          }
+        }
+        index = entryCount;
+        return null;
+      }
+
+      public boolean hasNext() {
+        return next != null;
+      }
+
+      public Map.Entry<T, Integer> next() {
+        if (next == null) throw new NoSuchElementException();
+        Map.Entry<T, Integer> entry = next;
+        next = advance();
+        return entry;
+      }
+    };
+  }
+
+  /**
+   * Estimate the heap memory used by the segment: its index, which holds the first value of each block, but not
+   * the first values themselves nor the mapped file, which is outside the heap.
+   * @return The estimated size in bytes.
+   */
+  public long estimatedMemoryBytes() {
+    return AbstractBag.objectBytes(6 * AbstractBag.REFERENCE + 3 * 4)
+        + AbstractBag.arrayBytes(windows.length, AbstractBag.REFERENCE)
+        + AbstractBag.arrayBytes(firstValues.length, AbstractBag.REFERENCE)
+        + AbstractBag.arrayBytes(blockOffsets.length, 8);
+  }
+
+  public void close() throws IOException {
+    channel.close();
+  }
+}
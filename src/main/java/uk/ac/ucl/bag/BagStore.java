@@ -0,0 +1,587 @@
+package uk.ac.ucl.bag;
+
+import java.beans.XMLDecoder;
+import java.beans.XMLEncoder;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+
+/*
+   This class holds a large number of small bags, identified by number, in a few arrays shared between them, so
+   that a bag costs a few bytes of bookkeeping plus 8 bytes per distinct value instead of a bag object and arrays of
+   its own.
+
+   Every value held by any bag is stored once, in a dictionary shared by all the bags, and numbered. The bags' entries
+   live in a single int array, the arena, as pairs of a value's number and its count; each bag owns a run of the
+   arena, given by its offset, the number of entries in use and the number it has room for. A lookup finds the
+   value's number with one hash lookup in the dictionary and then scans the bag's run for it, so the order relation
+   is not called. Values are matched with equals and hashCode, which must agree with the order relation. Within a
+   bag, values are kept in the order they were added, and removing a value moves the last entry into its place, as
+   in an unsorted ArrayBag.
+
+   A full run is moved to the end of the arena with twice the room, leaving a gap. When the gaps make up half the
+   arena, the runs are packed together again. Values no bag holds any more stay in the dictionary until compact is
+   called, which also packs every run to its size and trims the arrays.
+
+   bag returns a Bag handle for a bag in the store, which can be created whenever needed and thrown away, as it
+   holds only the store and the bag's number. A handle publishes only the changes made through it. Serializing or
+   persisting a handle writes a standalone copy of the bag; the store as a whole is written with Java serialization
+   or with persist, as a JavaBeans component (see AbstractBag.java), and read back with loadFrom. The order relation
+   is not persisted. The store is not thread safe.
+ */
+public class BagStore<T> implements Serializable {
+  private static final int INITIAL_BAGS = 16;
+  private static final int INITIAL_VALUES = 16;
+  private static final int INITIAL_ARENA = 64;
+
+  private int maxSize;
+
+  // The dictionary: the value numbered i is values[i].
+  private Object[] values;
+  private int valueCount;
+  private transient HashMap<Object, Integer> ids;
+
+  // The arena, of which the first used ints are taken by runs or the gaps between them.
+  private int[] entries;
+  private int used;
+  private int gaps;
+
+  // For each bag, the index of its run in the arena, its number of entries, and the entries its run has room for.
+  private int[] offsets;
+  private int[] sizes;
+  private int[] capacities;
+  private int bagCount;
+
+  private transient Comparator<T> orderRelation;
+
+  public BagStore() throws BagException {
+    this(Bag.MAX_SIZE, Comparator.comparing(Objects::hashCode));
+  }
+
+  /**
+   * Create an empty store.
+   * @param maxSize The maximum number of distinct values each bag can hold.
+   * @param orderRelation The order relation of the bags.
+   * @throws BagException If maxSize is greater than Bag.MAX_SIZE or less than 1.
+   */
+  public BagStore(int maxSize, Comparator<T> orderRelation) throws BagException {
+    if (maxSize > Bag.MAX_SIZE) {
+      throw new BagException("Attempting to create a Bag with size greater than maximum");
+    }
+    if (maxSize < 1) {
+      throw new BagException("Attempting to create a Bag with size less than 1");
+    }
+    this.maxSize = maxSize;
+    this.orderRelation = orderRelation;
+    values = new Object[INITIAL_VALUES];
+    entries = new int[INITIAL_ARENA];
+    offsets = new int[INITIAL_BAGS];
+    sizes = new int[INITIAL_BAGS];
+    capacities = new int[INITIAL_BAGS];
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    orderRelation = Comparator.comparing(Objects::hashCode);
+  }
+
+  /**
+   * Read a store written by persist.
+   * @param path The path of the file.
+   * @return The store, whose bags have the default order relation.
+   * @throws FileNotFoundException If the file does not exist.
+   */
+  @SuppressWarnings("unchecked")
+  public static <T> BagStore<T> loadFrom(String path) throws FileNotFoundException {
+    XMLDecoder decoder = new XMLDecoder(new BufferedInputStream(new FileInputStream(path)));
+    BagStore<T> store = (BagStore<T>) decoder.readObject();
+    decoder.close();
+    return store;
+  }
+
+  /**
+   * Write the whole store to a file as XML.
+   * @param path The path of the file.
+   * @throws IOException If the file cannot be written.
+   */
+  public void persist(String path) throws IOException {
+    XMLEncoder xmlEncoder = new XMLEncoder(new BufferedOutputStream(new FileOutputStream(path)));
+    xmlEncoder.writeObject(this);
+    xmlEncoder.close();
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  public void setMaxSize(int maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  public Object[] getValues() {
+    return values;
+  }
+
+  public void setValues(Object[] values) {
+    this.values = values;
+    ids = null;
+  }
+
+  public int getValueCount() {
+    return valueCount;
+  }
+
+  public void setValueCount(int valueCount) {
+    this.valueCount = valueCount;
+    ids = null;
+  }
+
+  public int[] getEntries() {
+    return entries;
+  }
+
+  public void setEntries(int[] entries) {
+    this.entries = entries;
+  }
+
+  public int getUsed() {
+    return used;
+  }
+
+  public void setUsed(int used) {
+    this.used = used;
+  }
+
+  public int getGaps() {
+    return gaps;
+  }
+
+  public void setGaps(int gaps) {
+    this.gaps = gaps;
+  }
+
+  public int[] getOffsets() {
+    return offsets;
+  }
+
+  public void setOffsets(int[] offsets) {
+    this.offsets = offsets;
+  }
+
+  public int[] getSizes() {
+    return sizes;
+  }
+
+  public void setSizes(int[] sizes) {
+    this.sizes = sizes;
+  }
+
+  public int[] getCapacities() {
+    return capacities;
+  }
+
+  public void setCapacities(int[] capacities) {
+    this.capacities = capacities;
+  }
+
+  public int getBagCount() {
+    return bagCount;
+  }
+
+  public void setBagCount(int bagCount) {
+    this.bagCount = bagCount;
+  }
+
+  /**
+   * Create a new empty bag in the store. An empty bag takes no room in the arena.
+   * @return The number of the new bag.
+   */
+  public int newBag() {
+    if (bagCount == offsets.length) {
+      int length = offsets.length * 2;
+      offsets = Arrays.copyOf(offsets, length);
+      sizes = Arrays.copyOf(sizes, length);
+      capacities = Arrays.copyOf(capacities, length);
+    }
+    offsets[bagCount] = used;
+    return bagCount++;
+  }
+
+  /**
+   * Return a handle for a bag in the store.
+   * @param id The number of the bag, as returned by newBag.
+   * @return The bag.
+   * @throws IndexOutOfBoundsException If there is no bag with that number.
+   */
+  public Bag<T> bag(int id) {
+    Objects.checkIndex(id, bagCount);
+    return new StoredBag(id);
+  }
+
+  /**
+   * @return The number of distinct values in the dictionary, including any no bag holds since the last compact.
+   */
+  public int dictionarySize() {
+    return valueCount;
+  }
+
+  /*
+    The dictionary index is rebuilt from the values after the store is read back.
+   */
+  private HashMap<Object, Integer> ids() {
+    if (ids == null) {
+      ids = new HashMap<>(AbstractBag.trimmedTableCapacity(valueCount));
+      for (int i = 0; i < valueCount; i++) {
+        ids.put(values[i], i);
+      }
+    }
+    return ids;
+  }
+
+  /*
+    Return the number of a value in the dictionary, or -1 if it is not there.
+   */
+  private int idOf(Object value) {
+    Integer id = ids().get(value);
+    return (id == null) ? -1 : id;
+  }
+
+  private int addValue(Object value) {
+    if (valueCount == values.length) {
+      values = Arrays.copyOf(values, values.length * 2);
+    }
+    values[valueCount] = value;
+    ids().put(value, valueCount);
+    return valueCount++;
+  }
+
+  @SuppressWarnings("unchecked")
+  private T valueOf(int id) {
+    return (T) values[id];
+  }
+
+  /*
+    Return the index in the arena of the entry for a value in a bag, or -1 if the bag does not hold it.
+   */
+  private int indexOf(int bag, int id) {
+    int end = offsets[bag] + 2 * sizes[bag];
+    for (int i = offsets[bag]; i < end; i += 2) {
+      if (entries[i] == id) return i;
+    }
+    return -1;
+  }
+
+  /*
+    Make room in a bag's run for one more entry, moving the run to the end of the arena with twice the room unless
+    it is already at the end and can grow in place.
+   */
+  private void growRun(int bag) {
+    int capacity = capacities[bag];
+    if (sizes[bag] < capacity) return;
+    int newCapacity = Math.min(Math.max(2, capacity * 2), maxSize);
+    if (offsets[bag] + 2 * capacity == used) {
+      reserve(2 * (newCapacity - capacity));
+      used += 2 * (newCapacity - capacity);
+    } else {
+      if (gaps + 2 * capacity > used / 2) {
+        pack(false);
+      }
+      reserve(2 * newCapacity);
+      System.arraycopy(entries, offsets[bag], entries, used, 2 * sizes[bag]);
+      gaps += 2 * capacity;
+      offsets[bag] = used;
+      used += 2 * newCapacity;
+    }
+    capacities[bag] = newCapacity;
+  }
+
+  private void reserve(int length) {
+    if (used + length > entries.length) {
+      entries = Arrays.copyOf(entries, Math.max(entries.length * 2, used + length));
+    }
+  }
+
+  /*
+    Give back the unused room in a bag's run.
+   */
+  private void trimRun(int bag) {
+    int spare = 2 * (capacities[bag] - sizes[bag]);
+    if (spare == 0) return;
+    if (offsets[bag] + 2 * capacities[bag] == used) {
+      used -= spare;
+    } else {
+      gaps += spare;
+    }
+    capacities[bag] = sizes[bag];
+  }
+
+  /*
+    Copy the runs, in the order of the bags, into a new arena with no gaps. If exact, each run is cut to the
+    entries in use, and the arena to the runs.
+   */
+  private void pack(boolean exact) {
+    int length = 0;
+    for (int bag = 0; bag < bagCount; bag++) {
+      length += 2 * (exact ? sizes[bag] : capacities[bag]);
+    }
+    int[] packed = new int[exact ? length : Math.max(INITIAL_ARENA, entries.length)];
+    int offset = 0;
+    for (int bag = 0; bag < bagCount; bag++) {
+      System.arraycopy(entries, offsets[bag], packed, offset, 2 * sizes[bag]);
+      offsets[bag] = offset;
+      if (exact) {
+        capacities[bag] = sizes[bag];
+      }
+      offset += 2 * capacities[bag];
+    }
+    entries = packed;
+    used = offset;
+    gaps = 0;
+  }
+
+  /**
+   * Pack every bag's entries together with no spare room, drop the values that no bag holds from the dictionary,
+   * and trim the arrays to their contents. Bags grow again as values are added.
+   */
+  public void compact() {
+    pack(true);
+    int[] renumbered = new int[valueCount];
+    Arrays.fill(renumbered, -1);
+    Object[] kept = new Object[Math.max(1, valueCount)];
+    int keptCount = 0;
+    for (int i = 0; i < used; i += 2) {
+      int id = entries[i];
+      if (renumbered[id] < 0) {
+        renumbered[id] = keptCount;
+        kept[keptCount++] = values[id];
+      }
+      entries[i] = renumbered[id];
+    }
+    values = Arrays.copyOf(kept, Math.max(1, keptCount));
+    valueCount = keptCount;
+    ids = null;
+    offsets = Arrays.copyOf(offsets, Math.max(1, bagCount));
+    sizes = Arrays.copyOf(sizes, offsets.length);
+    capacities = Arrays.copyOf(capacities, offsets.length);
+  }
+
+  /**
+   * @return An estimate of the heap memory used by the store, not counting the values themselves.
+   */
+  public long estimatedMemoryBytes() {
+    long bytes = AbstractBag.objectBytes(5 * 4 + 7 * AbstractBag.REFERENCE)
+        + AbstractBag.arrayBytes(values.length, AbstractBag.REFERENCE) + AbstractBag.arrayBytes(entries.length, 4)
+        + 3 * AbstractBag.arrayBytes(offsets.length, 4);
+    if (ids != null) {
+      // Integer.valueOf caches the ids below 128; each larger one is a boxed Integer.
+      bytes += AbstractBag.hashMapBytes(valueCount, AbstractBag.hashTableCapacity(valueCount))
+          + Math.max(0, valueCount - 128) * AbstractBag.objectBytes(4);
+    }
+    return bytes;
+  }
+
+  /*
+    This class is the Bag handle for one bag in the store. Its only state is the bag's number.
+   */
+  private class StoredBag extends AbstractBag<T> {
+    private final int id;
+
+    StoredBag(int id) {
+      this.id = id;
+      this.orderRelation = BagStore.this.orderRelation;
+    }
+
+    /*
+      A handle is serialized as a standalone copy of its bag, not as the whole store.
+     */
+    private Object writeReplace() {
+      return copy();
+    }
+
+    private ArrayBag<T> copy() {
+      try {
+        ArrayBag<T> copy = new ArrayBag<>(maxSize, orderRelation);
+        for (Iterator<Map.Entry<T, Integer>> iterator = entryIterator(); iterator.hasNext(); ) {
+          Map.Entry<T, Integer> entry = iterator.next();
+          copy.addWithOccurrences(entry.getKey(), entry.getValue());
+        }
+        return copy;
+      } catch (BagException e) {
+        // The store checked maxSize, and the bag holds no more values than that.
+        throw new IllegalStateException(e.getMessage(), e);
+      }
+    }
+
+    public void add(T value) throws BagException {
+      addWithOccurrences(value, 1);
+    }
+
+    public void addWithOccurrences(T value, int occurrences) throws BagException {
+      if (occurrences < 1) return;
+      int valueId = idOf(value);
+      int index = (valueId >= 0) ? indexOf(id, valueId) : -1;
+      if (index >= 0) {
+        entries[index + 1] += occurrences;
+        changed(valueOf(valueId), entries[index + 1] - occurrences, entries[index + 1]);
+      } else if (sizes[id] < maxSize) {
+        if (valueId < 0) {
+          valueId = addValue(value);
+        }
+        growRun(id);
+        index = offsets[id] + 2 * sizes[id];
+        entries[index] = valueId;
+        entries[index + 1] = occurrences;
+        sizes[id]++;
+        changed(valueOf(valueId), 0, occurrences);
+      } else {
+        throw new BagException("Bag is full");
+      }
+    }
+
+    public boolean contains(T value) {
+      int valueId = idOf(value);
+      return valueId >= 0 && indexOf(id, valueId) >= 0;
+    }
+
+    public int countOf(T value) {
+      int valueId = idOf(value);
+      int index = (valueId >= 0) ? indexOf(id, valueId) : -1;
+      return (index >= 0) ? entries[index + 1] : 0;
+    }
+
+    public void remove(T value) {
+      removeWithOccurrences(value, 1);
+    }
+
+    public void removeWithOccurrences(T value, int occurrences) {
+      if (occurrences < 1) return;
+      int valueId = idOf(value);
+      int index = (valueId >= 0) ? indexOf(id, valueId) : -1;
+      if (index < 0) return;
+      int oldCount = entries[index + 1];
+      if (oldCount > occurrences) {
+        entries[index + 1] -= occurrences;
+        changed(valueOf(valueId), oldCount, entries[index + 1]);
+      } else {
+        int last = offsets[id] + 2 * (sizes[id] - 1);
+        entries[index] = entries[last];
+        entries[index + 1] = entries[last + 1];
+        sizes[id]--;
+        changed(valueOf(valueId), oldCount, 0);
+        valueRemoved();
+      }
+    }
+
+    public int size() {
+      return sizes[id];
+    }
+
+    public boolean isEmpty() {
+      return sizes[id] == 0;
+    }
+
+    @Override
+    int capacityLimit() {
+      return maxSize;
+    }
+
+    /*
+      The bag's share of the store: its bookkeeping and its run of the arena. The handle itself is not kept.
+     */
+    @Override
+    public long estimatedMemoryBytes() {
+      return 3 * 4 + 2L * 4 * capacities[id];
+    }
+
+    @Override
+    public void trimToSize() {
+      trimRun(id);
+    }
+
+    /*
+      Another handle for the same bag may have changed it, so the fingerprint of a small bag is computed on each call.
+     */
+    @Override
+    public long fingerprint() {
+      return fingerprintOf(entryIterator());
+    }
+
+    /*
+      Runs no longer than two entries are never worth shrinking.
+     */
+    @Override
+    double occupancy() {
+      return (capacities[id] <= 2) ? 1.0 : (double) sizes[id] / capacities[id];
+    }
+
+    @Override
+    public void persist(String path) throws IOException {
+      copy().persist(path);
+    }
+
+    /*
+      The iterators read the arena through the store on every call, as the run can move when another bag grows.
+     */
+    @Override
+    Iterator<Map.Entry<T, Integer>> entryIterator() {
+      return new Iterator<Map.Entry<T, Integer>>() {
+        private int index = 0;
+
+        public boolean hasNext() {
+          return index < sizes[id];
+        }
+
+        public Map.Entry<T, Integer> next() {
+          int offset = offsets[id] + 2 * index++;
+          return new AbstractMap.SimpleImmutableEntry<>(valueOf(entries[offset]), entries[offset + 1]);
+        }
+      };
+    }
+
+    private class StoredBagIterator implements Iterator<T> {
+      private final boolean allOccurrences;
+      private int index = 0;
+      private int remaining = 0;
+
+      StoredBagIterator(boolean allOccurrences) {
+        this.allOccurrences = allOccurrences;
+      }
+
+      public boolean hasNext() {
+        return remaining > 0 || index < sizes[id];
+      }
+
+      public T next() {
+        int offset = offsets[id] + 2 * index;
+        if (remaining == 0) {
+          remaining = allOccurrences ? entries[offset + 1] : 1;
+          index++;
+        } else {
+          offset -= 2;
+        }
+        remaining--;
+        return valueOf(entries[offset]);
+      }
+    }
+
+    public Iterator<T> iterator() {
+      return new StoredBagIterator(false);
+    }
+
+    public Iterator<T> allOccurrencesIterator() {
+      return new StoredBagIterator(true);
+    }
+  }
+}
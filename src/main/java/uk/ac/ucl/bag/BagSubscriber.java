@@ -0,0 +1,92 @@
+package uk.ac.ucl.bag;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+
+/**
+ * A BagSubscriber adds the values received from a java.util.concurrent.Flow publisher to a bag.
+ *
+ * Values are requested batchSize at a time. The values of a batch are counted in a small buffer, combining repeated
+ * values, and the buffer is added to the bag with one addWithOccurrences call per distinct value once the whole
+ * batch has arrived or the publisher completes. The bag is locked (by synchronizing on it) while a batch is added.
+ *
+ * completion() completes when the publisher completes and every value has been added. If the bag becomes full the
+ * subscription is cancelled and completion() completes with the BagException. A subscriber can only be subscribed
+ * once; any later subscription is cancelled straight away, as the Flow specification requires.
+ *
+ * @param <T> The type of the values received
+ */
+public class BagSubscriber<T> implements Flow.Subscriber<T> {
+  private final Bag<T> bag;
+  private final int batchSize;
+  private final HashMap<T, int[]> buffer = new HashMap<>();
+  private final CompletableFuture<Bag<T>> completion = new CompletableFuture<>();
+  private Flow.Subscription subscription;
+  private int received;
+
+  public BagSubscriber(Bag<T> bag, int batchSize) {
+    this.bag = bag;
+    this.batchSize = Math.max(1, batchSize);
+  }
+
+  /**
+   * @return A future completed with the bag once the publisher has completed and every value has been added.
+   */
+  public CompletableFuture<Bag<T>> completion() {
+    return completion;
+  }
+
+  public synchronized void onSubscribe(Flow.Subscription subscription) {
+    if (this.subscription != null) {
+      subscription.cancel();
+      return;
+    }
+    this.subscription = subscription;
+    subscription.request(batchSize);
+  }
+
+  public void onNext(T value) {
+    if (completion.isDone()) return;
+    buffer.computeIfAbsent(value, key -> new int[1])[0]++;
+    if (++received == batchSize) {
+      received = 0;
+      if (addBuffer()) {
+        subscription.request(batchSize);
+      }
+    }
+  }
+
+  public void onError(Throwable throwable) {
+    if (addBuffer()) {
+      completion.completeExceptionally(throwable);
+    }
+  }
+
+  public void onComplete() {
+    if (addBuffer()) {
+      completion.complete(bag);
+    }
+  }
+
+  /*
+    Add the buffered values to the bag, returning false if the bag became full.
+   */
+  private boolean addBuffer() {
+    try {
+      synchronized (bag) {
+        for (Map.Entry<T, int[]> entry : buffer.entrySet()) {
+          bag.addWithOccurrences(entry.getKey(), entry.getValue()[0]);
+        }
+      }
+      return true;
+    } catch (BagException e) {
+      subscription.cancel();
+      completion.completeExceptionally(e);
+      return false;
+    } finally {
+      buffer.clear();
+    }
+  }
+}
@@ -0,0 +1,188 @@
+package uk.ac.ucl.bag;
+
+import java.io.NotSerializableException;
+import java.io.ObjectStreamException;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Predicate;
+
+/*
+   This class implements a read-only Bag that computes its contents from one or two underlying bags each time it is
+   asked, rather than copying them. It is returned by Bag.mergedView, Bag.uniqueView and Bag.filteredView, and holds
+   nothing but references to the underlying bags, so creating one costs the same whatever their size, and later
+   changes to the underlying bags show through.
+
+   countOf and contains ask the underlying bags for the value. Iteration walks the first bag and then the values of
+   the second that are not in the first, skipping values rejected by the filter, so size has to iterate and costs
+   as much as one pass over the bags. A view that is read many times should be turned into an ordinary bag with
+   materialize. Adding to or removing from a view throws UnsupportedOperationException. A view is serialized as
+   the bag materialize returns.
+ */
+public class BagView<T> extends AbstractBag<T> {
+  private final Bag<T> first;
+  private final Bag<T> second;
+  private final Predicate<? super T> filter;
+  private final boolean unique;
+
+  /*
+    The second bag may be null, and the filter may be null to accept every value. A unique view gives every value
+    a count of 1.
+   */
+  BagView(Bag<T> first, Bag<T> second, Predicate<? super T> filter, boolean unique, Comparator<T> orderRelation) {
+    this.first = first;
+    this.second = second;
+    this.filter = filter;
+    this.unique = unique;
+    this.orderRelation = orderRelation;
+  }
+
+  private boolean accepts(T value) {
+    return filter == null || filter.test(value);
+  }
+
+  public void add(T value) {
+    throw new UnsupportedOperationException("A bag view is read-only");
+  }
+
+  public void addWithOccurrences(T value, int occurrences) {
+    throw new UnsupportedOperationException("A bag view is read-only");
+  }
+
+  public void remove(T value) {
+    throw new UnsupportedOperationException("A bag view is read-only");
+  }
+
+  public void removeWithOccurrences(T value, int occurrences) {
+    throw new UnsupportedOperationException("A bag view is read-only");
+  }
+
+  public boolean contains(T value) {
+    return accepts(value) && (first.contains(value) || (second != null && second.contains(value)));
+  }
+
+  public int countOf(T value) {
+    if (!accepts(value)) return 0;
+    int count = first.countOf(value) + ((second == null) ? 0 : second.countOf(value));
+    return unique ? Math.min(count, 1) : count;
+  }
+
+  public int size() {
+    int size = 0;
+    for (Iterator<T> iterator = iterator(); iterator.hasNext(); iterator.next()) {
+      size++;
+    }
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return !iterator().hasNext();
+  }
+
+  /*
+    A view holds only references to the underlying bags, whose storage is theirs rather than the view's.
+   */
+  @Override
+  public long estimatedMemoryBytes() {
+    return objectBytes(BAG_FIELDS + 3 * REFERENCE + 1);
+  }
+
+  /*
+    A view is never told when the underlying bags change, so it cannot keep a histogram up to date.
+   */
+  @Override
+  public CountHistogram countHistogram() {
+    throw new UnsupportedOperationException("A bag view has no count histogram; materialize it first");
+  }
+
+  /*
+    For the same reason the fingerprint is computed again on every call, which costs one pass over the view.
+   */
+  @Override
+  public long fingerprint() {
+    return fingerprintOf(entryIterator());
+  }
+
+  /**
+   * Copy the contents of the view into a new bag created by the BagFactory.
+   * @return The new bag.
+   * @throws BagException If the view holds more values than the new bag can.
+   */
+  public Bag<T> materialize() throws BagException {
+    Bag<T> result = BagFactory.getInstance().getBag(orderRelation);
+    for (T value : this) {
+      result.addWithOccurrences(value, countOf(value));
+    }
+    return result;
+  }
+
+  private Object writeReplace() throws ObjectStreamException {
+    try {
+      return materialize();
+    } catch (BagException e) {
+      throw new NotSerializableException(e.getMessage());
+    }
+  }
+
+  /*
+    This class iterates over the values of the view, looking one value ahead so that hasNext can skip values
+    rejected by the filter or already returned from the first bag. When allOccurrences is true each value is
+    returned once per occurrence.
+   */
+  private class BagViewIterator implements Iterator<T> {
+    private final boolean allOccurrences;
+    private Iterator<T> values = first.iterator();
+    private boolean inSecond = false;
+    private T next;
+    private boolean hasNext;
+    private T value;
+    private int remaining = 0;
+
+    BagViewIterator(boolean allOccurrences) {
+      this.allOccurrences = allOccurrences;
+      moveToNextValue();
+    }
+
+    private void moveToNextValue() {
+      while (true) {
+        while (values.hasNext()) {
+          T candidate = values.next();
+          if (accepts(candidate) && !(inSecond && first.contains(candidate))) {
+            next = candidate;
+            hasNext = true;
+            return;
+          }
+        }
+        if (inSecond || second == null) {
+          hasNext = false;
+          return;
+        }
+        values = second.iterator();
+        inSecond = true;
+      }
+    }
+
+    public boolean hasNext() {
+      return remaining > 0 || hasNext;
+    }
+
+    public T next() {
+      if (remaining == 0) {
+        if (!hasNext) throw new NoSuchElementException();
+        value = next;
+        remaining = allOccurrences ? countOf(value) : 1;
+        moveToNextValue();
+      }
+      remaining--;
+      return value;
+    }
+  }
+
+  public Iterator<T> iterator() {
+    return new BagViewIterator(false);
+  }
+
+  public Iterator<T> allOccurrencesIterator() {
+    return new BagViewIterator(true);
+  }
+}
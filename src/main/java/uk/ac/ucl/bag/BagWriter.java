@@ -0,0 +1,202 @@
+package uk.ac.ucl.bag;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A BagWriter lets many threads add values to one target bag without contending on it for every add.
+ *
+ * Each thread adds to a small buffer of its own, in which repeated adds of the same value are combined into a
+ * single count. A buffer is flushed into the target with one addWithOccurrences call per buffered value when it
+ * holds maxBuffered distinct values, when its oldest add is older than maxDelayMillis, or when flush or flushAll
+ * is called. Hot values therefore reach the target once per flush rather than once per add.
+ *
+ * The target is locked (by synchronizing on it) while a buffer is flushed into it, so any Bag can be used as the
+ * target; other code using the target while the writer is in use should synchronize on it as well. Values are
+ * combined in the buffers using equals and hashCode. Values added are only visible in the target once they have
+ * been flushed; close flushes every buffer. The buffer of a thread that has died is dropped once it has been
+ * flushed by flushAll or the background thread.
+ *
+ * If maxDelayMillis is positive, a background thread also flushes buffers that have been left idle for longer
+ * than that. A BagException raised by such a flush is rethrown by the next call to flush, flushAll or close.
+ *
+ * @param <T> The type of the values added
+ */
+public class BagWriter<T> implements AutoCloseable {
+  /*
+    The values buffered by one thread. The buffer is only locked by its own thread and by flushAll, so the lock
+    is almost never contended. The thread is held weakly, so that the list of buffers does not keep it alive.
+   */
+  private static class Buffer<E> {
+    final HashMap<E, int[]> counts = new HashMap<>();
+    final WeakReference<Thread> owner = new WeakReference<>(Thread.currentThread());
+    long firstAddNanos;
+  }
+
+  private final Bag<T> target;
+  private final int maxBuffered;
+  private final long maxDelayNanos;
+  private final List<Buffer<T>> buffers = new CopyOnWriteArrayList<>();
+  private final ThreadLocal<Buffer<T>> localBuffer = ThreadLocal.withInitial(this::newBuffer);
+  private final ScheduledExecutorService timer;
+  private volatile BagException backgroundFailure;
+
+  /**
+   * @param target The bag the buffered values are flushed into.
+   * @param maxBuffered The number of distinct values a buffer holds before it is flushed.
+   * @param maxDelayMillis The age in milliseconds of a buffered add at which its buffer is flushed, or 0 to only
+   *                       flush when the buffer is full or on request.
+   */
+  public BagWriter(Bag<T> target, int maxBuffered, long maxDelayMillis) {
+    this.target = target;
+    this.maxBuffered = Math.max(1, maxBuffered);
+    this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxDelayMillis));
+    if (maxDelayMillis > 0) {
+      timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "BagWriter flush");
+        thread.setDaemon(true);
+        return thread;
+      });
+      timer.scheduleWithFixedDelay(this::flushIdle, maxDelayMillis, maxDelayMillis, TimeUnit.MILLISECONDS);
+    } else {
+      timer = null;
+    }
+  }
+
+  private Buffer<T> newBuffer() {
+    Buffer<T> buffer = new Buffer<>();
+    buffers.add(buffer);
+    return buffer;
+  }
+
+  public void add(T value) throws BagException {
+    addWithOccurrences(value, 1);
+  }
+
+  /**
+   * Buffer occurrences of a value, flushing the calling thread's buffer if it is full or too old.
+   * @param value The value to add.
+   * @param occurrences The number of occurrences of the value.
+   * @throws BagException If a flush fails because the target is full.
+   */
+  public void addWithOccurrences(T value, int occurrences) throws BagException {
+    if (occurrences < 1) return;
+    Buffer<T> buffer = localBuffer.get();
+    synchronized (buffer) {
+      if (buffer.counts.isEmpty()) {
+        buffer.firstAddNanos = System.nanoTime();
+      }
+      int[] count = buffer.counts.get(value);
+      if (count == null) {
+        buffer.counts.put(value, new int[] {occurrences});
+      } else {
+        count[0] += occurrences;
+      }
+      if (buffer.counts.size() >= maxBuffered || isStale(buffer, System.nanoTime())) {
+        flush(buffer);
+      }
+    }
+  }
+
+  private boolean isStale(Buffer<T> buffer, long now) {
+    return maxDelayNanos > 0 && !buffer.counts.isEmpty() && now - buffer.firstAddNanos >= maxDelayNanos;
+  }
+
+  /*
+    Move the contents of a buffer into the target. If the target becomes full, the values not yet added stay in
+    the buffer.
+   */
+  private void flush(Buffer<T> buffer) throws BagException {
+    synchronized (buffer) {
+      if (buffer.counts.isEmpty()) return;
+      synchronized (target) {
+        Iterator<Map.Entry<T, int[]>> iterator = buffer.counts.entrySet().iterator();
+        while (iterator.hasNext()) {
+          Map.Entry<T, int[]> entry = iterator.next();
+          target.addWithOccurrences(entry.getKey(), entry.getValue()[0]);
+          iterator.remove();
+        }
+      }
+    }
+  }
+
+  /*
+    Drop a buffer that is empty and whose thread has died, as nothing can be added to it any more.
+   */
+  private void removeIfAbandoned(Buffer<T> buffer) {
+    synchronized (buffer) {
+      Thread owner = buffer.owner.get();
+      if (buffer.counts.isEmpty() && (owner == null || !owner.isAlive())) {
+        buffers.remove(buffer);
+      }
+    }
+  }
+
+  private void flushIdle() {
+    long now = System.nanoTime();
+    for (Buffer<T> buffer : buffers) {
+      try {
+        synchronized (buffer) {
+          if (isStale(buffer, now)) flush(buffer);
+        }
+        removeIfAbandoned(buffer);
+      } catch (BagException e) {
+        backgroundFailure = e;
+      }
+    }
+  }
+
+  /*
+    The number of buffers held, for testing.
+   */
+  int bufferCount() {
+    return buffers.size();
+  }
+
+  private void rethrowBackgroundFailure() throws BagException {
+    BagException failure = backgroundFailure;
+    if (failure != null) {
+      backgroundFailure = null;
+      throw failure;
+    }
+  }
+
+  /**
+   * Flush the calling thread's buffer into the target.
+   * @throws BagException If the target becomes full.
+   */
+  public void flush() throws BagException {
+    rethrowBackgroundFailure();
+    flush(localBuffer.get());
+  }
+
+  /**
+   * Flush the buffers of every thread into the target.
+   * @throws BagException If the target becomes full.
+   */
+  public void flushAll() throws BagException {
+    rethrowBackgroundFailure();
+    for (Buffer<T> buffer : buffers) {
+      flush(buffer);
+      removeIfAbandoned(buffer);
+    }
+  }
+
+  /**
+   * Stop the background flushing, if any, and flush every buffer into the target.
+   * @throws BagException If the target becomes full.
+   */
+  public void close() throws BagException {
+    if (timer != null) {
+      timer.shutdown();
+    }
+    flushAll();
+  }
+}
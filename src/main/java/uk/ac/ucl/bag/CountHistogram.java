@@ -0,0 +1,116 @@
+package uk.ac.ucl.bag;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A CountHistogram holds the count of counts of a bag: for each k, the number of distinct values that occur
+ * exactly k times. It is created by the first call to Bag.countHistogram and then updated by the bag on every add
+ * and remove, so statistics such as those used for Good-Turing smoothing can be read without scanning the bag.
+ *
+ * Counts below 65536 are held in an array, with a Fenwick tree over it giving the number of values with a count in
+ * a range, so valuesWithCount is O(1) and the cumulative queries are O(log k). The array grows as larger counts
+ * appear. The few values with larger counts are held in a sorted map, and cumulative queries above the array add
+ * up the map entries in range.
+ */
+public class CountHistogram {
+  private static final int DENSE_LIMIT = 1 << 16;
+
+  // exact[k] is the number of values with count k, and tree is a Fenwick tree over exact (index 0 unused).
+  private int[] exact = new int[16];
+  private int[] tree = new int[16];
+  private final TreeMap<Integer, Integer> large = new TreeMap<>();
+  private int largeValues = 0;
+  private int values = 0;
+
+  /*
+    Record that a value's count changed, a count of 0 meaning the value is not in the bag.
+   */
+  synchronized void update(int oldCount, int newCount) {
+    if (oldCount == newCount) return;
+    if (oldCount > 0) adjust(oldCount, -1);
+    if (newCount > 0) adjust(newCount, 1);
+  }
+
+  private void adjust(int count, int delta) {
+    values += delta;
+    if (count >= DENSE_LIMIT) {
+      largeValues += delta;
+      if (large.merge(count, delta, Integer::sum) == 0) {
+        large.remove(count);
+      }
+      return;
+    }
+    if (count >= exact.length) {
+      grow(count + 1);
+    }
+    exact[count] += delta;
+    for (int i = count; i < tree.length; i += i & -i) {
+      tree[i] += delta;
+    }
+  }
+
+  private void grow(int capacity) {
+    int length = exact.length;
+    while (length < capacity) {
+      length *= 2;
+    }
+    exact = Arrays.copyOf(exact, Math.min(length, DENSE_LIMIT));
+    tree = new int[exact.length];
+    for (int i = 1; i < tree.length; i++) {
+      tree[i] += exact[i];
+      int parent = i + (i & -i);
+      if (parent < tree.length) {
+        tree[parent] += tree[i];
+      }
+    }
+  }
+
+  /**
+   * @return The number of distinct values in the bag.
+   */
+  public synchronized int getDistinctValues() {
+    return values;
+  }
+
+  /**
+   * @param k The count.
+   * @return The number of values that occur exactly k times.
+   */
+  public synchronized int valuesWithCount(int k) {
+    if (k <= 0) return 0;
+    if (k < exact.length) return exact[k];
+    return (k < DENSE_LIMIT) ? 0 : large.getOrDefault(k, 0);
+  }
+
+  /**
+   * @param k The count.
+   * @return The number of values that occur at most k times.
+   */
+  public synchronized int valuesWithCountAtMost(int k) {
+    if (k <= 0) return 0;
+    if (k < exact.length) {
+      int sum = 0;
+      for (int i = k; i > 0; i -= i & -i) {
+        sum += tree[i];
+      }
+      return sum;
+    }
+    int sum = values - largeValues;
+    if (k >= DENSE_LIMIT) {
+      for (Map.Entry<Integer, Integer> entry : large.headMap(k, true).entrySet()) {
+        sum += entry.getValue();
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * @param k The count.
+   * @return The number of values that occur at least k times.
+   */
+  public synchronized int valuesWithCountAtLeast(int k) {
+    return values - valuesWithCountAtMost(k - 1);
+  }
+}
@@ -0,0 +1,529 @@
+package uk.ac.ucl.bag;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.AbstractMap;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/*
+   This class implements a bounded Bag that, instead of throwing BagException when a new value is added while it
+   is full, evicts the value with the lowest count, choosing the least recently added to among values with equal
+   counts. It is meant for tracking the most frequent values of an unbounded stream in a fixed amount of memory.
+
+   Values are held in buckets, one per distinct count, kept in a doubly linked list in increasing order of count.
+   Each bucket holds its values in a doubly linked list in the order they last reached that count, and a HashMap
+   finds the entry of a value. Adding an occurrence moves the entry to the end of the next bucket up, and the
+   victim is always the first entry of the lowest bucket, so both take O(1). Adding or removing several
+   occurrences at once walks past the buckets in between.
+
+   With an aging period set, every time that many occurrences have been added all the counts are halved, rounding
+   down, in the style of TinyLFU, so values that were frequent long ago give way to values frequent now. Values
+   whose count halves to zero leave the bag. EvictionListeners are told of every value that leaves the bag without
+   being removed, by eviction or by aging.
+
+   Values are matched with equals and hashCode, so values that are equal according to the order relation must also
+   be equal by equals. Iteration returns values in eviction order, next to be evicted first.
+   It is implemented as a JavaBeans component @see AbstractBag.java; the contents property holds the counts in
+   eviction order.
+ */
+public class EvictingBag<T> extends AbstractBag<T> {
+  /**
+   * Told of each value that leaves the bag by eviction or aging, on the thread that caused it.
+   */
+  public interface EvictionListener<T> {
+    void evicted(T value, int count);
+  }
+
+  private static class Entry<E> {
+    E value;
+    Bucket<E> bucket;
+    Entry<E> previous;
+    Entry<E> next;
+
+    Entry(E value) {
+      this.value = value;
+    }
+  }
+
+  private static class Bucket<E> {
+    int count;
+    Entry<E> first;
+    Entry<E> last;
+    Bucket<E> lower;
+    Bucket<E> higher;
+  }
+
+  private int maxSize;
+  private int agingPeriod;
+  private transient int addedSinceAging;
+  private transient HashMap<T, Entry<T>> entries;
+  private transient int tableCapacity;
+  private transient Bucket<T> lowest;
+  // An emptied bucket kept for reuse, so that moving a value to a new count does not allocate each time.
+  private transient Bucket<T> spare;
+  private transient List<EvictionListener<T>> listeners = new CopyOnWriteArrayList<>();
+
+  public EvictingBag() throws BagException {
+    this(MAX_SIZE, Comparator.comparing(Objects::hashCode));
+  }
+
+  public EvictingBag(int maxSize, Comparator<T> orderRelation) throws BagException {
+    this(maxSize, orderRelation, 0);
+  }
+
+  /**
+   * Create an evicting bag.
+   * @param maxSize The number of distinct values held before adding another evicts one.
+   * @param orderRelation The order relation of the bag.
+   * @param agingPeriod The number of occurrences added between halvings of the counts, or 0 never to halve them.
+   * @throws BagException If the size is out of range or the aging period is negative.
+   */
+  public EvictingBag(int maxSize, Comparator<T> orderRelation, int agingPeriod) throws BagException {
+    if (maxSize > MAX_SIZE) {
+      throw new BagException("Attempting to create a Bag with size greater than maximum");
+    }
+    if (maxSize < 1) {
+      throw new BagException("Attempting to create a Bag with size less than 1");
+    }
+    if (agingPeriod < 0) {
+      throw new BagException("Attempting to create a Bag with a negative aging period");
+    }
+    this.maxSize = maxSize;
+    this.agingPeriod = agingPeriod;
+    this.orderRelation = orderRelation;
+    entries = new HashMap<>();
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  public void setMaxSize(int maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  public int getAgingPeriod() {
+    return agingPeriod;
+  }
+
+  public void setAgingPeriod(int agingPeriod) {
+    this.agingPeriod = agingPeriod;
+  }
+
+  /*
+    The contents as a map from each value to its count, in eviction order. Setting it replaces the contents.
+   */
+  public LinkedHashMap<T, Integer> getContents() {
+    LinkedHashMap<T, Integer> contents = new LinkedHashMap<>();
+    for (Bucket<T> bucket = lowest; bucket != null; bucket = bucket.higher) {
+      for (Entry<T> entry = bucket.first; entry != null; entry = entry.next) {
+        contents.put(entry.value, bucket.count);
+      }
+    }
+    return contents;
+  }
+
+  public void setContents(LinkedHashMap<T, Integer> contents) {
+    entries = new HashMap<>();
+    tableCapacity = 0;
+    lowest = null;
+    for (Map.Entry<T, Integer> entry : contents.entrySet()) {
+      insert(entry.getKey(), entry.getValue());
+    }
+  }
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    writeEntries(out);
+  }
+
+  /*
+    The entries are written in eviction order, so inserting them in turn restores the order.
+   */
+  @SuppressWarnings("unchecked")
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    listeners = new CopyOnWriteArrayList<>();
+    entries = new HashMap<>();
+    int count = BagDelta.readVarInt(in);
+    if (count > maxSize) {
+      throw new InvalidObjectException("Bag holds more values than its maximum size");
+    }
+    for (int i = 0; i < count; i++) {
+      T value = (T) in.readObject();
+      insert(value, BagDelta.readVarInt(in));
+    }
+  }
+
+  public void addEvictionListener(EvictionListener<T> listener) {
+    listeners.add(listener);
+  }
+
+  public void removeEvictionListener(EvictionListener<T> listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Return the value that adding a new value would evict.
+   * @return The value, or null if the bag is empty.
+   */
+  public T nextEviction() {
+    return (lowest == null) ? null : lowest.first.value;
+  }
+
+  /*
+    Return the bucket for count, creating it if there is none, by walking the buckets from the one given. The
+    walk passes one bucket per distinct count between the two, so it is O(1) when the count changes by one.
+   */
+  private Bucket<T> bucketFor(int count, Bucket<T> from) {
+    Bucket<T> at = from;
+    if (at == null) {
+      at = lowest;
+      if (at == null) {
+        lowest = newBucket(count);
+        return lowest;
+      }
+    }
+    while (at.count < count && at.higher != null && at.higher.count <= count) {
+      at = at.higher;
+    }
+    while (at.count > count && at.lower != null && at.lower.count >= count) {
+      at = at.lower;
+    }
+    if (at.count == count) return at;
+    Bucket<T> created = newBucket(count);
+    if (at.count < count) {
+      created.lower = at;
+      created.higher = at.higher;
+      if (at.higher != null) at.higher.lower = created;
+      at.higher = created;
+    } else {
+      created.higher = at;
+      created.lower = at.lower;
+      if (at.lower != null) {
+        at.lower.higher = created;
+      } else {
+        lowest = created;
+      }
+      at.lower = created;
+    }
+    return created;
+  }
+
+  private Bucket<T> newBucket(int count) {
+    Bucket<T> bucket = (spare != null) ? spare : new Bucket<>();
+    spare = null;
+    bucket.count = count;
+    return bucket;
+  }
+
+  /*
+    Append an entry to the end of a bucket, making it the most recent value with that count.
+   */
+  private void append(Entry<T> entry, Bucket<T> bucket) {
+    entry.bucket = bucket;
+    entry.previous = bucket.last;
+    entry.next = null;
+    if (bucket.last != null) {
+      bucket.last.next = entry;
+    } else {
+      bucket.first = entry;
+    }
+    bucket.last = entry;
+  }
+
+  /*
+    Take an entry out of its bucket, leaving the bucket in the list even if it is now empty.
+   */
+  private void detach(Entry<T> entry) {
+    Bucket<T> bucket = entry.bucket;
+    if (entry.previous != null) {
+      entry.previous.next = entry.next;
+    } else {
+      bucket.first = entry.next;
+    }
+    if (entry.next != null) {
+      entry.next.previous = entry.previous;
+    } else {
+      bucket.last = entry.previous;
+    }
+    entry.previous = null;
+    entry.next = null;
+  }
+
+  /*
+    Unlink a bucket from the list if it has no entries left, keeping it as the spare.
+   */
+  private void dropIfEmpty(Bucket<T> bucket) {
+    if (bucket.first != null) return;
+    if (bucket.lower != null) {
+      bucket.lower.higher = bucket.higher;
+    } else {
+      lowest = bucket.higher;
+    }
+    if (bucket.higher != null) {
+      bucket.higher.lower = bucket.lower;
+    }
+    bucket.lower = null;
+    bucket.higher = null;
+    spare = bucket;
+  }
+
+  /*
+    Move an entry to the bucket for a new, positive, count.
+   */
+  private void move(Entry<T> entry, int count) {
+    Bucket<T> old = entry.bucket;
+    detach(entry);
+    append(entry, bucketFor(count, old));
+    dropIfEmpty(old);
+  }
+
+  private void insert(T value, int count) {
+    Entry<T> entry = new Entry<>(value);
+    entries.put(value, entry);
+    tableCapacity = grownTableCapacity(tableCapacity, entries.size());
+    append(entry, bucketFor(count, null));
+  }
+
+  /*
+    Take an entry out of the bag altogether.
+   */
+  private void delete(Entry<T> entry) {
+    Bucket<T> bucket = entry.bucket;
+    detach(entry);
+    dropIfEmpty(bucket);
+    entries.remove(entry.value);
+  }
+
+  private void evict() {
+    Entry<T> victim = lowest.first;
+    int count = lowest.count;
+    delete(victim);
+    changed(victim.value, count, 0);
+    notifyEvicted(victim.value, count);
+  }
+
+  private void notifyEvicted(T value, int count) {
+    if (!listeners.isEmpty()) {
+      for (EvictionListener<T> listener : listeners) {
+        listener.evicted(value, count);
+      }
+    }
+  }
+
+  /*
+    Halve every count. The buckets are visited in increasing order, and as halving keeps that order, each bucket
+    either keeps its place with half its count or, when two counts halve to the same value, has its entries moved
+    to the end of the bucket below. The entries of the lowest bucket leave the bag when their count was 1.
+   */
+  private void age() {
+    addedSinceAging = 0;
+    Bucket<T> bucket = lowest;
+    while (bucket != null) {
+      Bucket<T> higher = bucket.higher;
+      int oldCount = bucket.count;
+      int newCount = oldCount / 2;
+      if (newCount == 0) {
+        while (bucket.first != null) {
+          Entry<T> entry = bucket.first;
+          delete(entry);
+          changed(entry.value, oldCount, 0);
+          notifyEvicted(entry.value, oldCount);
+        }
+      } else if (bucket.lower != null && bucket.lower.count == newCount) {
+        Bucket<T> lower = bucket.lower;
+        while (bucket.first != null) {
+          Entry<T> entry = bucket.first;
+          detach(entry);
+          append(entry, lower);
+          changed(entry.value, oldCount, newCount);
+        }
+        dropIfEmpty(bucket);
+      } else {
+        bucket.count = newCount;
+        if (trackingChanges()) {
+          for (Entry<T> entry = bucket.first; entry != null; entry = entry.next) {
+            changed(entry.value, oldCount, newCount);
+          }
+        }
+      }
+      bucket = higher;
+    }
+  }
+
+  public void add(T value) throws BagException {
+    addWithOccurrences(value, 1);
+  }
+
+  /*
+    Adding a new value to a full bag evicts a value first, so this never throws BagException.
+   */
+  public void addWithOccurrences(T value, int occurrences) throws BagException {
+    if (occurrences < 1) return;
+    Entry<T> entry = entries.get(canonical(value));
+    if (entry != null) {
+      int oldCount = entry.bucket.count;
+      move(entry, oldCount + occurrences);
+      changed(entry.value, oldCount, oldCount + occurrences);
+    } else {
+      while (entries.size() >= maxSize && lowest != null) {
+        evict();
+      }
+      T stored = intern(value);
+      insert(stored, occurrences);
+      changed(stored, 0, occurrences);
+    }
+    if (agingPeriod > 0) {
+      addedSinceAging += occurrences;
+      if (addedSinceAging >= agingPeriod) {
+        age();
+      }
+    }
+  }
+
+  public boolean contains(T value) {
+    return entries.containsKey(canonical(value));
+  }
+
+  public int countOf(T value) {
+    Entry<T> entry = entries.get(canonical(value));
+    return (entry == null) ? 0 : entry.bucket.count;
+  }
+
+  public void remove(T value) {
+    removeWithOccurrences(value, 1);
+  }
+
+  public void removeWithOccurrences(T value, int occurrences) {
+    if (occurrences < 1) return;
+    Entry<T> entry = entries.get(canonical(value));
+    if (entry == null) return;
+    int oldCount = entry.bucket.count;
+    if (oldCount <= occurrences) {
+      delete(entry);
+      changed(entry.value, oldCount, 0);
+      valueRemoved();
+    } else {
+      move(entry, oldCount - occurrences);
+      changed(entry.value, oldCount, oldCount - occurrences);
+    }
+  }
+
+  public boolean isEmpty() {
+    return entries.isEmpty();
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  @Override
+  boolean readOnlyLookups() {
+    return true;
+  }
+
+  /*
+    The object's fields are maxSize, agingPeriod, addedSinceAging, tableCapacity and four references, and each
+    value has an Entry as well as its HashMap node. Each bucket has its own object.
+   */
+  @Override
+  public long estimatedMemoryBytes() {
+    int buckets = (spare != null) ? 1 : 0;
+    for (Bucket<T> bucket = lowest; bucket != null; bucket = bucket.higher) {
+      buckets++;
+    }
+    return objectBytes(BAG_FIELDS + 4 * 4 + 4 * REFERENCE) + hashMapBytes(entries.size(), tableCapacity)
+        + entries.size() * objectBytes(4 * REFERENCE) + buckets * objectBytes(4 + 4 * REFERENCE);
+  }
+
+  @Override
+  public void trimToSize() {
+    spare = null;
+    if (tableCapacity > trimmedTableCapacity(entries.size())) {
+      entries = trimmedCopy(entries);
+      tableCapacity = trimmedTableCapacity(entries.size());
+    }
+  }
+
+  @Override
+  double occupancy() {
+    return (tableCapacity <= 16) ? 1.0 : (double) entries.size() / tableCapacity;
+  }
+
+  /*
+    This class iterates over the values in eviction order, returning each value once, or once per occurrence when
+    allOccurrences is true.
+   */
+  private class EvictingBagIterator implements Iterator<T> {
+    private final boolean allOccurrences;
+    private Bucket<T> bucket = lowest;
+    private Entry<T> entry = (lowest == null) ? null : lowest.first;
+    private int remaining;
+
+    EvictingBagIterator(boolean allOccurrences) {
+      this.allOccurrences = allOccurrences;
+      remaining = (entry == null) ? 0 : occurrences();
+    }
+
+    private int occurrences() {
+      return allOccurrences ? bucket.count : 1;
+    }
+
+    public boolean hasNext() {
+      return entry != null;
+    }
+
+    public T next() {
+      if (entry == null) throw new NoSuchElementException();
+      T value = entry.value;
+      if (--remaining == 0) {
+        entry = entry.next;
+        if (entry == null && bucket.higher != null) {
+          bucket = bucket.higher;
+          entry = bucket.first;
+        }
+        if (entry != null) {
+          remaining = occurrences();
+        }
+      }
+      return value;
+    }
+  }
+
+  public Iterator<T> iterator() {
+    return new EvictingBagIterator(false);
+  }
+
+  public Iterator<T> allOccurrencesIterator() {
+    return new EvictingBagIterator(true);
+  }
+
+  /*
+    Return the values and counts by walking the buckets, in eviction order.
+   */
+  @Override
+  Iterator<Map.Entry<T, Integer>> entryIterator() {
+    EvictingBagIterator values = new EvictingBagIterator(false);
+    return new Iterator<Map.Entry<T, Integer>>() {
+      public boolean hasNext() {
+        return values.hasNext();
+      }
+
+      public Map.Entry<T, Integer> next() {
+        int count = values.bucket.count;
+        return new AbstractMap.SimpleImmutableEntry<>(values.next(), count);
+      }
+    };
+  }
+}
@@ -0,0 +1,274 @@
+package uk.ac.ucl.bag;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * An ExternalBagMerger merges bags that together are too large to hold in memory, writing the result to a
+ * BagSegment file.
+ *
+ * Each operand is read once, as a stream of entries in any order, and spilled to disk as sorted runs of at most
+ * runEntries entries, each run being a temporary segment file with repeated values combined. merge then reads the
+ * runs together, in order, keeping one entry per run in a priority queue, and writes each value's merged count to the
+ * output segment as soon as all its entries have been read.
+ *
+ * At most maxFanIn runs are open at once. If there are more, merge first combines groups of maxFanIn runs into
+ * longer runs, adding up the counts of runs whose counts are combined the same way in the result, until no more than
+ * maxFanIn runs remain. The memory used, and the number of files open and mapped, is therefore bounded by runEntries
+ * and maxFanIn however large the operands are, at the cost of reading and writing the entries once more for each
+ * intermediate pass.
+ *
+ * The operands are combined as MergedBag does: SUM adds the counts of every operand, UNIQUE gives each value a count
+ * of 1, and DIFFERENCE subtracts the counts of every later operand from the first, leaving out values whose count
+ * is not positive. Values are compared with the order relation, and written with the codec, so both must be the
+ * ones used to read the output. The run files are deleted by merge or close.
+ *
+ * @param <T> The type of the values merged
+ */
+public class ExternalBagMerger<T> implements AutoCloseable {
+  public static final int DEFAULT_RUN_ENTRIES = 1 << 20;
+  public static final int DEFAULT_MAX_FAN_IN = 128;
+
+  private final Comparator<T> orderRelation;
+  private final BagSegment.Codec<T> codec;
+  private final Path tempDirectory;
+  private final int runEntries;
+  private final int maxFanIn;
+  private final List<Path> runs = new ArrayList<>();
+  private final List<Integer> runOperands = new ArrayList<>();
+  private int operandCount = 0;
+
+  /**
+   * @param orderRelation The order relation used to sort the entries.
+   * @param codec The codec used to write values to the run and output files.
+   * @param tempDirectory The directory the run files are written to.
+   * @param runEntries The number of entries held in memory before a run is spilled.
+   */
+  public ExternalBagMerger(Comparator<T> orderRelation, BagSegment.Codec<T> codec, Path tempDirectory,
+                           int runEntries) {
+    this(orderRelation, codec, tempDirectory, runEntries, DEFAULT_MAX_FAN_IN);
+  }
+
+  /**
+   * @param orderRelation The order relation used to sort the entries.
+   * @param codec The codec used to write values to the run and output files.
+   * @param tempDirectory The directory the run files are written to.
+   * @param runEntries The number of entries held in memory before a run is spilled.
+   * @param maxFanIn The largest number of runs merged at once, at least 2.
+   */
+  public ExternalBagMerger(Comparator<T> orderRelation, BagSegment.Codec<T> codec, Path tempDirectory,
+                           int runEntries, int maxFanIn) {
+    this.orderRelation = orderRelation;
+    this.codec = codec;
+    this.tempDirectory = tempDirectory;
+    this.runEntries = Math.max(1, runEntries);
+    this.maxFanIn = Math.max(2, maxFanIn);
+  }
+
+  /**
+   * Add the next operand, spilling its contents to run files.
+   * @param bag The operand.
+   * @throws IOException If a run file cannot be written.
+   */
+  public void addOperand(Bag<T> bag) throws IOException {
+    addOperand(bag.entryStream().iterator());
+  }
+
+  /**
+   * Add the next operand as a stream of entries, which may be in any order and may repeat values.
+   * @param entries The values of the operand and their counts.
+   * @throws IOException If a run file cannot be written.
+   */
+  public void addOperand(Iterator<? extends Map.Entry<T, Integer>> entries) throws IOException {
+    int operand = operandCount++;
+    List<Map.Entry<T, Integer>> buffer = new ArrayList<>();
+    while (entries.hasNext()) {
+      buffer.add(entries.next());
+      if (buffer.size() == runEntries) {
+        spill(buffer, operand);
+      }
+    }
+    if (!buffer.isEmpty()) {
+      spill(buffer, operand);
+    }
+  }
+
+  private void spill(List<Map.Entry<T, Integer>> buffer, int operand) throws IOException {
+    buffer.sort((a, b) -> orderRelation.compare(a.getKey(), b.getKey()));
+    Path run = Files.createTempFile(tempDirectory, "run", ".seg");
+    boolean complete = false;
+    try (BagSegment.Writer<T> writer =
+             new BagSegment.Writer<>(run, orderRelation, codec, BagSegment.DEFAULT_BLOCK_ENTRIES)) {
+      int i = 0;
+      while (i < buffer.size()) {
+        T value = buffer.get(i).getKey();
+        long count = 0;
+        while (i < buffer.size() && orderRelation.compare(buffer.get(i).getKey(), value) == 0) {
+          count += buffer.get(i).getValue();
+          i++;
+        }
+        if (count > 0) {
+          writer.add(value, Math.toIntExact(count));
+        }
+      }
+      complete = true;
+    } finally {
+      if (!complete) {
+        Files.deleteIfExists(run);
+      }
+    }
+    runs.add(run);
+    runOperands.add(operand);
+    buffer.clear();
+  }
+
+  /*
+    The position of the merge in one run.
+   */
+  private static class Cursor<E> {
+    final Iterator<Map.Entry<E, Integer>> entries;
+    final int operand;
+    Map.Entry<E, Integer> current;
+
+    Cursor(BagSegment<E> segment, int operand) {
+      this.entries = segment.entries();
+      this.operand = operand;
+    }
+
+    boolean advance() {
+      current = entries.hasNext() ? entries.next() : null;
+      return current != null;
+    }
+  }
+
+  /**
+   * Merge the operands added so far into a new segment file, and delete the run files.
+   * @param mode How the operands are combined.
+   * @param output The segment file to write.
+   * @return The number of distinct values written.
+   * @throws IOException If a file cannot be read or written.
+   * @throws ArithmeticException If a merged count does not fit in an int.
+   */
+  public int merge(MergedBag.Mode mode, Path output) throws IOException {
+    try {
+      reduceFanIn(mode);
+      return mergeRuns(runs, runOperands, mode, output);
+    } finally {
+      close();
+    }
+  }
+
+  /*
+    Runs whose counts are added together in the result: the subtracted operands of a difference, and everything
+    else. Only runs of the same group are combined by an intermediate pass.
+   */
+  private static int groupOf(MergedBag.Mode mode, int operand) {
+    return (mode == MergedBag.Mode.DIFFERENCE && operand > 0) ? 1 : 0;
+  }
+
+  /*
+    Combine runs of the same group, maxFanIn at a time and taking the group with the most runs first, until at
+    most maxFanIn runs are left. The combined run replaces its inputs at the end of the list, so runs are merged
+    level by level.
+   */
+  private void reduceFanIn(MergedBag.Mode mode) throws IOException {
+    while (runs.size() > maxFanIn) {
+      int[] groupSizes = new int[2];
+      for (int operand : runOperands) {
+        groupSizes[groupOf(mode, operand)]++;
+      }
+      int group = (groupSizes[0] >= groupSizes[1]) ? 0 : 1;
+      List<Path> inputs = new ArrayList<>();
+      List<Integer> operands = new ArrayList<>();
+      for (int i = 0; i < runs.size() && inputs.size() < maxFanIn; i++) {
+        if (groupOf(mode, runOperands.get(i)) == group) {
+          inputs.add(runs.get(i));
+          operands.add(runOperands.get(i));
+        }
+      }
+      Path combined = Files.createTempFile(tempDirectory, "run", ".seg");
+      runs.add(combined);
+      runOperands.add(operands.get(0));
+      mergeRuns(inputs, operands, MergedBag.Mode.SUM, combined);
+      for (Path input : inputs) {
+        int index = runs.indexOf(input);
+        runs.remove(index);
+        runOperands.remove(index);
+        Files.deleteIfExists(input);
+      }
+    }
+  }
+
+  /*
+    Merge the given runs, combining the counts of each value by mode, and write the result to output. If the merge
+    fails, output is deleted rather than left holding the part of the result written so far.
+   */
+  private int mergeRuns(List<Path> inputs, List<Integer> operands, MergedBag.Mode mode, Path output)
+      throws IOException {
+    PriorityQueue<Cursor<T>> cursors = new PriorityQueue<>(Math.max(1, inputs.size()),
+        (a, b) -> orderRelation.compare(a.current.getKey(), b.current.getKey()));
+    List<BagSegment<T>> segments = new ArrayList<>();
+    int written = 0;
+    boolean complete = false;
+    try (BagSegment.Writer<T> writer =
+             new BagSegment.Writer<>(output, orderRelation, codec, BagSegment.DEFAULT_BLOCK_ENTRIES)) {
+      for (int i = 0; i < inputs.size(); i++) {
+        BagSegment<T> segment = BagSegment.open(inputs.get(i), orderRelation, codec);
+        segments.add(segment);
+        Cursor<T> cursor = new Cursor<>(segment, operands.get(i));
+        if (cursor.advance()) {
+          cursors.add(cursor);
+        }
+      }
+      while (!cursors.isEmpty()) {
+        T value = cursors.peek().current.getKey();
+        long added = 0;
+        long subtracted = 0;
+        while (!cursors.isEmpty() && orderRelation.compare(cursors.peek().current.getKey(), value) == 0) {
+          Cursor<T> cursor = cursors.poll();
+          if (mode == MergedBag.Mode.DIFFERENCE && cursor.operand > 0) {
+            subtracted += cursor.current.getValue();
+          } else {
+            added += cursor.current.getValue();
+          }
+          if (cursor.advance()) {
+            cursors.add(cursor);
+          }
+        }
+        long count = (mode == MergedBag.Mode.UNIQUE) ? 1 : added - subtracted;
+        if (added > 0 && count > 0) {
+          writer.add(value, Math.toIntExact(count));
+          written++;
+        }
+      }
+      complete = true;
+    } finally {
+      for (BagSegment<T> segment : segments) {
+        segment.close();
+      }
+      if (!complete) {
+        Files.deleteIfExists(output);
+      }
+    }
+    return written;
+  }
+
+  /**
+   * Delete the run files. The operands added so far are discarded.
+   */
+  public void close() throws IOException {
+    for (Path run : runs) {
+      Files.deleteIfExists(run);
+    }
+    runs.clear();
+    runOperands.clear();
+    operandCount = 0;
+  }
+}
@@ -0,0 +1,64 @@
+package uk.ac.ucl.bag;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Command line tool that counts the whitespace separated tokens of text files and persists the resulting bag.
+ *
+ * Usage: IngestMain [-threads n] [-max distinctTokens] output.xml input...
+ */
+public class IngestMain {
+  public static void main(String[] args) {
+    int threads = Runtime.getRuntime().availableProcessors();
+    int maxTokens = BagIngester.DEFAULT_MAX_TOKENS;
+    int next = 0;
+    try {
+      while (args.length - next > 1 && args[next].startsWith("-")) {
+        if (args[next].equals("-threads")) {
+          threads = Integer.parseInt(args[next + 1]);
+        } else if (args[next].equals("-max")) {
+          maxTokens = Integer.parseInt(args[next + 1]);
+        } else {
+          usage();
+        }
+        next += 2;
+      }
+    }
+    catch (NumberFormatException e) {
+      usage();
+    }
+    if (args.length - next < 2) {
+      usage();
+    }
+    String output = args[next++];
+    List<Path> inputs = new ArrayList<>();
+    while (next < args.length) {
+      inputs.add(Paths.get(args[next++]));
+    }
+
+    try {
+      long start = System.nanoTime();
+      StringBag bag = new BagIngester(threads, maxTokens).ingest(inputs);
+      bag.persist(output);
+      long millis = (System.nanoTime() - start) / 1000000;
+      System.out.println(bag.size() + " distinct tokens written to " + output + " in " + millis + "ms");
+    }
+    catch (IOException e) {
+      System.out.println("====> Unable to read input: " + e.getMessage());
+      System.exit(1);
+    }
+    catch (BagException e) {
+      System.out.println("====> Bag Exception thrown: " + e.getMessage());
+      System.exit(1);
+    }
+  }
+
+  private static void usage() {
+    System.err.println("Usage: IngestMain [-threads n] [-max distinctTokens] output.xml input...");
+    System.exit(1);
+  }
+}
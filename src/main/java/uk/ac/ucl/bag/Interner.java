@@ -0,0 +1,56 @@
+package uk.ac.ucl.bag;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An Interner maps each value to a single canonical object that is equal to it, so that equal values held in
+ * different places share one object. A BagFactory can be given an Interner, which it passes to the bags it creates.
+ * Those bags store the canonical object for each value added, and look values up by their canonical object, so a
+ * lookup usually finds the value by a reference comparison without calling the order relation on it.
+ *
+ * Callers can also intern their own values to drop duplicate copies. Values are matched using equals and hashCode,
+ * which must agree with the order relation of any bag sharing the interner. Canonical objects are held until
+ * clear is called. The class is thread safe and can be shared between bags.
+ *
+ * @param <T> The type of the values interned
+ */
+public class Interner<T> {
+  private final ConcurrentHashMap<T, T> canonical = new ConcurrentHashMap<>();
+
+  /**
+   * Return the canonical object for value, making value canonical if there is none yet.
+   * @param value The value to intern.
+   * @return The canonical object equal to value.
+   */
+  public T intern(T value) {
+    if (value == null) return null;
+    T existing = canonical.putIfAbsent(value, value);
+    return (existing == null) ? value : existing;
+  }
+
+  /**
+   * Return the canonical object for value if there is one, or value itself otherwise. Unlike intern this never
+   * adds to the interner, so it is used for lookups.
+   * @param value The value to look up.
+   * @return The canonical object equal to value, or value.
+   */
+  public T canonical(T value) {
+    if (value == null) return null;
+    T existing = canonical.get(value);
+    return (existing == null) ? value : existing;
+  }
+
+  /**
+   * @return The number of canonical objects held.
+   */
+  public int size() {
+    return canonical.size();
+  }
+
+  /**
+   * Forget every canonical object. Values already stored in bags are not affected.
+   */
+  public void clear() {
+    canonical.clear();
+  }
+}
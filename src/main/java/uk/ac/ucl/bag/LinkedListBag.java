@@ -1,7 +1,12 @@
 package uk.ac.ucl.bag;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.AbstractMap;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Objects;
 
 /*
@@ -10,32 +15,60 @@ import java.util.Objects;
  */
 public class LinkedListBag<T> extends AbstractBag<T> {
     /*
-       Objects of class LinkedList store a linked list of Node objects that store a value and its
-       occurrences. It is implemented as a JavaBeans component @see AbstractBag.java
+       The self-organization strategies a LinkedListBag can apply when a value is looked up. With MOVE_TO_FRONT
+       the value found is moved to the head of the list, with TRANSPOSE it swaps places with the value before it.
+       Either way frequently used values drift towards the head, so later lookups of them stop sooner.
+     */
+    public enum SelfOrganization { NONE, MOVE_TO_FRONT, TRANSPOSE }
+
+    /*
+       Objects of class LinkedList store an unrolled linked list: each Node holds up to NODE_CAPACITY values in an
+       array, along with their occurrence counts in a parallel array. Packing several values into a node means a
+       scan follows one pointer per node rather than two per value. It is implemented as a JavaBeans component
+       @see AbstractBag.java
        Note that the class is static (nested top level class) and does not have access to the scope
-       of class ArrayBag even though it is nested inside the class. This means that the type variable
-       T is not in scope, so class Element has to be declared using a different type variable U.
+       of class LinkedListBag even though it is nested inside the class. This means that the type variable
+       T is not in scope, so class LinkedList has to be declared using a different type variable U.
      */
 
-    public static class LinkedList<U> implements Iterable<U> {
+    public static class LinkedList<U> {
+        public static final int NODE_CAPACITY = 8;
 
         public static class Node<V> {
-            public V value;
-            public Node<V> next;
+            private Object[] values;
+            private int[] counts;
+            private int used;
+            private Node<V> next;
+
+            public Node() {
+                values = new Object[NODE_CAPACITY];
+                counts = new int[NODE_CAPACITY];
+                used = 0;
+                next = null;
+            }
 
-            public Node(V value) {
-                this.value = value;
-                this.next = null;
+            public Object[] getValues() {
+                return values;
             }
 
-            public Node() {}
+            public void setValues(Object[] values) {
+                this.values = values;
+            }
+
+            public int[] getCounts() {
+                return counts;
+            }
+
+            public void setCounts(int[] counts) {
+                this.counts = counts;
+            }
 
-            public V getValue() {
-                return value;
+            public int getUsed() {
+                return used;
             }
 
-            public void setValue(V value) {
-                this.value = value;
+            public void setUsed(int used) {
+                this.used = used;
             }
 
             public Node<V> getNext() {
@@ -45,11 +78,28 @@ public class LinkedListBag<T> extends AbstractBag<T> {
             public void setNext(Node<V> next) {
                 this.next = next;
             }
+
+            @SuppressWarnings("unchecked")
+            V valueAt(int index) {
+                return (V) values[index];
+            }
         }
 
         private Node<U> head;
         private int size;
 
+        // The last node to become empty, kept for reuse so that a value added and removed at a node boundary
+        // does not allocate a node each time.
+        private Node<U> spare;
+
+        // The number of nodes in the list, or -1 if it has to be counted after the head was set.
+        private int nodes;
+
+        // The position of the value located by the last successful call to find.
+        private Node<U> foundPrevious;
+        private Node<U> foundNode;
+        private int foundIndex;
+
         public LinkedList() {
             head = null;
             size = 0;
@@ -61,6 +111,7 @@ public class LinkedListBag<T> extends AbstractBag<T> {
 
         public void setHead(Node<U> head) {
             this.head = head;
+            nodes = -1;
         }
 
         public int getSize() {
@@ -71,102 +122,217 @@ public class LinkedListBag<T> extends AbstractBag<T> {
             this.size = size;
         }
 
-        public void prepend(U e) {
-            Node<U> newNode = new Node<>(e);
-            newNode.next = head;
-            head = newNode;
-            size++;
-        }
-
         public int size() {
             return this.size;
         }
 
-        private class LinkedListIterator implements Iterator<U> {
-            private LinkedList.Node<U> nextNode = head;
-            private LinkedList.Node<U> curNode = null;
-            private LinkedList.Node<U> prevNode = null;
-            private boolean removedCurNode = false;
-
-            public boolean hasNext() {
-                return nextNode != null;
-            }
-
-            public U next() {
-                prevNode = (removedCurNode)? prevNode : curNode;
-                curNode = nextNode;
-                removedCurNode = false;
-                nextNode = nextNode.next;
-                return curNode.value;
+        /*
+          Add a value with the given count at the head of the list. A new node is only needed when the head node
+          is full, and the spare node is used if there is one.
+         */
+        public void prepend(U value, int count) {
+            if (head == null || head.used == NODE_CAPACITY) {
+                Node<U> newNode = (spare != null) ? spare : new Node<>();
+                spare = null;
+                newNode.next = head;
+                head = newNode;
+                if (nodes >= 0) nodes++;
+            } else {
+                System.arraycopy(head.values, 0, head.values, 1, head.used);
+                System.arraycopy(head.counts, 0, head.counts, 1, head.used);
             }
+            head.values[0] = value;
+            head.counts[0] = count;
+            head.used++;
+            size++;
+        }
 
-            public void remove() {
-                if (curNode != null) {
-                    if (prevNode == null) {
-                        head = curNode.next;
-                        curNode.next = null;
-                    } else {
-                        prevNode.next = curNode.next;
-                        curNode.next = null;
+        /*
+          Locate value using the order relation, remembering its position for the found* methods below. A stored
+          value that is the same object as the one looked up matches without calling the order relation.
+          @return True if the value was found.
+         */
+        boolean find(Comparator<U> orderRelation, U value) {
+            Node<U> previous = null;
+            for (Node<U> node = head; node != null; node = node.next) {
+                for (int i = 0; i < node.used; i++) {
+                    if (node.values[i] == value || orderRelation.compare(node.valueAt(i), value) == 0) {
+                        foundPrevious = previous;
+                        foundNode = node;
+                        foundIndex = i;
+                        return true;
                     }
-                    removedCurNode = true;
-                    size--;
                 }
+                previous = node;
             }
+            return false;
         }
 
-        /*
-          Return an iterator object. Code calling this method will get an object that behaves as an iterator but does not
-          need to know the actual class of the object.
-         */
-        public Iterator<U> iterator() {
-            return new LinkedListIterator();
+        U foundValue() {
+            return foundNode.valueAt(foundIndex);
         }
 
-    }
-
-    /*
-      Objects of class Element store a value and its occurrence count. It is implemented as a JavaBeans component
-      @see AbstractBag.java. Note that the class is static (nested top level class) and does not have access to the scope        of class ArrayBag even though it is nested inside the class. This means that the type variable
-      T is not in scope, so class Element has to be declared using a different type variable E.
-    */
+        int foundCount() {
+            return foundNode.counts[foundIndex];
+        }
 
-    public static class Element<W> {
-        public int count;
-        public W value;
+        void addToFoundCount(int occurrences) {
+            foundNode.counts[foundIndex] += occurrences;
+        }
 
-        public Element(int count, W value) {
-            this.count = count;
-            this.value = value;
+        /*
+          Unlink the value found by the last call to find, dropping its node if it becomes empty.
+         */
+        void removeFound() {
+            Node<U> node = foundNode;
+            int remaining = node.used - foundIndex - 1;
+            System.arraycopy(node.values, foundIndex + 1, node.values, foundIndex, remaining);
+            System.arraycopy(node.counts, foundIndex + 1, node.counts, foundIndex, remaining);
+            node.used--;
+            node.values[node.used] = null;
+            node.counts[node.used] = 0;
+            size--;
+            if (node.used == 0) {
+                if (node == head) {
+                    head = node.next;
+                } else {
+                    Node<U> previous = head;
+                    while (previous.next != node) {
+                        previous = previous.next;
+                    }
+                    previous.next = node.next;
+                }
+                node.next = null;
+                spare = node;
+                if (nodes >= 0) nodes--;
+            }
+            foundPrevious = null;
+            foundNode = null;
         }
 
-        public Element() {}
+        int nodeCount() {
+            if (nodes < 0) {
+                nodes = 0;
+                for (Node<U> node = head; node != null; node = node.next) {
+                    nodes++;
+                }
+            }
+            return nodes;
+        }
 
-        public int getCount() {
-            return count;
+        boolean hasSpare() {
+            return spare != null;
         }
 
-        public void setCount(int count) {
-            this.count = count;
+        /*
+          Pack the values into as few nodes as possible, keeping their order, and drop the nodes left over along with
+          the spare node. Values whose count is zero are dropped as well. Values are copied forward in place, which
+          is safe because a value is never written to a position after the one it is read from.
+         */
+        void compact() {
+            spare = null;
+            foundPrevious = null;
+            foundNode = null;
+            size = 0;
+            nodes = 0;
+            Node<U> target = head;
+            int targetIndex = 0;
+            for (Node<U> node = head; node != null; node = node.next) {
+                int used = node.used;
+                for (int i = 0; i < used; i++) {
+                    if (node.counts[i] == 0) continue;
+                    if (targetIndex == NODE_CAPACITY) {
+                        target.used = NODE_CAPACITY;
+                        target = target.next;
+                        targetIndex = 0;
+                    }
+                    target.values[targetIndex] = node.values[i];
+                    target.counts[targetIndex] = node.counts[i];
+                    targetIndex++;
+                    size++;
+                }
+            }
+            if (size == 0) {
+                head = null;
+                return;
+            }
+            for (int i = targetIndex; i < NODE_CAPACITY; i++) {
+                target.values[i] = null;
+                target.counts[i] = 0;
+            }
+            target.used = targetIndex;
+            target.next = null;
+            nodes = (size + NODE_CAPACITY - 1) / NODE_CAPACITY;
         }
 
-        public W getValue() {
-            return value;
+        /*
+          Move the value found by the last call to find to the head of the list. Every value in front of it moves
+          back one place, carrying the last value of each node into the first slot of the next one, so the node
+          structure is unchanged and only positions up to the found value are touched. An iterator positioned
+          after the found value is therefore unaffected.
+         */
+        void moveFoundToFront() {
+            Object carryValue = foundNode.values[foundIndex];
+            int carryCount = foundNode.counts[foundIndex];
+            for (Node<U> node = head; node != foundNode; node = node.next) {
+                int last = node.used - 1;
+                Object lastValue = node.values[last];
+                int lastCount = node.counts[last];
+                System.arraycopy(node.values, 0, node.values, 1, last);
+                System.arraycopy(node.counts, 0, node.counts, 1, last);
+                node.values[0] = carryValue;
+                node.counts[0] = carryCount;
+                carryValue = lastValue;
+                carryCount = lastCount;
+            }
+            System.arraycopy(foundNode.values, 0, foundNode.values, 1, foundIndex);
+            System.arraycopy(foundNode.counts, 0, foundNode.counts, 1, foundIndex);
+            foundNode.values[0] = carryValue;
+            foundNode.counts[0] = carryCount;
+            foundPrevious = null;
+            foundNode = head;
+            foundIndex = 0;
         }
 
-        public void setValue(W value) {
-            this.value = value;
+        /*
+          Swap the value found by the last call to find with the value in front of it, which may be the last value
+          of the previous node.
+         */
+        void transposeFound() {
+            Node<U> node = foundNode;
+            int index = foundIndex;
+            if (index > 0) {
+                foundIndex = index - 1;
+            } else if (foundPrevious != null) {
+                foundNode = foundPrevious;
+                foundIndex = foundPrevious.used - 1;
+                foundPrevious = null;
+            } else {
+                return;
+            }
+            Object value = node.values[index];
+            int count = node.counts[index];
+            node.values[index] = foundNode.values[foundIndex];
+            node.counts[index] = foundNode.counts[foundIndex];
+            foundNode.values[foundIndex] = value;
+            foundNode.counts[foundIndex] = count;
         }
     }
 
     private int maxSize;
-    private LinkedList<Element<T>> contents;
+    private transient LinkedList<T> contents;
+    private SelfOrganization selfOrganization;
 
     public LinkedListBag() throws BagException {
         this(MAX_SIZE, Comparator.comparing(Objects::hashCode));
     }
 
     public LinkedListBag(int maxSize, Comparator<T> orderRelation) throws BagException {
+        this(maxSize, orderRelation, SelfOrganization.NONE);
+    }
+
+    public LinkedListBag(int maxSize, Comparator<T> orderRelation, SelfOrganization selfOrganization)
+            throws BagException {
         if (maxSize > MAX_SIZE) {
             throw new BagException("Attempting to create a Bag with size greater than maximum");
         }
@@ -175,6 +341,7 @@ public class LinkedListBag<T> extends AbstractBag<T> {
         }
         this.maxSize = maxSize;
         contents = new LinkedList<>();
+        this.selfOrganization = selfOrganization;
         this.orderRelation = orderRelation;
     }
 
@@ -186,65 +353,200 @@ public class LinkedListBag<T> extends AbstractBag<T> {
         this.maxSize = maxSize;
     }
 
-    public LinkedList<Element<T>> getContents() {
+    public LinkedList<T> getContents() {
         return contents;
     }
 
-    public void setContents(LinkedList<Element<T>> contents) {
+    public void setContents(LinkedList<T> contents) {
         this.contents = contents;
     }
 
-    public void add(T value) throws BagException {
-        for (Element<T> element : contents) {
-            if (orderRelation.compare(element.value, value) == 0) {
-                element.count++;
-                return;
-            }
+    public SelfOrganization getSelfOrganization() {
+        return selfOrganization;
+    }
+
+    public void setSelfOrganization(SelfOrganization selfOrganization) {
+        this.selfOrganization = selfOrganization;
+    }
+
+    /*
+      The list is written as its entries in list order, so no node objects are serialized and a long list does not
+      recurse through the next references. It is rebuilt by prepending the entries from last to first.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        writeEntries(out);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        int count = BagDelta.readVarInt(in);
+        Object[] values = new Object[count];
+        int[] counts = new int[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = in.readObject();
+            counts[i] = BagDelta.readVarInt(in);
         }
-        if (contents.size() < maxSize) {
-            contents.prepend(new Element<>(1, value));
-        } else {
-            throw new BagException("Bag is full");
+        contents = new LinkedList<>();
+        for (int i = count - 1; i >= 0; i--) {
+            contents.prepend((T) values[i], counts[i]);
         }
     }
 
+    /*
+      Locate value in the list and apply the self-organization strategy to it. The position of the value after
+      any reordering is left in contents for the found* methods.
+     */
+    private boolean find(T value) {
+        if (!contents.find(orderRelation, canonical(value))) {
+            return false;
+        }
+        if (selfOrganization == SelfOrganization.MOVE_TO_FRONT) {
+            contents.moveFoundToFront();
+        } else if (selfOrganization == SelfOrganization.TRANSPOSE) {
+            contents.transposeFound();
+        }
+        return true;
+    }
+
+    public void add(T value) throws BagException {
+        addWithOccurrences(value, 1);
+    }
+
     public void addWithOccurrences(T value, int occurrences) throws BagException {
-        for (int i = 0; i < occurrences; i++) {
-            add(value);
+        if (occurrences < 1) return;
+        if (find(value)) {
+            contents.addToFoundCount(occurrences);
+            changed(contents.foundValue(), contents.foundCount() - occurrences, contents.foundCount());
+        } else if (contents.size() < maxSize) {
+            T stored = intern(value);
+            contents.prepend(stored, occurrences);
+            changed(stored, 0, occurrences);
+        } else {
+            throw new BagException("Bag is full");
         }
     }
 
     public boolean contains(T value) {
-        for (Element<T> element : contents) {
-            if (orderRelation.compare(element.value, value) == 0) {
-                return true;
+        return find(value);
+    }
+
+    public int countOf(T value) {
+        return find(value) ? contents.foundCount() : 0;
+    }
+
+    public void remove(T value) {
+        removeWithOccurrences(value, 1);
+    }
+
+    public void removeWithOccurrences(T value, int occurrences) {
+        if (occurrences < 1) return;
+        if (find(value)) {
+            T stored = contents.foundValue();
+            int oldCount = contents.foundCount();
+            contents.addToFoundCount(-occurrences);
+            if (contents.foundCount() <= 0) {
+                contents.removeFound();
+                changed(stored, oldCount, 0);
+                valueRemoved();
+            } else {
+                changed(stored, oldCount, contents.foundCount());
             }
         }
-        return false;
     }
 
-    public int countOf(T value) {
-        for (Element<T> element : contents) {
-            if (orderRelation.compare(element.value, value) == 0) {
-                return element.count;
+    /*
+      A self-organizing list is reordered by every lookup.
+     */
+    @Override
+    boolean readOnlyLookups() {
+        return selfOrganization == SelfOrganization.NONE;
+    }
+
+    @Override
+    int capacityLimit() {
+        return maxSize;
+    }
+
+    /*
+      Each stored value is looked up in the sorted batch in one walk of the list, rather than searching the list for
+      each value of the batch, and without reordering the list.
+     */
+    @Override
+    int[] countsOf(BagBatch.Sorted<T> batch) {
+        int[] before = new int[batch.size];
+        for (LinkedList.Node<T> node = contents.getHead(); node != null; node = node.next) {
+            for (int i = 0; i < node.used; i++) {
+                int index = batch.indexOf(node.valueAt(i));
+                if (index >= 0) {
+                    before[index] = node.counts[i];
+                }
             }
         }
-        return 0;
+        return before;
     }
 
-    public void remove(T value) {
-        Iterator<Element<T>> iterator = contents.iterator();
-
-        while (iterator.hasNext()) {
-            Element<T> element = iterator.next();
-            if (orderRelation.compare(element.value, value) == 0) {
-                element.count--;
-                if (element.count == 0) {
-                    iterator.remove();
-                    return;
+    /*
+      Update the counts in a second walk of the list, pack the list once to drop the values whose count reached
+      zero, and then prepend the new values.
+     */
+    @Override
+    void applySorted(BagBatch.Sorted<T> batch, int[] before) {
+        boolean removed = false;
+        for (LinkedList.Node<T> node = contents.getHead(); node != null; node = node.next) {
+            for (int i = 0; i < node.used; i++) {
+                int index = batch.indexOf(node.valueAt(i));
+                if (index >= 0) {
+                    int count = node.counts[i];
+                    node.counts[i] = Math.max(0, count + batch.changes[index]);
+                    changed(node.valueAt(i), count, node.counts[i]);
+                    removed |= node.counts[i] == 0;
                 }
             }
         }
+        if (removed) {
+            contents.compact();
+        }
+        for (int i = batch.size - 1; i >= 0; i--) {
+            if (before[i] == 0 && batch.changes[i] > 0) {
+                T stored = intern(batch.valueAt(i));
+                contents.prepend(stored, batch.changes[i]);
+                changed(stored, 0, batch.changes[i]);
+            }
+        }
+        if (removed) {
+            valueRemoved();
+        }
+    }
+
+    /*
+      Each node is an object holding its two arrays, used and next, and the list holds head, size, spare, nodes
+      and the found position.
+     */
+    private static final long NODE_BYTES = objectBytes(3 * REFERENCE + 4)
+            + arrayBytes(LinkedList.NODE_CAPACITY, REFERENCE) + arrayBytes(LinkedList.NODE_CAPACITY, 4);
+
+    @Override
+    public long estimatedMemoryBytes() {
+        int nodes = contents.nodeCount() + (contents.hasSpare() ? 1 : 0);
+        return objectBytes(BAG_FIELDS + 4 + 2 * REFERENCE) + objectBytes(4 * REFERENCE + 3 * 4)
+                + nodes * NODE_BYTES;
+    }
+
+    /*
+      Values are removed by closing up the gap within their node, so after many removals the nodes can be mostly
+      empty. Trimming packs them full again.
+     */
+    @Override
+    public void trimToSize() {
+        contents.compact();
+    }
+
+    @Override
+    double occupancy() {
+        int nodes = contents.nodeCount();
+        return (nodes <= 1) ? 1.0 : (double) contents.size() / (nodes * LinkedList.NODE_CAPACITY);
     }
 
     public boolean isEmpty() {
@@ -256,22 +558,28 @@ public class LinkedListBag<T> extends AbstractBag<T> {
     }
 
     /* This class implements the iterator interface to allow the unique values in LinkedList objects to be iterated through.
-     * The iterator returns each unique value without any copies (i.e., one value for each element in the
-     * LinkedList data structure). Notice that this class is not declared static and is a nested inner class, which
+     * The iterator returns each unique value without any copies (i.e., one value for each used slot in the
+     * LinkedList nodes). Notice that this class is not declared static and is a nested inner class, which
      * does have access to the scope of the LinkedListBag class, allowing it to access the LinkedList data structure
      * directly. The use of the static keyword when declaring nested classes makes an important difference.
      * The class is still private, though, and cannot be accessed outside the scope of the LinkedListBag class.
      * However, a reference to an object of the class can be returned as a reference of type Iterator.
      */
     private class LinkedListBagUniqueIterator implements Iterator<T> {
-        Iterator<Element<T>> iterator = contents.iterator();
+        LinkedList.Node<T> node = contents.getHead();
+        int index = 0;
 
         public boolean hasNext() {
-            return iterator.hasNext();
+            return node != null;
         }
 
         public T next() {
-            return iterator.next().value;
+            T value = node.valueAt(index++);
+            if (index == node.used) {
+                node = node.next;
+                index = 0;
+            }
+            return value;
         }
     }
 
@@ -288,28 +596,57 @@ public class LinkedListBag<T> extends AbstractBag<T> {
       It is also a nested inner class.
      */
     private class LinkedListBagIterator implements Iterator<T> {
-        Iterator<Element<T>> iterator = contents.iterator();
-        Element<T> currentElement = iterator.next();
+        LinkedList.Node<T> node = contents.getHead();
+        int index = 0;
         int count = 0;
 
         public boolean hasNext()
         {
-            return count < currentElement.count || iterator.hasNext();
+            return node != null;
         }
 
         public T next() {
-            if (count < currentElement.count) {
-                count++;
-                return currentElement.value;
+            T value = node.valueAt(index);
+            count++;
+            if (count == node.counts[index]) {
+                count = 0;
+                index++;
+                if (index == node.used) {
+                    node = node.next;
+                    index = 0;
+                }
             }
-            count = 1;
-            currentElement = iterator.next();
-            return currentElement.value;
+            return value;
         }
     }
 
     public Iterator<T> allOccurrencesIterator() {
         return new LinkedListBagIterator();
     }
-}
 
+    /*
+      Return the values and counts by walking the nodes, without searching the list for each value.
+     */
+    @Override
+    Iterator<Map.Entry<T, Integer>> entryIterator() {
+        return new Iterator<Map.Entry<T, Integer>>() {
+            LinkedList.Node<T> node = contents.getHead();
+            int index = 0;
+
+            public boolean hasNext() {
+                return node != null;
+            }
+
+            public Map.Entry<T, Integer> next() {
+                Map.Entry<T, Integer> entry = new AbstractMap.SimpleImmutableEntry<>(node.valueAt(index),
+                        node.counts[index]);
+                index++;
+                if (index == node.used) {
+                    node = node.next;
+                    index = 0;
+                }
+                return entry;
+            }
+        };
+    }
+}
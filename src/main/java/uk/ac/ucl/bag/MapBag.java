@@ -1,5 +1,8 @@
 package uk.ac.ucl.bag;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.*;
 
 /*
@@ -30,7 +33,10 @@ public class MapBag <T> extends AbstractBag<T> {
     }
 
     private int maxSize;
-    private HashMap<T, MutableInt> contents;
+    private transient HashMap<T, MutableInt> contents;
+
+    // The length of the HashMap's table, which HashMap does not expose, followed as it grows and when trimmed.
+    private transient int tableCapacity;
 
     public MapBag() throws BagException {
         this(MAX_SIZE, Comparator.comparing(Objects::hashCode));
@@ -62,6 +68,27 @@ public class MapBag <T> extends AbstractBag<T> {
 
     public void setContents(HashMap<T, MutableInt> contents) {
         this.contents = contents;
+        tableCapacity = hashTableCapacity(contents.size());
+    }
+
+    /*
+      The map is written as its entries, so the MutableInt counts and the HashMap's own structure are not serialized.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        writeEntries(out);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        int count = BagDelta.readVarInt(in);
+        contents = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            T value = (T) in.readObject();
+            contents.put(value, new MutableInt(BagDelta.readVarInt(in)));
+        }
+        tableCapacity = hashTableCapacity(count);
     }
 
     public void add(T value) throws BagException {
@@ -69,22 +96,30 @@ public class MapBag <T> extends AbstractBag<T> {
     }
 
     public void addWithOccurrences(T value, int occurrences) throws BagException {
+        if (occurrences < 1) return;
+        value = canonical(value);
         for (T key : contents.keySet()) {
-            if (orderRelation.compare(key, value) == 0) {
-                contents.get(key).count += occurrences;
+            if (key == value || orderRelation.compare(key, value) == 0) {
+                MutableInt count = contents.get(key);
+                count.count += occurrences;
+                changed(key, count.count - occurrences, count.count);
                 return;
             }
         }
         if (contents.size() < maxSize) {
-            contents.put(value, new MutableInt(occurrences));
+            T stored = intern(value);
+            contents.put(stored, new MutableInt(occurrences));
+            tableCapacity = grownTableCapacity(tableCapacity, contents.size());
+            changed(stored, 0, occurrences);
         } else {
             throw new BagException("Bag is full");
         }
     }
 
     public boolean contains(T value) {
+        value = canonical(value);
         for (T key : contents.keySet()) {
-            if (orderRelation.compare(key, value) == 0) {
+            if (key == value || orderRelation.compare(key, value) == 0) {
                 return true;
             }
         }
@@ -92,8 +127,9 @@ public class MapBag <T> extends AbstractBag<T> {
     }
 
     public int countOf(T value) {
+        value = canonical(value);
         for (T key : contents.keySet()) {
-            if (orderRelation.compare(key, value) == 0) {
+            if (key == value || orderRelation.compare(key, value) == 0) {
                 return contents.get(key).count;
             }
         }
@@ -101,16 +137,113 @@ public class MapBag <T> extends AbstractBag<T> {
     }
 
     public void remove(T value) {
+        removeWithOccurrences(value, 1);
+    }
+
+    public void removeWithOccurrences(T value, int occurrences) {
+        if (occurrences < 1) return;
+        value = canonical(value);
         for (T key : contents.keySet()) {
-            if (orderRelation.compare(key, value) == 0) {
-                MutableInt occurrences = contents.get(key);
-                occurrences.count--;
-                if (occurrences.count == 0) {
+            if (key == value || orderRelation.compare(key, value) == 0) {
+                MutableInt count = contents.get(key);
+                int oldCount = count.count;
+                count.count -= occurrences;
+                if (count.count <= 0) {
                     contents.remove(key);
-                    return;
+                    changed(key, oldCount, 0);
+                    valueRemoved();
+                } else {
+                    changed(key, oldCount, count.count);
+                }
+                return;
+            }
+        }
+    }
+
+    @Override
+    boolean readOnlyLookups() {
+        return true;
+    }
+
+    @Override
+    int capacityLimit() {
+        return maxSize;
+    }
+
+    /*
+      Values are matched by the order relation, which a HashMap lookup cannot use, so each stored value is looked up
+      in the sorted batch in one pass over the map instead of scanning the map for each value of the batch.
+     */
+    @Override
+    int[] countsOf(BagBatch.Sorted<T> batch) {
+        int[] before = new int[batch.size];
+        for (Map.Entry<T, MutableInt> entry : contents.entrySet()) {
+            int index = batch.indexOf(entry.getKey());
+            if (index >= 0) {
+                before[index] = entry.getValue().count;
+            }
+        }
+        return before;
+    }
+
+    @Override
+    void applySorted(BagBatch.Sorted<T> batch, int[] before) {
+        boolean removed = false;
+        for (Iterator<Map.Entry<T, MutableInt>> entries = contents.entrySet().iterator(); entries.hasNext(); ) {
+            Map.Entry<T, MutableInt> entry = entries.next();
+            int index = batch.indexOf(entry.getKey());
+            if (index >= 0) {
+                MutableInt count = entry.getValue();
+                int oldCount = count.count;
+                count.count = Math.max(0, oldCount + batch.changes[index]);
+                if (count.count == 0) {
+                    entries.remove();
+                    removed = true;
                 }
+                changed(entry.getKey(), oldCount, count.count);
+            }
+        }
+        for (int i = 0; i < batch.size; i++) {
+            if (before[i] == 0 && batch.changes[i] > 0) {
+                T stored = intern(batch.valueAt(i));
+                contents.put(stored, new MutableInt(batch.changes[i]));
+                tableCapacity = grownTableCapacity(tableCapacity, contents.size());
+                changed(stored, 0, batch.changes[i]);
             }
         }
+        if (removed) {
+            valueRemoved();
+        }
+    }
+
+    /*
+      The object's fields are maxSize, contents and tableCapacity, and each entry has a MutableInt as well as its
+      HashMap node.
+     */
+    @Override
+    public long estimatedMemoryBytes() {
+        return objectBytes(BAG_FIELDS + 3 * 4) + hashMapBytes(contents.size(), tableCapacity)
+                + contents.size() * objectBytes(4);
+    }
+
+    /*
+      A HashMap's table never shrinks, so the entries are copied into a new map sized for them, keeping the same
+      MutableInt objects.
+     */
+    @Override
+    public void trimToSize() {
+        if (tableCapacity > trimmedTableCapacity(contents.size())) {
+            contents = trimmedCopy(contents);
+            tableCapacity = trimmedTableCapacity(contents.size());
+        }
+    }
+
+    /*
+      A table no longer than the default capacity is never worth shrinking.
+     */
+    @Override
+    double occupancy() {
+        return (tableCapacity <= 16) ? 1.0 : (double) contents.size() / tableCapacity;
     }
 
     public boolean isEmpty()
@@ -138,12 +271,12 @@ public class MapBag <T> extends AbstractBag<T> {
      */
     private class MapBagIterator implements Iterator<T> {
         Iterator<Map.Entry<T, MutableInt>> iterator = contents.entrySet().iterator();
-        Map.Entry<T, MutableInt> currentEntry = iterator.next();
+        Map.Entry<T, MutableInt> currentEntry = iterator.hasNext() ? iterator.next() : null;
         int count = 0;
 
         public boolean hasNext()
         {
-            return count < currentEntry.getValue().count || iterator.hasNext();
+            return currentEntry != null && (count < currentEntry.getValue().count || iterator.hasNext());
         }
 
         public T next() {
@@ -161,4 +294,22 @@ public class MapBag <T> extends AbstractBag<T> {
     {
         return new MapBagIterator();
     }
+
+    /*
+      Return the values and counts straight from the entries of the HashMap.
+     */
+    @Override
+    Iterator<Map.Entry<T, Integer>> entryIterator() {
+        Iterator<Map.Entry<T, MutableInt>> iterator = contents.entrySet().iterator();
+        return new Iterator<Map.Entry<T, Integer>>() {
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            public Map.Entry<T, Integer> next() {
+                Map.Entry<T, MutableInt> entry = iterator.next();
+                return new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue().count);
+            }
+        };
+    }
 }
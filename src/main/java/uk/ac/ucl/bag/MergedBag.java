@@ -0,0 +1,273 @@
+package uk.ac.ucl.bag;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/*
+   This class implements a read-only Bag holding the merge of a number of source bags, kept up to date as the
+   sources change rather than recomputed. The merge is one of:
+
+     SUM         the count of each value is the sum of its counts in the sources, as createMergedAllOccurrences.
+     UNIQUE      each value in any source has a count of 1, as createMergedAllUnique.
+     DIFFERENCE  the count of each value is its count in the first source less its counts in the others, dropping
+                 values whose count would not be positive, as subtract.
+
+   The merged bag registers a listener with the change publisher of each source (see Bag.changes) and adjusts the
+   state of the changed value on every add or remove, so each source update costs O(1) and reading the merged bag
+   never scans the sources. For each value it keeps the total count from the sources that add to it, the total from
+   the sources that are subtracted, and the number of sources holding it.
+
+   Values from different sources are matched with equals and hashCode, so values that are equal according to the
+   order relation must also be equal by equals. Adding to or removing from the merged bag itself throws
+   UnsupportedOperationException. close stops tracking the sources. A serialized merged bag does not include its
+   sources, so a deserialized one holds the contents it had and is not updated, as after close. It is written as
+   its merged entries, and each is read back as the state of a single source holding the value with that count.
+ */
+public class MergedBag<T> extends AbstractBag<T> implements AutoCloseable {
+  public enum Mode { SUM, UNIQUE, DIFFERENCE }
+
+  private static final int ADDED = 0;
+  private static final int SUBTRACTED = 1;
+  private static final int SOURCES = 2;
+
+  private final Mode mode;
+  private transient List<Bag<T>> sources;
+  private transient List<BagChangePublisher.Listener<T>> listeners = new ArrayList<>();
+  private transient HashMap<T, int[]> state = new HashMap<>();
+  private int size;
+  private transient int tableCapacity;
+
+  /**
+   * Create a merged bag and start tracking its sources. Each source is locked (by synchronizing on it) while its
+   * current contents are read.
+   * @param mode How the sources are merged.
+   * @param sources The source bags. For DIFFERENCE the others are subtracted from the first.
+   * @param orderRelation The order relation of the merged bag.
+   */
+  public MergedBag(Mode mode, List<Bag<T>> sources, Comparator<T> orderRelation) {
+    this.mode = mode;
+    this.sources = new ArrayList<>(sources);
+    this.orderRelation = orderRelation;
+    for (int i = 0; i < this.sources.size(); i++) {
+      Bag<T> source = this.sources.get(i);
+      int slot = (mode == Mode.DIFFERENCE && i > 0) ? SUBTRACTED : ADDED;
+      BagChangePublisher.Listener<T> listener =
+          (value, oldCount, newCount) -> update(value, slot, oldCount, newCount);
+      synchronized (source) {
+        source.changes().addListener(listener);
+        for (T value : source) {
+          update(value, slot, 0, source.countOf(value));
+        }
+      }
+      listeners.add(listener);
+    }
+  }
+
+  private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    writeEntries(out);
+  }
+
+  @SuppressWarnings("unchecked")
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    sources = new ArrayList<>();
+    listeners = new ArrayList<>();
+    int count = BagDelta.readVarInt(in);
+    state = new HashMap<>();
+    for (int i = 0; i < count; i++) {
+      T value = (T) in.readObject();
+      int[] counts = new int[3];
+      counts[ADDED] = BagDelta.readVarInt(in);
+      counts[SOURCES] = 1;
+      state.put(value, counts);
+    }
+    tableCapacity = hashTableCapacity(count);
+  }
+
+  public static <T> MergedBag<T> sum(List<Bag<T>> sources) {
+    return new MergedBag<T>(Mode.SUM, sources, Comparator.comparing(Objects::hashCode));
+  }
+
+  public static <T> MergedBag<T> union(List<Bag<T>> sources) {
+    return new MergedBag<T>(Mode.UNIQUE, sources, Comparator.comparing(Objects::hashCode));
+  }
+
+  public static <T> MergedBag<T> difference(Bag<T> from, List<Bag<T>> subtracted) {
+    List<Bag<T>> sources = new ArrayList<>();
+    sources.add(from);
+    sources.addAll(subtracted);
+    return new MergedBag<T>(Mode.DIFFERENCE, sources, Comparator.comparing(Objects::hashCode));
+  }
+
+  public Mode getMode() {
+    return mode;
+  }
+
+  private int countIn(int[] counts) {
+    if (counts == null) return 0;
+    switch (mode) {
+      case UNIQUE:
+        return (counts[SOURCES] > 0) ? 1 : 0;
+      case DIFFERENCE:
+        return Math.max(0, counts[ADDED] - counts[SUBTRACTED]);
+      default:
+        return counts[ADDED];
+    }
+  }
+
+  /*
+    Apply a change in the count of value in one source, called by the listener on the thread changing the source.
+   */
+  private synchronized void update(T value, int slot, int oldCount, int newCount) {
+    int[] counts = state.get(value);
+    if (counts == null) {
+      counts = new int[3];
+      state.put(value, counts);
+      tableCapacity = grownTableCapacity(tableCapacity, state.size());
+    }
+    int before = countIn(counts);
+    counts[slot] += newCount - oldCount;
+    if (oldCount == 0) counts[SOURCES]++;
+    if (newCount == 0) counts[SOURCES]--;
+    if (counts[SOURCES] == 0) {
+      state.remove(value);
+    }
+    int after = countIn(counts);
+    if (before == 0 && after > 0) size++;
+    if (before > 0 && after == 0) size--;
+    changed(value, before, after);
+    if (counts[SOURCES] == 0) {
+      valueRemoved();
+    }
+  }
+
+  /*
+    The state holds an entry for every value in any source, which may be more than size for a difference.
+   */
+  @Override
+  public synchronized long estimatedMemoryBytes() {
+    return objectBytes(BAG_FIELDS + 4 * REFERENCE + 2 * 4) + hashMapBytes(state.size(), tableCapacity)
+        + state.size() * arrayBytes(3, 4);
+  }
+
+  @Override
+  public synchronized void trimToSize() {
+    if (tableCapacity > trimmedTableCapacity(state.size())) {
+      state = trimmedCopy(state);
+      tableCapacity = trimmedTableCapacity(state.size());
+    }
+  }
+
+  @Override
+  double occupancy() {
+    return (tableCapacity <= 16) ? 1.0 : (double) state.size() / tableCapacity;
+  }
+
+  /**
+   * Stop tracking the sources. The merged bag keeps the contents it had.
+   */
+  public void close() {
+    for (int i = 0; i < sources.size(); i++) {
+      sources.get(i).changes().removeListener(listeners.get(i));
+    }
+    listeners.clear();
+  }
+
+  public void add(T value) {
+    throw new UnsupportedOperationException("A merged bag is read-only");
+  }
+
+  public void addWithOccurrences(T value, int occurrences) {
+    throw new UnsupportedOperationException("A merged bag is read-only");
+  }
+
+  public void remove(T value) {
+    throw new UnsupportedOperationException("A merged bag is read-only");
+  }
+
+  public void removeWithOccurrences(T value, int occurrences) {
+    throw new UnsupportedOperationException("A merged bag is read-only");
+  }
+
+  public synchronized boolean contains(T value) {
+    return countIn(state.get(value)) > 0;
+  }
+
+  public synchronized int countOf(T value) {
+    return countIn(state.get(value));
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+  public synchronized boolean isEmpty() {
+    return size == 0;
+  }
+
+  /*
+    Take a snapshot of the values and their counts, so the sources can change while the caller iterates.
+   */
+  private synchronized List<Map.Entry<T, Integer>> snapshot() {
+    List<Map.Entry<T, Integer>> entries = new ArrayList<>(size);
+    for (Map.Entry<T, int[]> entry : state.entrySet()) {
+      int count = countIn(entry.getValue());
+      if (count > 0) {
+        entries.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), count));
+      }
+    }
+    return entries;
+  }
+
+  /*
+    This class iterates over a snapshot of the merged bag, returning each value once, or once per occurrence when
+    allOccurrences is true.
+   */
+  private class MergedBagIterator implements Iterator<T> {
+    private final Iterator<Map.Entry<T, Integer>> entries = snapshot().iterator();
+    private final boolean allOccurrences;
+    private T value;
+    private int remaining;
+
+    MergedBagIterator(boolean allOccurrences) {
+      this.allOccurrences = allOccurrences;
+    }
+
+    public boolean hasNext() {
+      return remaining > 0 || entries.hasNext();
+    }
+
+    public T next() {
+      if (remaining == 0) {
+        Map.Entry<T, Integer> entry = entries.next();
+        value = entry.getKey();
+        remaining = allOccurrences ? entry.getValue() : 1;
+      }
+      remaining--;
+      return value;
+    }
+  }
+
+  @Override
+  Iterator<Map.Entry<T, Integer>> entryIterator() {
+    return snapshot().iterator();
+  }
+
+  public Iterator<T> iterator() {
+    return new MergedBagIterator(false);
+  }
+
+  public Iterator<T> allOccurrencesIterator() {
+    return new MergedBagIterator(true);
+  }
+}
@@ -0,0 +1,294 @@
+package uk.ac.ucl.bag;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
+
+/*
+   This class implements a thread-safe Bag for data that is read far more often than it is changed, by guarding
+   another bag with a StampedLock. Writers take the lock exclusively. Readers do not take it at all: contains,
+   countOf, size and isEmpty read the bag optimistically and then check that no writer took the lock meanwhile,
+   trying again under the read lock only if one did. An uncontended read therefore writes no shared memory, so
+   readers on different cores do not slow each other down as they do with synchronized or a read-write lock.
+
+   A read that overlaps a write can see the bag half changed, and may then fail with an exception; any exception
+   thrown by an optimistic read is taken as a sign of a concurrent write and the read is repeated under the lock.
+   This relies on lookups in the underlying bag not changing it, which is not true of a StringBag, whose lookups
+   use a shared buffer, nor of a self-organizing LinkedListBag, whose lookups reorder the list. Those bags are read
+   under the write lock instead.
+
+   Iterators run over a snapshot of the values taken when the iterator is created, so they never see a write in
+   progress. A batch is applied under a single write lock. Operations made up of several calls, such as
+   removeAllCopies and subtract, are not atomic. The lock is not reentrant, so listeners on the changes of the bag
+   must not call back into it. persist writes the underlying bag, so loading the file gives an unguarded bag.
+ */
+public class ReadMostlyBag<T> extends AbstractBag<T> {
+  private final AbstractBag<T> bag;
+  private transient StampedLock lock = new StampedLock();
+
+  public ReadMostlyBag(AbstractBag<T> bag) {
+    this.bag = bag;
+    this.orderRelation = bag.orderRelation;
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    lock = new StampedLock();
+  }
+
+  /*
+    Run a read optimistically if the underlying bag allows it, and under the read lock if that fails.
+   */
+  private <R> R read(Supplier<R> reader) {
+    if (bag.readOnlyLookups()) {
+      long stamp = lock.tryOptimisticRead();
+      if (stamp != 0) {
+        try {
+          R result = reader.get();
+          if (lock.validate(stamp)) {
+            return result;
+          }
+        } catch (RuntimeException e) {
+          // A writer changed the bag during the read; it is repeated under the lock below.
+        }
+      }
+    }
+    long stamp = lockForRead();
+    try {
+      return reader.get();
+    } finally {
+      lock.unlock(stamp);
+    }
+  }
+
+  /*
+    Take the read lock, or the write lock if reading the underlying bag changes it.
+   */
+  private long lockForRead() {
+    return bag.readOnlyLookups() ? lock.readLock() : lock.writeLock();
+  }
+
+  /*
+    contains and countOf are written out rather than going through read, so that the common case allocates nothing.
+   */
+  public boolean contains(T value) {
+    if (bag.readOnlyLookups()) {
+      long stamp = lock.tryOptimisticRead();
+      if (stamp != 0) {
+        try {
+          boolean result = bag.contains(value);
+          if (lock.validate(stamp)) {
+            return result;
+          }
+        } catch (RuntimeException e) {
+          // Repeated under the lock below.
+        }
+      }
+    }
+    long stamp = lockForRead();
+    try {
+      return bag.contains(value);
+    } finally {
+      lock.unlock(stamp);
+    }
+  }
+
+  public int countOf(T value) {
+    if (bag.readOnlyLookups()) {
+      long stamp = lock.tryOptimisticRead();
+      if (stamp != 0) {
+        try {
+          int result = bag.countOf(value);
+          if (lock.validate(stamp)) {
+            return result;
+          }
+        } catch (RuntimeException e) {
+          // Repeated under the lock below.
+        }
+      }
+    }
+    long stamp = lockForRead();
+    try {
+      return bag.countOf(value);
+    } finally {
+      lock.unlock(stamp);
+    }
+  }
+
+  public int size() {
+    return read(bag::size);
+  }
+
+  public boolean isEmpty() {
+    return read(bag::isEmpty);
+  }
+
+  private interface Write {
+    void run() throws BagException;
+  }
+
+  private void write(Write write) throws BagException {
+    long stamp = lock.writeLock();
+    try {
+      write.run();
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  public void add(T value) throws BagException {
+    write(() -> bag.add(value));
+  }
+
+  public void addWithOccurrences(T value, int occurrences) throws BagException {
+    write(() -> bag.addWithOccurrences(value, occurrences));
+  }
+
+  public void remove(T value) {
+    long stamp = lock.writeLock();
+    try {
+      bag.remove(value);
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  public void removeWithOccurrences(T value, int occurrences) {
+    long stamp = lock.writeLock();
+    try {
+      bag.removeWithOccurrences(value, occurrences);
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  @Override
+  public void applyBatch(BagBatch<T> batch) throws BagException {
+    write(() -> bag.applyBatch(batch));
+  }
+
+  @Override
+  public void trimToSize() {
+    long stamp = lock.writeLock();
+    try {
+      bag.trimToSize();
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  @Override
+  public void setShrinkThreshold(double shrinkThreshold) {
+    long stamp = lock.writeLock();
+    try {
+      bag.setShrinkThreshold(shrinkThreshold);
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  @Override
+  public long estimatedMemoryBytes() {
+    return objectBytes(BAG_FIELDS + 2 * REFERENCE) + objectBytes(8 + 2 * 4 + 5 * REFERENCE)
+        + read(bag::estimatedMemoryBytes);
+  }
+
+  @Override
+  public BagChangePublisher<T> changes() {
+    return bag.changes();
+  }
+
+  @Override
+  public CountHistogram countHistogram() {
+    return bag.countHistogram();
+  }
+
+  /*
+    The underlying bag computes its fingerprint on the first call, which must not overlap a write, so this is not
+    read optimistically.
+   */
+  @Override
+  public long fingerprint() {
+    long stamp = lockForRead();
+    try {
+      return bag.fingerprint();
+    } finally {
+      lock.unlock(stamp);
+    }
+  }
+
+  @Override
+  boolean readOnlyLookups() {
+    return true;
+  }
+
+  /*
+    Copy the entries of the underlying bag, so that iteration does not hold the lock or see a write in progress.
+   */
+  private List<Map.Entry<T, Integer>> snapshot() {
+    return read(() -> {
+      List<Map.Entry<T, Integer>> entries = new ArrayList<>(bag.size());
+      for (Iterator<Map.Entry<T, Integer>> iterator = bag.entryIterator(); iterator.hasNext(); ) {
+        entries.add(iterator.next());
+      }
+      return entries;
+    });
+  }
+
+  @Override
+  Iterator<Map.Entry<T, Integer>> entryIterator() {
+    return snapshot().iterator();
+  }
+
+  /*
+    This class iterates over a snapshot of the bag, returning each value once, or once per occurrence when
+    allOccurrences is true.
+   */
+  private class ReadMostlyBagIterator implements Iterator<T> {
+    private final Iterator<Map.Entry<T, Integer>> entries = snapshot().iterator();
+    private final boolean allOccurrences;
+    private T value;
+    private int remaining;
+
+    ReadMostlyBagIterator(boolean allOccurrences) {
+      this.allOccurrences = allOccurrences;
+    }
+
+    public boolean hasNext() {
+      return remaining > 0 || entries.hasNext();
+    }
+
+    public T next() {
+      if (remaining == 0) {
+        Map.Entry<T, Integer> entry = entries.next();
+        value = entry.getKey();
+        remaining = allOccurrences ? entry.getValue() : 1;
+      }
+      remaining--;
+      return value;
+    }
+  }
+
+  public Iterator<T> iterator() {
+    return new ReadMostlyBagIterator(false);
+  }
+
+  public Iterator<T> allOccurrencesIterator() {
+    return new ReadMostlyBagIterator(true);
+  }
+
+  @Override
+  public void persist(String path) throws IOException {
+    long stamp = lockForRead();
+    try {
+      bag.persist(path);
+    } finally {
+      lock.unlock(stamp);
+    }
+  }
+}
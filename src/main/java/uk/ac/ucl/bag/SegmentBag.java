@@ -0,0 +1,234 @@
+package uk.ac.ucl.bag;
+
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectStreamException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/*
+   This class implements a read-only Bag over a number of BagSegment files, as if their entries had been added to a
+   single bag: the count of a value is the sum of its counts in the segments. Every segment must have been written
+   with the same order relation.
+
+   countOf and contains look the value up in each segment, which costs a binary search of each segment's index
+   and one block read. Iteration merges the segments' sorted entries, combining the counts of a value found in more
+   than one segment, so values are returned in order. size needs one such pass, and is remembered afterwards since
+   segments never change. Adding to or removing from the bag throws UnsupportedOperationException, and close closes
+   the segments.
+
+   The segment files cannot be written out with the bag, so a segment bag is serialized and persisted as the bag
+   materialize returns, which fails if the segments hold more distinct values than a bag created by the BagFactory
+   can.
+ */
+public class SegmentBag<T> extends AbstractBag<T> implements AutoCloseable {
+  private final List<BagSegment<T>> segments;
+  private int size = -1;
+
+  public SegmentBag(List<BagSegment<T>> segments, Comparator<T> orderRelation) {
+    this.segments = new ArrayList<>(segments);
+    this.orderRelation = orderRelation;
+  }
+
+  public void add(T value) {
+    throw new UnsupportedOperationException("A segment bag is read-only");
+  }
+
+  public void addWithOccurrences(T value, int occurrences) {
+    throw new UnsupportedOperationException("A segment bag is read-only");
+  }
+
+  public void remove(T value) {
+    throw new UnsupportedOperationException("A segment bag is read-only");
+  }
+
+  public void removeWithOccurrences(T value, int occurrences) {
+    throw new UnsupportedOperationException("A segment bag is read-only");
+  }
+
+  public boolean contains(T value) {
+    for (BagSegment<T> segment : segments) {
+      if (segment.contains(value)) return true;
+    }
+    return false;
+  }
+
+  public int countOf(T value) {
+    int count = 0;
+    for (BagSegment<T> segment : segments) {
+      count += segment.countOf(value);
+    }
+    return count;
+  }
+
+  public synchronized int size() {
+    if (size < 0) {
+      int distinct = 0;
+      for (Iterator<Map.Entry<T, Integer>> entries = entryIterator(); entries.hasNext(); entries.next()) {
+        distinct++;
+      }
+      size = distinct;
+    }
+    return size;
+  }
+
+  public boolean isEmpty() {
+    for (BagSegment<T> segment : segments) {
+      if (segment.size() > 0) return false;
+    }
+    return true;
+  }
+
+  /*
+    The mapped segment files are not on the heap, so only each segment's index is counted.
+   */
+  @Override
+  public long estimatedMemoryBytes() {
+    long bytes = objectBytes(BAG_FIELDS + REFERENCE + 4) + objectBytes(2 * 4 + REFERENCE)
+        + arrayBytes(segments.size(), REFERENCE);
+    for (BagSegment<T> segment : segments) {
+      bytes += segment.estimatedMemoryBytes();
+    }
+    return bytes;
+  }
+
+  /*
+    One segment's entries in a merge, holding the entry the segment is positioned at.
+   */
+  private static class Cursor<E> {
+    final Iterator<Map.Entry<E, Integer>> entries;
+    Map.Entry<E, Integer> current;
+
+    Cursor(Iterator<Map.Entry<E, Integer>> entries) {
+      this.entries = entries;
+      current = entries.next();
+    }
+
+    boolean advance() {
+      current = entries.hasNext() ? entries.next() : null;
+      return current != null;
+    }
+  }
+
+  /**
+   * Return an iterator over the entries whose values lie in a range, in order, with the counts of each value
+   * summed over the segments.
+   * @param from The lowest value of the range, inclusive, or null to start at the first entry.
+   * @param to The end of the range, exclusive, or null to continue to the last entry.
+   * @return The iterator.
+   */
+  public Iterator<Map.Entry<T, Integer>> entries(T from, T to) {
+    PriorityQueue<Cursor<T>> cursors = new PriorityQueue<>(Math.max(1, segments.size()),
+        (a, b) -> orderRelation.compare(a.current.getKey(), b.current.getKey()));
+    for (BagSegment<T> segment : segments) {
+      Iterator<Map.Entry<T, Integer>> entries = segment.entries(from, to);
+      if (entries.hasNext()) {
+        cursors.add(new Cursor<>(entries));
+      }
+    }
+    return new Iterator<Map.Entry<T, Integer>>() {
+      public boolean hasNext() {
+        return !cursors.isEmpty();
+      }
+
+      public Map.Entry<T, Integer> next() {
+        if (cursors.isEmpty()) throw new NoSuchElementException();
+        Cursor<T> cursor = cursors.poll();
+        T value = cursor.current.getKey();
+        int count = cursor.current.getValue();
+        if (cursor.advance()) cursors.add(cursor);
+        while (!cursors.isEmpty() && orderRelation.compare(cursors.peek().current.getKey(), value) == 0) {
+          cursor = cursors.poll();
+          count += cursor.current.getValue();
+          if (cursor.advance()) cursors.add(cursor);
+        }
+        return new AbstractMap.SimpleImmutableEntry<>(value, count);
+      }
+    };
+  }
+
+  @Override
+  Iterator<Map.Entry<T, Integer>> entryIterator() {
+    return entries(null, null);
+  }
+
+  /*
+    This class iterates over the merged entries, returning each value once, or once per occurrence when
+    allOccurrences is true.
+   */
+  private class SegmentBagIterator implements Iterator<T> {
+    private final Iterator<Map.Entry<T, Integer>> entries = entryIterator();
+    private final boolean allOccurrences;
+    private T value;
+    private int remaining;
+
+    SegmentBagIterator(boolean allOccurrences) {
+      this.allOccurrences = allOccurrences;
+    }
+
+    public boolean hasNext() {
+      return remaining > 0 || entries.hasNext();
+    }
+
+    public T next() {
+      if (remaining == 0) {
+        Map.Entry<T, Integer> entry = entries.next();
+        value = entry.getKey();
+        remaining = allOccurrences ? entry.getValue() : 1;
+      }
+      remaining--;
+      return value;
+    }
+  }
+
+  public Iterator<T> iterator() {
+    return new SegmentBagIterator(false);
+  }
+
+  public Iterator<T> allOccurrencesIterator() {
+    return new SegmentBagIterator(true);
+  }
+
+  /**
+   * Copy the entries of the segments into a new bag created by the BagFactory.
+   * @return The new bag.
+   * @throws BagException If the segments hold more distinct values than the new bag can.
+   */
+  public Bag<T> materialize() throws BagException {
+    Bag<T> result = BagFactory.getInstance().getBag(orderRelation);
+    for (Iterator<Map.Entry<T, Integer>> entries = entryIterator(); entries.hasNext(); ) {
+      Map.Entry<T, Integer> entry = entries.next();
+      result.addWithOccurrences(entry.getKey(), entry.getValue());
+    }
+    return result;
+  }
+
+  private Object writeReplace() throws ObjectStreamException {
+    try {
+      return materialize();
+    } catch (BagException e) {
+      throw new NotSerializableException(e.getMessage());
+    }
+  }
+
+  @Override
+  public void persist(String path) throws IOException {
+    try {
+      materialize().persist(path);
+    } catch (BagException e) {
+      throw new IOException("Unable to persist segment bag: " + e.getMessage(), e);
+    }
+  }
+
+  public void close() throws IOException {
+    for (BagSegment<T> segment : segments) {
+      segment.close();
+    }
+  }
+}
@@ -0,0 +1,477 @@
+package uk.ac.ucl.bag;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/*
+   This class implements a Bag that partitions its values across a number of independent shard bags by hash code,
+   so that threads working on different values do not contend with each other. Each shard is created by the
+   BagFactory and so can be any bag implementation, and is guarded by its own lock (the shard object itself).
+
+   Values that are equal according to the order relation must have equal hash codes, otherwise they can be
+   stored in different shards. The maximum size applies to each shard rather than to the bag as a whole.
+
+   Operations that cover the whole bag fan out over the shards: size adds up the shard sizes, and iteration walks
+   each shard in turn, taking a snapshot of a shard under its lock when the iteration reaches it. persist writes
+   each shard to its own file, and loading, persisting and merging sharded bags process the shards in parallel.
+   A process can also load a single shard file with Bag.loadFrom and work on that part of the bag alone.
+
+   Changes made through the sharded bag are published by the sharded bag itself, looking up the count before
+   and after each update while changes are being published or counted. Changes made to a shard directly are not.
+ */
+public class ShardedBag<T> extends AbstractBag<T> {
+  private final ArrayList<AbstractBag<T>> shards;
+
+  /**
+   * Create a sharded bag whose shards are instances of the class the BagFactory has been set to create.
+   * @param shardCount The number of shards.
+   * @param maxSize The maximum number of distinct values in each shard.
+   * @param orderRelation The order relation used by the shards to compare values.
+   * @throws BagException If the shard count is less than 1 or the factory cannot create the shards.
+   */
+  public ShardedBag(int shardCount, int maxSize, Comparator<T> orderRelation) throws BagException {
+    if (shardCount < 1) {
+      throw new BagException("Attempting to create a sharded Bag with less than 1 shard");
+    }
+    BagFactory<T> factory = BagFactory.getInstance();
+    shards = new ArrayList<>(shardCount);
+    for (int i = 0; i < shardCount; i++) {
+      shards.add((AbstractBag<T>) factory.getBag(maxSize, orderRelation));
+    }
+    this.orderRelation = orderRelation;
+  }
+
+  /**
+   * Create a sharded bag from existing shards, for example ones loaded from the files written by persist. The
+   * values in each shard must already belong to it. The shards must be AbstractBags, as batches and copies of the
+   * sharded bag use their batch and entry methods.
+   * @param shards The shards, in shard order.
+   * @param orderRelation The order relation used to compare values.
+   */
+  public ShardedBag(List<? extends AbstractBag<T>> shards, Comparator<T> orderRelation) {
+    this.shards = new ArrayList<>(shards);
+    this.orderRelation = orderRelation;
+  }
+
+  public int getShardCount() {
+    return shards.size();
+  }
+
+  /**
+   * Return the shard holding the given index. Callers that use the shard directly while other threads use the
+   * sharded bag must synchronize on the shard.
+   * @param index The shard index.
+   * @return The shard.
+   */
+  public Bag<T> getShard(int index) {
+    return shards.get(index);
+  }
+
+  /**
+   * Return the path of the file a shard is persisted to.
+   * @param path The path given to persist.
+   * @param index The shard index.
+   * @return The path of the shard file.
+   */
+  public static String shardPath(String path, int index) {
+    return path + "." + index;
+  }
+
+  int shardIndexOf(T value) {
+    int h = Objects.hashCode(value);
+    return Math.floorMod(h ^ (h >>> 16), shards.size());
+  }
+
+  private Bag<T> shardFor(T value) {
+    return shards.get(shardIndexOf(value));
+  }
+
+  public void add(T value) throws BagException {
+    addWithOccurrences(value, 1);
+  }
+
+  public void addWithOccurrences(T value, int occurrences) throws BagException {
+    Bag<T> shard = shardFor(value);
+    synchronized (shard) {
+      if (trackingChanges()) {
+        int oldCount = shard.countOf(value);
+        shard.addWithOccurrences(value, occurrences);
+        changed(value, oldCount, shard.countOf(value));
+      } else {
+        shard.addWithOccurrences(value, occurrences);
+      }
+    }
+  }
+
+  public boolean contains(T value) {
+    Bag<T> shard = shardFor(value);
+    synchronized (shard) {
+      return shard.contains(value);
+    }
+  }
+
+  public int countOf(T value) {
+    Bag<T> shard = shardFor(value);
+    synchronized (shard) {
+      return shard.countOf(value);
+    }
+  }
+
+  public void remove(T value) {
+    removeWithOccurrences(value, 1);
+  }
+
+  public void removeWithOccurrences(T value, int occurrences) {
+    Bag<T> shard = shardFor(value);
+    synchronized (shard) {
+      if (trackingChanges()) {
+        int oldCount = shard.countOf(value);
+        shard.removeWithOccurrences(value, occurrences);
+        changed(value, oldCount, shard.countOf(value));
+      } else {
+        shard.removeWithOccurrences(value, occurrences);
+      }
+    }
+  }
+
+  /*
+    Every read locks the shard it reads.
+   */
+  @Override
+  boolean readOnlyLookups() {
+    return true;
+  }
+
+  /*
+    Split the batch by shard and lock each shard it touches once, in shard order so that two batches cannot
+    deadlock. Every shard's part is checked before any shard is changed, so a batch that would fill one shard
+    changes none of them. The shards are created by the BagFactory or loaded from files, so they are all
+    AbstractBags.
+   */
+  @Override
+  public void applyBatch(BagBatch<T> batch) throws BagException {
+    List<BagBatch<T>> parts = new ArrayList<>(Collections.nCopies(shards.size(), (BagBatch<T>) null));
+    for (int i = 0; i < batch.size(); i++) {
+      T value = batch.getValue(i);
+      int shard = shardIndexOf(value);
+      if (parts.get(shard) == null) {
+        parts.set(shard, new BagBatch<>());
+      }
+      int change = batch.getChange(i);
+      if (change > 0) {
+        parts.get(shard).add(value, change);
+      } else {
+        parts.get(shard).remove(value, -change);
+      }
+    }
+    applyLocked(parts, 0);
+  }
+
+  private void applyLocked(List<BagBatch<T>> parts, int from) throws BagException {
+    int shard = from;
+    while (shard < parts.size() && parts.get(shard) == null) {
+      shard++;
+    }
+    if (shard == parts.size()) {
+      applyParts(parts);
+      return;
+    }
+    synchronized (shards.get(shard)) {
+      applyLocked(parts, shard + 1);
+    }
+  }
+
+  private void applyParts(List<BagBatch<T>> parts) throws BagException {
+    List<BagBatch.Sorted<T>> sortedParts = new ArrayList<>(Collections.nCopies(parts.size(),
+        (BagBatch.Sorted<T>) null));
+    List<int[]> befores = new ArrayList<>(Collections.nCopies(parts.size(), (int[]) null));
+    for (int i = 0; i < parts.size(); i++) {
+      if (parts.get(i) == null) continue;
+      AbstractBag<T> shard = shards.get(i);
+      BagBatch.Sorted<T> sorted = parts.get(i).sortedBy(shard.orderRelation);
+      int[] before = shard.countsOf(sorted);
+      shard.checkCapacity(sorted, before);
+      sortedParts.set(i, sorted);
+      befores.set(i, before);
+    }
+    for (int i = 0; i < parts.size(); i++) {
+      BagBatch.Sorted<T> sorted = sortedParts.get(i);
+      if (sorted == null || sorted.size == 0) continue;
+      int[] before = befores.get(i);
+      shards.get(i).applySorted(sorted, before);
+      if (trackingChanges()) {
+        for (int j = 0; j < sorted.size; j++) {
+          int after = Math.max(0, before[j] + sorted.changes[j]);
+          if (after != before[j]) {
+            changed(sorted.valueAt(j), before[j], after);
+          }
+        }
+      }
+    }
+  }
+
+  public int size() {
+    int size = 0;
+    for (Bag<T> shard : shards) {
+      synchronized (shard) {
+        size += shard.size();
+      }
+    }
+    return size;
+  }
+
+  /*
+    Each value is in one shard, so the fingerprint is the sum of the shards' fingerprints, each kept up to date under
+    the shard's own lock.
+   */
+  @Override
+  public long fingerprint() {
+    long fingerprint = 0;
+    for (Bag<T> shard : shards) {
+      synchronized (shard) {
+        fingerprint += shard.fingerprint();
+      }
+    }
+    return fingerprint;
+  }
+
+  /*
+    The bag itself holds the list of shards, and each shard is asked for its own estimate.
+   */
+  @Override
+  public long estimatedMemoryBytes() {
+    long bytes = objectBytes(BAG_FIELDS + REFERENCE) + objectBytes(2 * 4 + REFERENCE)
+        + arrayBytes(shards.size(), REFERENCE);
+    for (Bag<T> shard : shards) {
+      synchronized (shard) {
+        bytes += shard.estimatedMemoryBytes();
+      }
+    }
+    return bytes;
+  }
+
+  @Override
+  public void trimToSize() {
+    for (Bag<T> shard : shards) {
+      synchronized (shard) {
+        shard.trimToSize();
+      }
+    }
+  }
+
+  /*
+    Each shard trims its own storage as values are removed from it.
+   */
+  @Override
+  public void setShrinkThreshold(double shrinkThreshold) {
+    super.setShrinkThreshold(shrinkThreshold);
+    for (Bag<T> shard : shards) {
+      synchronized (shard) {
+        shard.setShrinkThreshold(shrinkThreshold);
+      }
+    }
+  }
+
+  public boolean isEmpty() {
+    for (Bag<T> shard : shards) {
+      synchronized (shard) {
+        if (!shard.isEmpty()) return false;
+      }
+    }
+    return true;
+  }
+
+  /*
+    Write each shard to its own file, named by shardPath, in parallel.
+   */
+  public void persist(String path) throws IOException {
+    try {
+      inParallel(shards.size(), i -> {
+        Bag<T> shard = shards.get(i);
+        synchronized (shard) {
+          shard.persist(shardPath(path, i));
+        }
+      });
+    } catch (BagException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Load a sharded bag from the shard files written by persist, loading the shards in parallel.
+   * @param path The path given to persist.
+   * @param shardCount The number of shards the bag was persisted with.
+   * @param orderRelation The order relation used to compare values.
+   * @return The loaded bag.
+   * @throws IOException If a shard file cannot be read.
+   */
+  @SuppressWarnings("unchecked")
+  public static <T> ShardedBag<T> loadFrom(String path, int shardCount, Comparator<T> orderRelation)
+      throws IOException {
+    ArrayList<AbstractBag<T>> shards = new ArrayList<>(shardCount);
+    for (int i = 0; i < shardCount; i++) {
+      shards.add(null);
+    }
+    try {
+      inParallel(shardCount, i -> shards.set(i, (AbstractBag<T>) Bag.loadFrom(shardPath(path, i))));
+    } catch (BagException e) {
+      throw new IOException(e);
+    }
+    return new ShardedBag<>(shards, orderRelation);
+  }
+
+  public Bag<T> createMergedAllOccurrences(Bag<T> b) throws BagException {
+    return merge(b, false);
+  }
+
+  public Bag<T> createMergedAllUnique(Bag<T> b) throws BagException {
+    return merge(b, true);
+  }
+
+  /*
+    Merge this bag with b into a new sharded bag with the same number of shards. When b is sharded in the same way
+    each pair of shards is merged in parallel, otherwise the values of b are routed to their shards one at a time.
+   */
+  private Bag<T> merge(Bag<T> b, boolean unique) throws BagException {
+    ShardedBag<T> result = new ShardedBag<>(shards.size(), MAX_SIZE, orderRelation);
+    boolean pairwise = b instanceof ShardedBag && ((ShardedBag<T>) b).getShardCount() == shards.size();
+    try {
+      inParallel(shards.size(), i -> {
+        Bag<T> target = result.shards.get(i);
+        copyInto(target, shards.get(i), unique);
+        if (pairwise) {
+          copyInto(target, ((ShardedBag<T>) b).shards.get(i), unique);
+        }
+      });
+    } catch (IOException e) {
+      throw new BagException(e.getMessage());
+    }
+    if (!pairwise) {
+      for (T value : b) {
+        if (!unique) {
+          result.addWithOccurrences(value, b.countOf(value));
+        } else if (!result.contains(value)) {
+          result.add(value);
+        }
+      }
+    }
+    return result;
+  }
+
+  private static <T> void copyInto(Bag<T> target, AbstractBag<T> source, boolean unique) throws BagException {
+    synchronized (source) {
+      Iterator<Map.Entry<T, Integer>> entries = source.entryIterator();
+      while (entries.hasNext()) {
+        Map.Entry<T, Integer> entry = entries.next();
+        if (!unique) {
+          target.addWithOccurrences(entry.getKey(), entry.getValue());
+        } else if (!target.contains(entry.getKey())) {
+          target.add(entry.getKey());
+        }
+      }
+    }
+  }
+
+  private interface ShardTask {
+    void run(int shard) throws Exception;
+  }
+
+  /*
+    Run task once for each shard index on the common fork/join pool, waiting for all of them to finish. A checked
+    exception thrown by a task is rethrown, wrapped in a BagException unless it is an IOException or BagException.
+   */
+  private static void inParallel(int shardCount, ShardTask task) throws BagException, IOException {
+    List<Callable<Void>> tasks = new ArrayList<>(shardCount);
+    for (int i = 0; i < shardCount; i++) {
+      int shard = i;
+      tasks.add(() -> {
+        task.run(shard);
+        return null;
+      });
+    }
+    try {
+      for (Future<Void> future : ForkJoinPool.commonPool().invokeAll(tasks)) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new BagException("Interrupted while processing shards");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof BagException) throw (BagException) cause;
+      if (cause instanceof IOException) throw (IOException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      throw new BagException(String.valueOf(cause));
+    }
+  }
+
+  /*
+    This class implements an iterator that walks the shards in turn. When it reaches a shard it copies the shard's
+    unique values and their counts while holding the shard's lock, so other threads can keep using the shard while
+    the copy is iterated. When allOccurrences is true each value is returned once per occurrence.
+   */
+  private class ShardedBagIterator implements Iterator<T> {
+    private final boolean allOccurrences;
+    private int shard = 0;
+    private List<T> values = new ArrayList<>();
+    private List<Integer> counts = new ArrayList<>();
+    private int index = 0;
+    private int count = 0;
+
+    ShardedBagIterator(boolean allOccurrences) {
+      this.allOccurrences = allOccurrences;
+    }
+
+    private void loadShard(AbstractBag<T> source) {
+      values.clear();
+      counts.clear();
+      index = 0;
+      count = 0;
+      synchronized (source) {
+        Iterator<Map.Entry<T, Integer>> entries = source.entryIterator();
+        while (entries.hasNext()) {
+          Map.Entry<T, Integer> entry = entries.next();
+          values.add(entry.getKey());
+          counts.add(allOccurrences ? entry.getValue() : 1);
+        }
+      }
+    }
+
+    public boolean hasNext() {
+      while (index >= values.size()) {
+        if (shard >= shards.size()) return false;
+        loadShard(shards.get(shard++));
+      }
+      return true;
+    }
+
+    public T next() {
+      if (!hasNext()) throw new NoSuchElementException();
+      T value = values.get(index);
+      if (++count >= counts.get(index)) {
+        count = 0;
+        index++;
+      }
+      return value;
+    }
+  }
+
+  public Iterator<T> iterator() {
+    return new ShardedBagIterator(false);
+  }
+
+  public Iterator<T> allOccurrencesIterator() {
+    return new ShardedBagIterator(true);
+  }
+}
@@ -0,0 +1,656 @@
+package uk.ac.ucl.bag;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/*
+   This class implements Bags of Strings using a trie over the UTF-8 bytes of each value as the internal data
+   structure. Each node of the trie represents one byte, and the count of a value is stored at the node for its
+   last byte. Values that share a prefix share the nodes for it, so a large vocabulary of similar words takes much
+   less memory than storing every String separately.
+
+   The nodes are held in parallel arrays indexed by node number rather than as objects: the byte each node
+   represents, its first child, its next sibling, the count of the value ending at it, and the total count of all
+   the values below it. Children are kept in byte order, so iteration returns values in code point order. The
+   totals make countWithPrefix a single walk down the trie. They are longs, as the total at the root counts every
+   occurrence in the bag and would overflow an int when counting the tokens of large files.
+
+   Values are compared by their bytes, so the order relation given to other bags is not needed; the natural order
+   of Strings is used where AbstractBag creates new bags. Lookups with countOf(CharSequence) and
+   contains(CharSequence) encode the characters as they walk the trie and do not allocate a String. An unpaired
+   surrogate is encoded as '?', as String.getBytes does, so a value is always stored under the bytes its iterators
+   decode back into a String.
+   It is implemented as a JavaBeans component @see AbstractBag.java
+ */
+public class StringBag extends AbstractBag<String> {
+  private static final int INITIAL_CAPACITY = 64;
+  // Node 0 is never used, so that 0 can stand for "no node" in the child and sibling arrays.
+  private static final int NONE = 0;
+  private static final int ROOT = 1;
+
+  private int maxSize;
+  private transient int size;
+  private transient int nodeCount;
+  private transient int freeNode;
+  // The number of nodes on the free list, or -1 if it has to be counted after the free list was set.
+  private transient int freeCount;
+  private transient byte[] labels;
+  private transient int[] children;
+  private transient int[] siblings;
+  private transient int[] counts;
+  private transient long[] totals;
+
+  // Holds the UTF-8 bytes of one code point while walking the trie.
+  private transient byte[] encoded = new byte[4];
+
+  public StringBag() throws BagException {
+    this(MAX_SIZE);
+  }
+
+  public StringBag(int maxSize) throws BagException {
+    if (maxSize > MAX_SIZE) {
+      throw new BagException("Attempting to create a Bag with size greater than maximum");
+    }
+    if (maxSize < 1) {
+      throw new BagException("Attempting to create a Bag with size less than 1");
+    }
+    this.maxSize = maxSize;
+    allocate();
+    this.orderRelation = Comparator.naturalOrder();
+  }
+
+  /*
+    Create a bag that can hold more than MAX_SIZE distinct values. Used by BagIngester, as the vocabulary of a set of
+    text files is usually far larger than the limit applying to other bags.
+   */
+  static StringBag withMaxSize(int maxSize) throws BagException {
+    StringBag bag = new StringBag(1);
+    if (maxSize < 1) {
+      throw new BagException("Attempting to create a Bag with size less than 1");
+    }
+    bag.maxSize = maxSize;
+    return bag;
+  }
+
+  /*
+    Start with an empty trie holding only the root.
+   */
+  private void allocate() {
+    size = 0;
+    nodeCount = ROOT + 1;
+    freeNode = NONE;
+    freeCount = 0;
+    labels = new byte[INITIAL_CAPACITY];
+    children = new int[INITIAL_CAPACITY];
+    siblings = new int[INITIAL_CAPACITY];
+    counts = new int[INITIAL_CAPACITY];
+    totals = new long[INITIAL_CAPACITY];
+  }
+
+  /*
+    The trie is written as its entries rather than its node arrays, which include free nodes and spare capacity,
+    and is rebuilt by adding the entries to an empty trie.
+   */
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    writeEntries(out);
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    encoded = new byte[4];
+    allocate();
+    int count = BagDelta.readVarInt(in);
+    try {
+      for (int i = 0; i < count; i++) {
+        String value = (String) in.readObject();
+        addWithOccurrences(value, BagDelta.readVarInt(in));
+      }
+    } catch (BagException e) {
+      throw new InvalidObjectException(e.getMessage());
+    }
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  public void setMaxSize(int maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  public void setSize(int size) {
+    this.size = size;
+  }
+
+  public int getNodeCount() {
+    return nodeCount;
+  }
+
+  public void setNodeCount(int nodeCount) {
+    this.nodeCount = nodeCount;
+  }
+
+  public int getFreeNode() {
+    return freeNode;
+  }
+
+  public void setFreeNode(int freeNode) {
+    this.freeNode = freeNode;
+    freeCount = -1;
+  }
+
+  public byte[] getLabels() {
+    return labels;
+  }
+
+  public void setLabels(byte[] labels) {
+    this.labels = labels;
+  }
+
+  public int[] getChildren() {
+    return children;
+  }
+
+  public void setChildren(int[] children) {
+    this.children = children;
+  }
+
+  public int[] getSiblings() {
+    return siblings;
+  }
+
+  public void setSiblings(int[] siblings) {
+    this.siblings = siblings;
+  }
+
+  public int[] getCounts() {
+    return counts;
+  }
+
+  public void setCounts(int[] counts) {
+    this.counts = counts;
+  }
+
+  public long[] getTotals() {
+    return totals;
+  }
+
+  public void setTotals(long[] totals) {
+    this.totals = totals;
+  }
+
+  /*
+    Encode a code point as UTF-8 into the encoded array, returning the number of bytes used. An unpaired surrogate
+    cannot be encoded and is replaced by '?'.
+   */
+  private int encode(int codePoint) {
+    if (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE) {
+      codePoint = '?';
+    }
+    if (codePoint < 0x80) {
+      encoded[0] = (byte) codePoint;
+      return 1;
+    }
+    if (codePoint < 0x800) {
+      encoded[0] = (byte) (0xC0 | (codePoint >> 6));
+      encoded[1] = (byte) (0x80 | (codePoint & 0x3F));
+      return 2;
+    }
+    if (codePoint < 0x10000) {
+      encoded[0] = (byte) (0xE0 | (codePoint >> 12));
+      encoded[1] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+      encoded[2] = (byte) (0x80 | (codePoint & 0x3F));
+      return 3;
+    }
+    encoded[0] = (byte) (0xF0 | (codePoint >> 18));
+    encoded[1] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+    encoded[2] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+    encoded[3] = (byte) (0x80 | (codePoint & 0x3F));
+    return 4;
+  }
+
+  /*
+    Return the child of node representing byte b, or NONE.
+   */
+  private int childOf(int node, byte b) {
+    int key = b & 0xFF;
+    for (int child = children[node]; child != NONE; child = siblings[child]) {
+      int label = labels[child] & 0xFF;
+      if (label == key) return child;
+      if (label > key) break;
+    }
+    return NONE;
+  }
+
+  /*
+    Return the child of node representing byte b, creating it in byte order among its siblings if necessary.
+   */
+  private int childOrCreate(int node, byte b) {
+    int key = b & 0xFF;
+    int previous = NONE;
+    int child = children[node];
+    while (child != NONE && (labels[child] & 0xFF) < key) {
+      previous = child;
+      child = siblings[child];
+    }
+    if (child != NONE && (labels[child] & 0xFF) == key) return child;
+    int created = allocateNode(b);
+    siblings[created] = child;
+    if (previous == NONE) {
+      children[node] = created;
+    } else {
+      siblings[previous] = created;
+    }
+    return created;
+  }
+
+  private int allocateNode(byte b) {
+    int node;
+    if (freeNode != NONE) {
+      node = freeNode;
+      freeNode = siblings[node];
+      if (freeCount > 0) freeCount--;
+    } else {
+      if (nodeCount == labels.length) {
+        int capacity = labels.length * 2;
+        labels = Arrays.copyOf(labels, capacity);
+        children = Arrays.copyOf(children, capacity);
+        siblings = Arrays.copyOf(siblings, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+        totals = Arrays.copyOf(totals, capacity);
+      }
+      node = nodeCount++;
+    }
+    labels[node] = b;
+    children[node] = NONE;
+    siblings[node] = NONE;
+    counts[node] = 0;
+    totals[node] = 0;
+    return node;
+  }
+
+  /*
+    Walk down the trie along the UTF-8 bytes of s, returning the node reached or NONE if there is no such path.
+    When create is true missing nodes are created and every node on the path, including the root, has delta added
+    to its total.
+   */
+  private int walk(CharSequence s, boolean create, int delta) {
+    int node = ROOT;
+    totals[node] += delta;
+    for (int i = 0; i < s.length(); ) {
+      int codePoint = Character.codePointAt(s, i);
+      i += Character.charCount(codePoint);
+      int length = encode(codePoint);
+      for (int j = 0; j < length; j++) {
+        node = create ? childOrCreate(node, encoded[j]) : childOf(node, encoded[j]);
+        if (node == NONE) return NONE;
+        totals[node] += delta;
+      }
+    }
+    return node;
+  }
+
+  private int find(CharSequence s) {
+    return walk(s, false, 0);
+  }
+
+  /*
+    As walk, but following bytes that are already UTF-8 encoded.
+   */
+  private int walkBytes(byte[] bytes, int offset, int length, boolean create, int delta) {
+    int node = ROOT;
+    totals[node] += delta;
+    for (int i = offset; i < offset + length; i++) {
+      node = create ? childOrCreate(node, bytes[i]) : childOf(node, bytes[i]);
+      if (node == NONE) return NONE;
+      totals[node] += delta;
+    }
+    return node;
+  }
+
+  /*
+    Add occurrences of the value whose UTF-8 encoding is given, without creating a String. Used by BagIngester to
+    count tokens straight from the bytes of a file.
+   */
+  void addBytes(byte[] bytes, int offset, int length, int occurrences) throws BagException {
+    if (occurrences < 1) return;
+    int node = walkBytes(bytes, offset, length, false, 0);
+    if (node == NONE || counts[node] == 0) {
+      if (size >= maxSize) {
+        throw new BagException("Bag is full");
+      }
+      size++;
+    }
+    node = walkBytes(bytes, offset, length, true, occurrences);
+    counts[node] += occurrences;
+    if (publishingChanges()) {
+      changed(new String(bytes, offset, length, StandardCharsets.UTF_8), counts[node] - occurrences, counts[node]);
+    } else {
+      countChanged(counts[node] - occurrences, counts[node]);
+    }
+  }
+
+  public void add(String value) throws BagException {
+    addWithOccurrences(value, 1);
+  }
+
+  public void addWithOccurrences(String value, int occurrences) throws BagException {
+    if (occurrences < 1) return;
+    if (!contains(value)) {
+      if (size >= maxSize) {
+        throw new BagException("Bag is full");
+      }
+      size++;
+    }
+    int node = walk(value, true, occurrences);
+    counts[node] += occurrences;
+    changed(value, counts[node] - occurrences, counts[node]);
+  }
+
+  public boolean contains(String value) {
+    return contains((CharSequence) value);
+  }
+
+  /**
+   * Check if the bag contains the value spelled by a sequence of characters, without creating a String.
+   * @param value The characters of the value to look for.
+   * @return True if the bag contains the value, false otherwise.
+   */
+  public boolean contains(CharSequence value) {
+    return countOf(value) > 0;
+  }
+
+  public int countOf(String value) {
+    return countOf((CharSequence) value);
+  }
+
+  /**
+   * Return the count of the value spelled by a sequence of characters, without creating a String.
+   * @param value The characters of the value to look for.
+   * @return The number of occurrences.
+   */
+  public int countOf(CharSequence value) {
+    int node = find(value);
+    return (node == NONE) ? 0 : counts[node];
+  }
+
+  /**
+   * Return the total number of occurrences of all the values starting with a prefix.
+   * @param prefix The prefix.
+   * @return The number of occurrences, which can exceed Integer.MAX_VALUE.
+   */
+  public long countWithPrefix(CharSequence prefix) {
+    int node = find(prefix);
+    return (node == NONE) ? 0 : totals[node];
+  }
+
+  public void remove(String value) {
+    removeWithOccurrences(value, 1);
+  }
+
+  /*
+    Decrement the totals along the path of value. When a node's total reaches zero nothing remains below it, and
+    since every other branch below it would have a non-zero total, the rest of the path is a single chain of nodes
+    which is unlinked from its parent and returned to the free list.
+   */
+  public void removeWithOccurrences(String value, int occurrences) {
+    if (occurrences < 1) return;
+    int terminal = find(value);
+    if (terminal == NONE || counts[terminal] == 0) return;
+    int removed = Math.min(occurrences, counts[terminal]);
+    counts[terminal] -= removed;
+    if (counts[terminal] == 0) size--;
+    changed(value, counts[terminal] + removed, counts[terminal]);
+
+    int node = ROOT;
+    totals[node] -= removed;
+    for (int i = 0; i < value.length(); ) {
+      int codePoint = value.codePointAt(i);
+      i += Character.charCount(codePoint);
+      int length = encode(codePoint);
+      for (int j = 0; j < length; j++) {
+        int child = childOf(node, encoded[j]);
+        totals[child] -= removed;
+        if (totals[child] == 0) {
+          unlink(node, child);
+          valueRemoved();
+          return;
+        }
+        node = child;
+      }
+    }
+  }
+
+  private void unlink(int parent, int child) {
+    if (children[parent] == child) {
+      children[parent] = siblings[child];
+    } else {
+      int previous = children[parent];
+      while (siblings[previous] != child) {
+        previous = siblings[previous];
+      }
+      siblings[previous] = siblings[child];
+    }
+    for (int node = child; node != NONE; ) {
+      int next = children[node];
+      children[node] = NONE;
+      siblings[node] = freeNode;
+      freeNode = node;
+      if (freeCount >= 0) freeCount++;
+      node = next;
+    }
+  }
+
+  /*
+    Each value of a batch is looked up by walking the trie, which is cheap, so the batch is applied with the
+    per-value lookups of AbstractBag.
+   */
+  @Override
+  int capacityLimit() {
+    return maxSize;
+  }
+
+  /*
+    The object's fields are maxSize, size, nodeCount, freeNode, freeCount and the six arrays.
+   */
+  @Override
+  public long estimatedMemoryBytes() {
+    return objectBytes(BAG_FIELDS + 5 * 4 + 6 * REFERENCE) + arrayBytes(labels.length, 1)
+        + 3 * arrayBytes(children.length, 4) + arrayBytes(children.length, 8) + arrayBytes(encoded.length, 1);
+  }
+
+  /*
+    Copy the nodes reachable from the root into arrays just large enough to hold them, renumbering them in the
+    order they are reached, which leaves out the free list and the spare capacity.
+   */
+  @Override
+  public void trimToSize() {
+    int[] renumbered = new int[nodeCount];
+    int[] stack = new int[nodeCount];
+    int top = 0;
+    int live = ROOT;
+    renumbered[ROOT] = live++;
+    stack[top++] = ROOT;
+    while (top > 0) {
+      int node = stack[--top];
+      for (int child = children[node]; child != NONE; child = siblings[child]) {
+        renumbered[child] = live++;
+        stack[top++] = child;
+      }
+    }
+    if (live == labels.length) return;
+    byte[] newLabels = new byte[live];
+    int[] newChildren = new int[live];
+    int[] newSiblings = new int[live];
+    int[] newCounts = new int[live];
+    long[] newTotals = new long[live];
+    for (int node = ROOT; node < nodeCount; node++) {
+      int target = renumbered[node];
+      if (target == NONE) continue;
+      newLabels[target] = labels[node];
+      newChildren[target] = renumbered[children[node]];
+      newSiblings[target] = renumbered[siblings[node]];
+      newCounts[target] = counts[node];
+      newTotals[target] = totals[node];
+    }
+    labels = newLabels;
+    children = newChildren;
+    siblings = newSiblings;
+    counts = newCounts;
+    totals = newTotals;
+    nodeCount = live;
+    freeNode = NONE;
+    freeCount = 0;
+  }
+
+  /*
+    The nodes in use are those allocated and not on the free list. Arrays no longer than the initial capacity are
+    never worth shrinking.
+   */
+  @Override
+  double occupancy() {
+    if (labels.length <= INITIAL_CAPACITY) return 1.0;
+    if (freeCount < 0) {
+      freeCount = 0;
+      for (int node = freeNode; node != NONE; node = siblings[node]) {
+        freeCount++;
+      }
+    }
+    return (double) (nodeCount - freeCount) / labels.length;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /*
+    This class implements an iterator over the values stored below a node of the trie, in byte order, by walking
+    the trie depth first. The bytes of the path from the root are kept in key, so each String is only created when
+    it is returned. When allOccurrences is true each value is returned once per occurrence.
+   */
+  private class StringBagIterator implements Iterator<String> {
+    private final boolean allOccurrences;
+    private final int base;
+    private byte[] key;
+    private int[] parents = new int[16];
+    private int depth = 0;
+    private int node;
+    private int returned = 0;
+
+    StringBagIterator(int start, byte[] prefix, boolean allOccurrences) {
+      this.allOccurrences = allOccurrences;
+      base = prefix.length;
+      key = Arrays.copyOf(prefix, base + 16);
+      node = start;
+      if (node != NONE && counts[node] == 0) {
+        moveToNextValue();
+      }
+    }
+
+    private void step() {
+      int child = children[node];
+      if (child != NONE) {
+        if (depth == parents.length) {
+          parents = Arrays.copyOf(parents, depth * 2);
+        }
+        if (base + depth == key.length) {
+          key = Arrays.copyOf(key, key.length * 2);
+        }
+        parents[depth] = node;
+        key[base + depth] = labels[child];
+        depth++;
+        node = child;
+        return;
+      }
+      while (depth > 0) {
+        int sibling = siblings[node];
+        if (sibling != NONE) {
+          key[base + depth - 1] = labels[sibling];
+          node = sibling;
+          return;
+        }
+        depth--;
+        node = parents[depth];
+      }
+      node = NONE;
+    }
+
+    private void moveToNextValue() {
+      do {
+        step();
+      } while (node != NONE && counts[node] == 0);
+    }
+
+    public boolean hasNext() {
+      return node != NONE;
+    }
+
+    public String next() {
+      if (node == NONE) throw new NoSuchElementException();
+      String value = new String(key, 0, base + depth, StandardCharsets.UTF_8);
+      returned++;
+      if (!allOccurrences || returned == counts[node]) {
+        returned = 0;
+        moveToNextValue();
+      }
+      return value;
+    }
+
+    /*
+      Return the next value paired with its count, read from the node reached, for entryIterator.
+     */
+    Map.Entry<String, Integer> nextEntry() {
+      int count = (node == NONE) ? 0 : counts[node];
+      return new AbstractMap.SimpleImmutableEntry<>(next(), count);
+    }
+  }
+
+  /**
+   * Return an iterator over the unique values starting with a prefix, in code point order.
+   * @param prefix The prefix.
+   * @return The new Iterator.
+   */
+  public Iterator<String> iteratePrefix(CharSequence prefix) {
+    return new StringBagIterator(find(prefix), prefix.toString().getBytes(StandardCharsets.UTF_8), false);
+  }
+
+  public Iterator<String> iterator() {
+    return new StringBagIterator(ROOT, new byte[0], false);
+  }
+
+  public Iterator<String> allOccurrencesIterator() {
+    return new StringBagIterator(ROOT, new byte[0], true);
+  }
+
+  @Override
+  Iterator<Map.Entry<String, Integer>> entryIterator() {
+    StringBagIterator values = new StringBagIterator(ROOT, new byte[0], false);
+    return new Iterator<Map.Entry<String, Integer>>() {
+      public boolean hasNext() {
+        return values.hasNext();
+      }
+
+      public Map.Entry<String, Integer> next() {
+        return values.nextEntry();
+      }
+    };
+  }
+}
@@ -0,0 +1,324 @@
+package uk.ac.ucl.bag;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.function.LongSupplier;
+
+/*
+   This class implements a Bag that only counts values added during a sliding window of time, for example
+   "the last 5 minutes". The window is divided into a ring of fixed length intervals, each with its own bucket
+   recording the values added during that interval. A second bag holds the combined counts of all the buckets,
+   so countOf, contains and iteration answer for the whole window without visiting every bucket.
+
+   When time moves past an interval, the bucket that falls out of the window is subtracted from the combined
+   counts entry by entry and then cleared for reuse. Expiring a bucket therefore costs one update per value it
+   holds, rather than rebuilding the window.
+
+   The buckets and the combined counts are ArrayBags, so expiry can walk the arrays of the bucket directly.
+   It is implemented as a JavaBeans component @see AbstractBag.java. The clock is not persisted; a loaded bag uses
+   the system clock.
+ */
+public class WindowedBag<T> extends AbstractBag<T> {
+  private static final int DEFAULT_BUCKET_COUNT = 60;
+  private static final long DEFAULT_INTERVAL_MILLIS = 5000;
+
+  private int maxSize;
+  private long intervalMillis;
+  private long currentInterval;
+  private ArrayList<ArrayBag<T>> buckets;
+  private ArrayBag<T> window;
+  private transient LongSupplier clock;
+
+  public WindowedBag() throws BagException {
+    this(MAX_SIZE, Comparator.comparing(Objects::hashCode), DEFAULT_BUCKET_COUNT, DEFAULT_INTERVAL_MILLIS);
+  }
+
+  public WindowedBag(int maxSize, Comparator<T> orderRelation, int bucketCount, long intervalMillis)
+      throws BagException {
+    this(maxSize, orderRelation, bucketCount, intervalMillis, System::currentTimeMillis);
+  }
+
+  /**
+   * Create a windowed bag covering bucketCount * intervalMillis milliseconds.
+   * @param maxSize The maximum number of distinct values in the window.
+   * @param orderRelation The order relation used to compare values.
+   * @param bucketCount The number of intervals the window is divided into.
+   * @param intervalMillis The length of each interval in milliseconds.
+   * @param clock The source of the current time in milliseconds.
+   * @throws BagException If the size, bucket count or interval is out of range.
+   */
+  public WindowedBag(int maxSize, Comparator<T> orderRelation, int bucketCount, long intervalMillis,
+                     LongSupplier clock) throws BagException {
+    if (bucketCount < 1) {
+      throw new BagException("Attempting to create a windowed Bag with less than 1 bucket");
+    }
+    if (intervalMillis < 1) {
+      throw new BagException("Attempting to create a windowed Bag with an interval less than 1 millisecond");
+    }
+    this.maxSize = maxSize;
+    this.intervalMillis = intervalMillis;
+    this.clock = clock;
+    this.orderRelation = orderRelation;
+    currentInterval = clock.getAsLong() / intervalMillis;
+    window = new ArrayBag<>(maxSize, orderRelation);
+    buckets = new ArrayList<>(bucketCount);
+    for (int i = 0; i < bucketCount; i++) {
+      buckets.add(new ArrayBag<>(maxSize, orderRelation));
+    }
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  public void setMaxSize(int maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  public long getIntervalMillis() {
+    return intervalMillis;
+  }
+
+  public void setIntervalMillis(long intervalMillis) {
+    this.intervalMillis = intervalMillis;
+  }
+
+  public long getCurrentInterval() {
+    return currentInterval;
+  }
+
+  public void setCurrentInterval(long currentInterval) {
+    this.currentInterval = currentInterval;
+  }
+
+  public ArrayList<ArrayBag<T>> getBuckets() {
+    return buckets;
+  }
+
+  public void setBuckets(ArrayList<ArrayBag<T>> buckets) {
+    this.buckets = buckets;
+  }
+
+  public ArrayBag<T> getWindow() {
+    return window;
+  }
+
+  public void setWindow(ArrayBag<T> window) {
+    this.window = window;
+  }
+
+  private long now() {
+    if (clock == null) {
+      clock = System::currentTimeMillis;
+    }
+    return clock.getAsLong();
+  }
+
+  private ArrayBag<T> bucketFor(long interval) {
+    return buckets.get((int) Math.floorMod(interval, (long) buckets.size()));
+  }
+
+  /*
+    Move the window forward to the current time, expiring each bucket that has fallen out of it. If the bag has
+    not been used for longer than the whole window, each bucket is expired once.
+   */
+  private void advance() {
+    long interval = now() / intervalMillis;
+    long steps = Math.min(interval - currentInterval, buckets.size());
+    for (long i = 1; i <= steps; i++) {
+      expire(bucketFor(currentInterval + i));
+    }
+    if (interval > currentInterval) {
+      currentInterval = interval;
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void expire(ArrayBag<T> bucket) {
+    Object[] values = bucket.getValues();
+    int[] counts = bucket.getCounts();
+    for (int i = 0; i < bucket.size(); i++) {
+      window.removeWithOccurrences((T) values[i], counts[i]);
+    }
+    bucket.clear();
+  }
+
+  public void add(T value) throws BagException {
+    addWithOccurrences(value, 1);
+  }
+
+  public void addWithOccurrences(T value, int occurrences) throws BagException {
+    advance();
+    window.addWithOccurrences(value, occurrences);
+    bucketFor(currentInterval).addWithOccurrences(value, occurrences);
+  }
+
+  public boolean contains(T value) {
+    advance();
+    return window.contains(value);
+  }
+
+  public int countOf(T value) {
+    advance();
+    return window.countOf(value);
+  }
+
+  /*
+    Remove occurrences of value starting from the most recent bucket, so the occurrences that remain are the ones
+    that will expire soonest.
+   */
+  public void remove(T value) {
+    removeWithOccurrences(value, 1);
+  }
+
+  public void removeWithOccurrences(T value, int occurrences) {
+    advance();
+    int remaining = Math.min(occurrences, window.countOf(value));
+    window.removeWithOccurrences(value, remaining);
+    for (int age = 0; remaining > 0 && age < buckets.size(); age++) {
+      ArrayBag<T> bucket = bucketFor(currentInterval - age);
+      int count = Math.min(remaining, bucket.countOf(value));
+      bucket.removeWithOccurrences(value, count);
+      remaining -= count;
+    }
+  }
+
+  /**
+   * Return the count of value over the window with each occurrence weighted by its age, halving the weight every
+   * halfLifeMillis. Occurrences in the current interval have a weight of 1.
+   * @param value The value to look for.
+   * @param halfLifeMillis The time in milliseconds for the weight of an occurrence to halve.
+   * @return The decayed count.
+   */
+  public double decayedCountOf(T value, long halfLifeMillis) {
+    advance();
+    double decayPerInterval = Math.pow(0.5, (double) intervalMillis / halfLifeMillis);
+    double weight = 1.0;
+    double total = 0.0;
+    for (int age = 0; age < buckets.size(); age++) {
+      total += weight * bucketFor(currentInterval - age).countOf(value);
+      weight *= decayPerInterval;
+    }
+    return total;
+  }
+
+  /**
+   * Return the values with the highest counts over the window, most frequent first.
+   * @param limit The maximum number of values to return.
+   * @return The most frequent values.
+   */
+  @SuppressWarnings("unchecked")
+  public List<T> topValues(int limit) {
+    advance();
+    Object[] values = window.getValues();
+    int[] counts = window.getCounts();
+    PriorityQueue<Integer> top = new PriorityQueue<>(Comparator.comparingInt((Integer i) -> counts[i]));
+    for (int i = 0; i < window.size() && limit > 0; i++) {
+      if (top.size() < limit) {
+        top.add(i);
+      } else if (counts[i] > counts[top.peek()]) {
+        top.poll();
+        top.add(i);
+      }
+    }
+    ArrayList<T> result = new ArrayList<>(top.size());
+    while (!top.isEmpty()) {
+      result.add((T) values[top.poll()]);
+    }
+    Collections.reverse(result);
+    return result;
+  }
+
+  /*
+    Changes are published and counted by the combined window bag, so they include values expiring from the window.
+   */
+  @Override
+  public BagChangePublisher<T> changes() {
+    return window.changes();
+  }
+
+  @Override
+  public CountHistogram countHistogram() {
+    return window.countHistogram();
+  }
+
+  @Override
+  public long fingerprint() {
+    advance();
+    return window.fingerprint();
+  }
+
+  /*
+    The window holds at most maxSize values, and a batch is checked against it before any bucket is changed.
+   */
+  @Override
+  int capacityLimit() {
+    return maxSize;
+  }
+
+  /*
+    The bag holds the combined window and the list of buckets, each an ArrayBag with its own estimate.
+   */
+  @Override
+  public long estimatedMemoryBytes() {
+    long bytes = objectBytes(BAG_FIELDS + 4 + 2 * 8 + 3 * REFERENCE) + objectBytes(2 * 4 + REFERENCE)
+        + arrayBytes(buckets.size(), REFERENCE) + window.estimatedMemoryBytes();
+    for (ArrayBag<T> bucket : buckets) {
+      bytes += bucket.estimatedMemoryBytes();
+    }
+    return bytes;
+  }
+
+  @Override
+  public void trimToSize() {
+    window.trimToSize();
+    for (ArrayBag<T> bucket : buckets) {
+      bucket.trimToSize();
+    }
+  }
+
+  /*
+    Only the window shrinks automatically, as values expire from it. Buckets are cleared and refilled every time
+    round the ring, so shrinking them would only make them grow again.
+   */
+  @Override
+  public void setShrinkThreshold(double shrinkThreshold) {
+    super.setShrinkThreshold(shrinkThreshold);
+    window.setShrinkThreshold(shrinkThreshold);
+  }
+
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  public int size() {
+    advance();
+    return window.size();
+  }
+
+  /*
+    Return an iterator over the unique values in the window. The window is brought up to date when the iterator
+    is created.
+   */
+  public Iterator<T> iterator() {
+    advance();
+    return window.iterator();
+  }
+
+  @Override
+  Iterator<Map.Entry<T, Integer>> entryIterator() {
+    advance();
+    return window.entryIterator();
+  }
+
+  public Iterator<T> allOccurrencesIterator() {
+    advance();
+    return window.allOccurrencesIterator();
+  }
+}
@@ -0,0 +1,134 @@
+package uk.ac.ucl.bag;
+
+import org.junit.Before;
+import org.junit.Test;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+/*
+  Measures the bytes allocated per bag operation with the per-thread allocation counter of the HotSpot
+  ThreadMXBean, and fails if an operation allocates more than its budget. Each operation is run enough times first
+  for the JIT to compile it, as the interpreter allocates where compiled code does not. The tests are skipped on a
+  JVM without the counter.
+ */
+public class AllocationTest {
+
+    private interface Operation {
+        void run(int i) throws BagException;
+    }
+
+    private static final int WARMUP = 200000;
+    private static final int ITERATIONS = 100000;
+
+    private com.sun.management.ThreadMXBean threads;
+    private final String[] values = new String[64];
+
+    @Before
+    public void setUp() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        for (int i = 0; i < values.length; i++) {
+            values[i] = "value" + i;
+        }
+    }
+
+    private long allocatedBytes() {
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private double bytesPerOperation(Operation operation) throws BagException {
+        for (int i = 0; i < WARMUP; i++) {
+            operation.run(i);
+        }
+        long before = allocatedBytes();
+        for (int i = 0; i < ITERATIONS; i++) {
+            operation.run(i);
+        }
+        return (double) (allocatedBytes() - before) / ITERATIONS;
+    }
+
+    private Bag<String> newBag(String bagClass) throws BagException {
+        Bag<String> bag = BagClasses.newBag(bagClass);
+        for (String value : values) {
+            bag.add(value);
+        }
+        return bag;
+    }
+
+    /*
+      Fail if an operation allocates more than budget bytes on average. Less than a byte per operation is allowed
+      over a zero budget, for the odd allocation made by the measurement itself.
+     */
+    private void assertBudget(String bagClass, String name, double budget, Operation operation) throws BagException {
+        double allocated = bytesPerOperation(operation);
+        assertTrue(bagClass + " " + name + " allocated " + allocated + " bytes per operation, budget " + budget,
+                allocated < budget + 1);
+    }
+
+    private void checkBudgets(String bagClass, double insertBudget, double iterateBudget) throws BagException {
+        Bag<String> bag = newBag(bagClass);
+        assertBudget(bagClass, "countOf", 0, i -> bag.countOf(values[i & 63]));
+        assertBudget(bagClass, "countOf missing value", 0, i -> bag.countOf("missing"));
+        assertBudget(bagClass, "contains", 0, i -> bag.contains(values[i & 63]));
+        assertBudget(bagClass, "add and remove existing value", 0, i -> {
+            bag.add(values[i & 63]);
+            bag.remove(values[i & 63]);
+        });
+        assertBudget(bagClass, "add and remove new value", insertBudget, i -> {
+            bag.add("missing");
+            bag.remove("missing");
+        });
+        assertBudget(bagClass, "iterate", iterateBudget, i -> {
+            for (Iterator<String> iterator = bag.iterator(); iterator.hasNext(); ) {
+                iterator.next();
+            }
+        });
+        assertEquals(values.length, bag.size());
+    }
+
+    @Test
+    public void testArrayBag() throws Exception {
+        checkBudgets("ArrayBag", 0, 64);
+    }
+
+    @Test
+    public void testSortedArrayBag() throws Exception {
+        checkBudgets("SortedArrayBag", 0, 64);
+    }
+
+    // A new value costs a MutableInt and a HashMap node, and iteration a key set iterator.
+    @Test
+    public void testMapBag() throws Exception {
+        checkBudgets("MapBag", 64, 64);
+    }
+
+    @Test
+    public void testLinkedListBag() throws Exception {
+        checkBudgets("LinkedListBag", 0, 64);
+    }
+
+    // Iterating creates a String for each value returned.
+    @Test
+    public void testStringBag() throws Exception {
+        checkBudgets("StringBag", 0, 64 * values.length);
+    }
+
+    // Change tracking costs nothing without subscribers, and the histogram nothing for counts held in its array.
+    @Test
+    public void testUnobservedChanges() throws Exception {
+        ArrayBag<String> bag = new ArrayBag<>(Bag.MAX_SIZE, Comparator.<String>naturalOrder());
+        bag.changes();
+        bag.add("a");
+        assertBudget("ArrayBag", "add with publisher but no subscribers", 0, i -> bag.add("a"));
+        bag.countHistogram();
+        assertBudget("ArrayBag", "add and remove with histogram", 0, i -> {
+            bag.add("b");
+            bag.remove("b");
+        });
+    }
+}
@@ -214,4 +214,40 @@ public class ArrayBagTest {
         assertTrue(bag.toString().equals(Bag.loadFrom("tmp.xml").toString()));
     }
 
+    @Test
+    public void testRemoveMovesLastValueIntoGap() throws BagException {
+        Bag<String> bag = BagFactory.getInstance().getBag(Comparator.naturalOrder());
+        bag.add("a");
+        bag.add("b");
+        bag.add("c");
+        bag.remove("a");
+        assertEquals("[c: 1, b: 1]", bag.toString());
+    }
+
+    @Test
+    public void testSortedArrayBag() throws BagException {
+        BagFactory<String> bagFactory = BagFactory.getInstance();
+        bagFactory.setBagClass("SortedArrayBag");
+        Bag<String> bag = bagFactory.getBag(Comparator.naturalOrder());
+        bag.add("pear");
+        bag.addWithOccurrences("apple", 2);
+        bag.add("fig");
+        bag.add("pear");
+        bag.remove("fig");
+        assertEquals("[apple: 2, pear: 2]", bag.toString());
+        assertTrue(bag.contains("apple") && !bag.contains("fig"));
+    }
+
+    @Test
+    public void testPersistGrownBag() throws IOException, BagException {
+        BagFactory<String> bagFactory = BagFactory.getInstance();
+        bagFactory.setBagClass("SortedArrayBag");
+        Bag<String> bag = bagFactory.getBag(Comparator.naturalOrder());
+        for (int i = 0; i < 20; i++) {
+            bag.addWithOccurrences("value" + i, i + 1);
+        }
+        bag.persist("tmp.xml");
+        assertEquals(bag.toString(), Bag.loadFrom("tmp.xml").toString());
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,125 @@
+package uk.ac.ucl.bag;
+
+import org.junit.Test;
+import java.util.*;
+import static org.junit.Assert.*;
+
+public class BagBatchTest {
+
+    private Bag<String> newBag(String bagClass, int maxSize) throws BagException {
+        Bag<String> bag = BagClasses.newBag(bagClass, maxSize);
+        bag.addWithOccurrences("foo", 3);
+        bag.add("bar");
+        bag.addWithOccurrences("mar", 2);
+        return bag;
+    }
+
+    private Map<String, Integer> contents(Bag<String> bag) {
+        Map<String, Integer> contents = new TreeMap<>();
+        for (String value : bag) {
+            contents.put(value, bag.countOf(value));
+        }
+        return contents;
+    }
+
+    @Test
+    public void testCombinesChanges() {
+        BagBatch<String> batch = new BagBatch<String>().add("foo").add("bar", 2).remove("foo", 3).add("foo", 0);
+        assertEquals(2, batch.size());
+        assertEquals("foo", batch.getValue(0));
+        assertEquals(-2, batch.getChange(0));
+        assertEquals(2, batch.getChange(1));
+    }
+
+    @Test
+    public void testApplyBatch() throws BagException {
+        for (String bagClass : BagClasses.ALL) {
+            Bag<String> bag = newBag(bagClass, 10);
+            bag.applyBatch(new BagBatch<String>()
+                .add("foo", 2).remove("bar").remove("mar", 5).add("car").add("dar", 3).remove("missing").add("ear"));
+            Map<String, Integer> expected = new TreeMap<>();
+            expected.put("foo", 5);
+            expected.put("car", 1);
+            expected.put("dar", 3);
+            expected.put("ear", 1);
+            assertEquals(bagClass, expected, contents(bag));
+            assertEquals(bagClass, 4, bag.size());
+            assertFalse(bagClass, bag.contains("bar"));
+        }
+    }
+
+    @Test
+    public void testSortedBagStaysSorted() throws BagException {
+        Bag<String> bag = newBag("SortedArrayBag", 10);
+        bag.applyBatch(new BagBatch<String>().add("zar").add("aar").remove("foo", 3).add("gar"));
+        List<String> values = new ArrayList<>();
+        bag.forEach(values::add);
+        assertEquals(Arrays.asList("aar", "bar", "gar", "mar", "zar"), values);
+        assertTrue(bag.contains("gar"));
+    }
+
+    @Test
+    public void testAllOrNothing() throws BagException {
+        for (String bagClass : BagClasses.ALL) {
+            Bag<String> bag = newBag(bagClass, 4);
+            Map<String, Integer> before = contents(bag);
+            try {
+                bag.applyBatch(new BagBatch<String>().add("foo").add("car").add("dar"));
+                fail(bagClass);
+            } catch (BagException e) {
+                assertEquals(bagClass, before, contents(bag));
+            }
+            bag.applyBatch(new BagBatch<String>().remove("bar").add("car").add("dar"));
+            assertEquals(bagClass, 4, bag.size());
+        }
+    }
+
+    @Test
+    public void testPublishesChanges() throws BagException {
+        for (String bagClass : BagClasses.ALL) {
+            Bag<String> bag = newBag(bagClass, 10);
+            CountHistogram histogram = bag.countHistogram();
+            List<String> changes = new ArrayList<>();
+            bag.changes().addListener((value, oldCount, newCount) -> changes.add(value + " " + oldCount + "->" + newCount));
+            bag.applyBatch(new BagBatch<String>().add("car").remove("bar").add("foo"));
+            Collections.sort(changes);
+            assertEquals(bagClass, Arrays.asList("bar 1->0", "car 0->1", "foo 3->4"), changes);
+            assertEquals(bagClass, 1, histogram.valuesWithCount(1));
+            assertEquals(bagClass, 3, histogram.getDistinctValues());
+        }
+    }
+
+    @Test
+    public void testShardedBag() throws BagException {
+        BagFactory<String> bagFactory = BagFactory.getInstance();
+        bagFactory.setBagClass("ArrayBag");
+        ShardedBag<String> bag = new ShardedBag<>(4, 3, Comparator.<String>naturalOrder());
+        BagBatch<String> batch = new BagBatch<>();
+        for (int i = 0; i < 8; i++) {
+            batch.add("value" + i, i + 1);
+        }
+        bag.applyBatch(batch);
+        assertEquals(8, bag.size());
+        assertEquals(6, bag.countOf("value5"));
+
+        BagBatch<String> tooMany = new BagBatch<String>().remove("value0", 1);
+        for (int i = 8; i < 20; i++) {
+            tooMany.add("value" + i);
+        }
+        try {
+            bag.applyBatch(tooMany);
+            fail();
+        } catch (BagException e) {
+            assertEquals(8, bag.size());
+            assertEquals(1, bag.countOf("value0"));
+        }
+    }
+
+    @Test
+    public void testEvictingBagNeverFull() throws BagException {
+        EvictingBag<String> bag = new EvictingBag<>(2, Comparator.<String>naturalOrder());
+        bag.applyBatch(new BagBatch<String>().add("foo", 3).add("bar").add("mar", 2));
+        assertEquals(2, bag.size());
+        assertEquals(3, bag.countOf("foo"));
+    }
+}
@@ -0,0 +1,192 @@
+package uk.ac.ucl.bag;
+
+import org.junit.Test;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.*;
+
+public class BagChangePublisherTest {
+
+    private static class Recorder implements Flow.Subscriber<List<BagChange<String>>> {
+        final List<List<BagChange<String>>> batches = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch completed = new CountDownLatch(1);
+
+        public void onSubscribe(Flow.Subscription subscription) {
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        public void onNext(List<BagChange<String>> batch) {
+            batches.add(batch);
+        }
+
+        public void onError(Throwable throwable) {
+        }
+
+        public void onComplete() {
+            completed.countDown();
+        }
+    }
+
+    private Recorder subscribe(Bag<String> bag, int batchSize) {
+        Recorder recorder = new Recorder();
+        bag.changes().setBatchSize(batchSize);
+        bag.changes().setMaxDelayMillis(0);
+        bag.changes().subscribe(recorder);
+        return recorder;
+    }
+
+    private void checkChanges(Bag<String> bag) throws Exception {
+        Recorder recorder = subscribe(bag, 100);
+        bag.add("a");
+        bag.addWithOccurrences("a", 4);
+        bag.add("b");
+        bag.remove("a");
+        bag.removeWithOccurrences("b", 3);
+        bag.remove("c");
+        bag.changes().close();
+        assertTrue(recorder.completed.await(5, TimeUnit.SECONDS));
+
+        assertEquals(1, recorder.batches.size());
+        List<BagChange<String>> batch = recorder.batches.get(0);
+        // b was added and removed again within the batch, so only the change to a is published
+        assertEquals(1, batch.size());
+        assertEquals("a", batch.get(0).getValue());
+        assertEquals(0, batch.get(0).getOldCount());
+        assertEquals(4, batch.get(0).getNewCount());
+        assertEquals(4, bag.countOf("a"));
+    }
+
+    @Test
+    public void testArrayBag() throws Exception {
+        checkChanges(new ArrayBag<>(10, Comparator.<String>naturalOrder()));
+    }
+
+    @Test
+    public void testLinkedListBag() throws Exception {
+        checkChanges(new LinkedListBag<>(10, Comparator.<String>naturalOrder(),
+                LinkedListBag.SelfOrganization.MOVE_TO_FRONT));
+    }
+
+    @Test
+    public void testMapBag() throws Exception {
+        checkChanges(new MapBag<>(10, Comparator.<String>naturalOrder()));
+    }
+
+    @Test
+    public void testStringBag() throws Exception {
+        checkChanges(new StringBag());
+    }
+
+    @Test
+    public void testShardedBag() throws Exception {
+        BagFactory.getInstance().setBagClass("ArrayBag");
+        checkChanges(new ShardedBag<>(4, 10, Comparator.<String>naturalOrder()));
+    }
+
+    @Test
+    public void testBatches() throws Exception {
+        Bag<String> bag = new ArrayBag<>(100, Comparator.<String>naturalOrder());
+        Recorder recorder = subscribe(bag, 10);
+        for (int i = 0; i < 25; i++) {
+            bag.addWithOccurrences("value" + i, i + 1);
+        }
+        bag.changes().flush();
+        bag.changes().close();
+        assertTrue(recorder.completed.await(5, TimeUnit.SECONDS));
+        assertEquals(3, recorder.batches.size());
+        assertEquals(10, recorder.batches.get(0).size());
+        assertEquals(5, recorder.batches.get(2).size());
+        assertEquals(25, recorder.batches.get(2).get(4).getNewCount());
+    }
+
+    @Test
+    public void testNoSubscribers() throws Exception {
+        Bag<String> bag = new ArrayBag<>(10, Comparator.<String>naturalOrder());
+        bag.changes();
+        bag.add("a");
+        Recorder recorder = subscribe(bag, 1);
+        bag.add("b");
+        bag.changes().close();
+        assertTrue(recorder.completed.await(5, TimeUnit.SECONDS));
+        assertEquals(1, recorder.batches.size());
+        assertEquals("b", recorder.batches.get(0).get(0).getValue());
+    }
+
+    @Test
+    public void testPublishesAfterDelay() throws Exception {
+        Bag<String> bag = new MapBag<>(10, Comparator.<String>naturalOrder());
+        Recorder recorder = new Recorder();
+        bag.changes().setMaxDelayMillis(20);
+        bag.changes().subscribe(recorder);
+        for (int i = 0; i < 1000; i++) {
+            bag.add("hot");
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (recorder.batches.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertFalse(recorder.batches.isEmpty());
+        assertEquals("hot", recorder.batches.get(0).get(0).getValue());
+        assertEquals(0, recorder.batches.get(0).get(0).getOldCount());
+    }
+
+    /*
+      Threads changing different shards record concurrently. Applied in the order published, each change must start
+      from the count the previous change to that value ended at.
+     */
+    @Test
+    public void testBatchesStayInOrder() throws Exception {
+        BagFactory.getInstance().setBagClass("MapBag");
+        Bag<String> bag = new ShardedBag<>(8, Bag.MAX_SIZE, Comparator.<String>naturalOrder());
+        Map<String, Integer> counts = new ConcurrentHashMap<>();
+        List<String> errors = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch completed = new CountDownLatch(1);
+        bag.changes().setBatchSize(2);
+        bag.changes().subscribe(new Flow.Subscriber<List<BagChange<String>>>() {
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            public void onNext(List<BagChange<String>> batch) {
+                for (BagChange<String> change : batch) {
+                    int count = counts.getOrDefault(change.getValue(), 0);
+                    if (count != change.getOldCount()) {
+                        errors.add(change.getValue() + " " + count + " " + change.getOldCount());
+                    }
+                    counts.put(change.getValue(), change.getNewCount());
+                }
+            }
+
+            public void onError(Throwable throwable) {
+            }
+
+            public void onComplete() {
+                completed.countDown();
+            }
+        });
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 4800; i++) {
+                        bag.add("value" + (i % 16));
+                    }
+                } catch (BagException e) {
+                    errors.add(e.getMessage());
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        bag.changes().close();
+        assertTrue(completed.await(10, TimeUnit.SECONDS));
+        assertEquals(Collections.emptyList(), errors);
+        assertEquals(1200, (int) counts.get("value3"));
+    }
+}
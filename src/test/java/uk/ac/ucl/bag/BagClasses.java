@@ -0,0 +1,35 @@
+package uk.ac.ucl.bag;
+
+import java.util.*;
+
+/*
+  The bag classes the BagFactory can create for Strings, for tests that check the same behaviour against each of
+  them. A new implementation is added to the list here rather than to every such test.
+ */
+final class BagClasses {
+
+    static final List<String> ALL = Collections.unmodifiableList(
+        Arrays.asList("ArrayBag", "SortedArrayBag", "MapBag", "LinkedListBag", "StringBag"));
+
+    private BagClasses() {
+    }
+
+    /*
+      Create an empty bag of the given class through the BagFactory, ordered by the natural order of Strings.
+     */
+    static Bag<String> newBag(String bagClass, int maxSize) throws BagException {
+        BagFactory<String> bagFactory = BagFactory.getInstance();
+        bagFactory.setBagClass(bagClass);
+        return bagFactory.getBag(maxSize, Comparator.<String>naturalOrder());
+    }
+
+    static Bag<String> newBag(String bagClass) throws BagException {
+        return newBag(bagClass, Bag.MAX_SIZE);
+    }
+
+    static ReadMostlyBag<String> newReadMostlyBag(String bagClass) throws BagException {
+        BagFactory<String> bagFactory = BagFactory.getInstance();
+        bagFactory.setBagClass(bagClass);
+        return bagFactory.getReadMostlyBag(Bag.MAX_SIZE, Comparator.<String>naturalOrder());
+    }
+}
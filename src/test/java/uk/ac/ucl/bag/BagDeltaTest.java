@@ -0,0 +1,98 @@
+package uk.ac.ucl.bag;
+
+import org.junit.Before;
+import org.junit.Test;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.*;
+import static org.junit.Assert.*;
+
+public class BagDeltaTest {
+
+    private BagFactory<String> bagFactory;
+    private Bag<String> older;
+    private Bag<String> newer;
+
+    @Before
+    public void setUp() throws Exception {
+        bagFactory = BagFactory.getInstance();
+        bagFactory.setBagClass("ArrayBag");
+        older = bagFactory.getBag(Comparator.naturalOrder());
+        older.addWithOccurrences("foo", 3);
+        older.add("bar");
+        older.addWithOccurrences("mar", 2);
+
+        newer = bagFactory.getBag(Comparator.naturalOrder());
+        newer.addWithOccurrences("foo", 5);
+        newer.addWithOccurrences("mar", 2);
+        newer.add("roo");
+    }
+
+    @Test
+    public void testDiff() {
+        BagDelta<String> delta = newer.diff(older);
+        Map<String, Integer> changes = new HashMap<>();
+        for (int i = 0; i < delta.size(); i++) {
+            changes.put(delta.getValue(i), delta.getChange(i));
+        }
+        Map<String, Integer> expected = new HashMap<>();
+        expected.put("foo", 2);
+        expected.put("roo", 1);
+        expected.put("bar", -1);
+        assertEquals(expected, changes);
+    }
+
+    @Test
+    public void testApplyDelta() throws BagException {
+        older.applyDelta(newer.diff(older));
+        assertTrue(older.diff(newer).isEmpty());
+        assertEquals(5, older.countOf("foo"));
+        assertFalse(older.contains("bar"));
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException, BagException {
+        BagDelta<String> delta = newer.diff(older);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        delta.writeTo(out);
+        BagDelta<String> read = BagDelta.readFrom(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(delta.size(), read.size());
+
+        bagFactory.setBagClass("LinkedListBag");
+        Bag<String> replica = bagFactory.getBag(Comparator.naturalOrder());
+        replica.applyDelta(older.diff(replica));
+        replica.applyDelta(read);
+        assertTrue(replica.diff(newer).isEmpty());
+    }
+
+    @Test
+    public void testApplyDeltaIsAtomic() throws BagException {
+        Bag<String> small = bagFactory.getBag(3, Comparator.naturalOrder());
+        small.add("foo");
+        small.add("bar");
+        BagDelta<String> delta = new BagDelta<>();
+        delta.add("foo", 2);
+        delta.add("roo", 1);
+        delta.add("mar", 1);
+        try {
+            small.applyDelta(delta);
+            fail();
+        } catch (BagException e) {
+            assertEquals(1, small.countOf("foo"));
+            assertEquals(1, small.countOf("bar"));
+            assertEquals(2, small.size());
+        }
+    }
+
+    @Test
+    public void testDiffAcrossImplementations() throws BagException {
+        for (String bagClass : BagClasses.ALL) {
+            Bag<String> replica = BagClasses.newBag(bagClass);
+            replica.applyDelta(newer.diff(replica));
+            assertTrue(bagClass, replica.diff(newer).isEmpty());
+            assertTrue(bagClass, newer.diff(replica).isEmpty());
+            assertEquals(bagClass, newer, replica);
+        }
+    }
+}
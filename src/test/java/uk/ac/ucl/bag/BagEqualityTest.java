@@ -0,0 +1,118 @@
+package uk.ac.ucl.bag;
+
+import org.junit.Test;
+import java.util.*;
+import static org.junit.Assert.*;
+
+public class BagEqualityTest {
+
+    private List<Bag<String>> filledBags() throws BagException {
+        List<Bag<String>> bags = new ArrayList<>();
+        for (String bagClass : BagClasses.ALL) {
+            bags.add(BagClasses.newBag(bagClass));
+        }
+        bags.add(new EvictingBag<>(Bag.MAX_SIZE, Comparator.<String>naturalOrder()));
+        bags.add(new ShardedBag<>(4, Bag.MAX_SIZE, Comparator.<String>naturalOrder()));
+        bags.add(new ReadMostlyBag<>(new MapBag<>(Bag.MAX_SIZE, Comparator.<String>naturalOrder())));
+        BagStore<String> store = new BagStore<>(Bag.MAX_SIZE, Comparator.<String>naturalOrder());
+        bags.add(store.bag(store.newBag()));
+        for (Bag<String> bag : bags) {
+            bag.addWithOccurrences("foo", 3);
+            bag.add("bar");
+            bag.addWithOccurrences("mar", 2);
+        }
+        return bags;
+    }
+
+    @Test
+    public void testEqualAcrossImplementations() throws BagException {
+        List<Bag<String>> bags = filledBags();
+        for (Bag<String> a : bags) {
+            for (Bag<String> b : bags) {
+                assertEquals(a.getClass().getSimpleName() + " " + b.getClass().getSimpleName(), a, b);
+                assertEquals(a.hashCode(), b.hashCode());
+            }
+        }
+    }
+
+    @Test
+    public void testFingerprintFollowsChanges() throws BagException {
+        for (Bag<String> bag : filledBags()) {
+            long before = bag.fingerprint();
+            bag.add("car");
+            assertNotEquals(before, bag.fingerprint());
+            bag.remove("car");
+            assertEquals(before, bag.fingerprint());
+            bag.remove("foo");
+            bag.add("foo");
+            assertEquals(before, bag.fingerprint());
+        }
+    }
+
+    @Test
+    public void testMatchesRecomputedFingerprint() throws BagException {
+        Random random = new Random(7);
+        for (String bagClass : BagClasses.ALL) {
+            Bag<String> bag = BagClasses.newBag(bagClass);
+            bag.fingerprint();
+            for (int i = 0; i < 2000; i++) {
+                String value = "value" + random.nextInt(40);
+                if (random.nextBoolean()) {
+                    bag.addWithOccurrences(value, random.nextInt(3) + 1);
+                } else {
+                    bag.removeWithOccurrences(value, random.nextInt(3) + 1);
+                }
+            }
+            bag.applyBatch(new BagBatch<String>().add("value1", 4).remove("value2", 2).add("extra"));
+            Bag<String> copy = BagClasses.newBag("MapBag");
+            for (String value : bag) {
+                copy.addWithOccurrences(value, bag.countOf(value));
+            }
+            assertEquals(bagClass, copy.fingerprint(), bag.fingerprint());
+            assertEquals(bagClass, copy, bag);
+        }
+    }
+
+    @Test
+    public void testNotEqual() throws BagException {
+        Bag<String> a = BagClasses.newBag("ArrayBag");
+        Bag<String> b = BagClasses.newBag("MapBag");
+        a.addWithOccurrences("foo", 2);
+        b.add("foo");
+        assertNotEquals(a, b);
+        b.add("bar");
+        assertNotEquals(a, b);
+        b.remove("bar");
+        b.add("foo");
+        assertEquals(a, b);
+        assertNotEquals(a, "foo");
+    }
+
+    @Test
+    public void testEvictionChangesFingerprint() throws BagException {
+        EvictingBag<String> bag = new EvictingBag<>(2, Comparator.<String>naturalOrder());
+        bag.addWithOccurrences("foo", 2);
+        bag.add("bar");
+        bag.fingerprint();
+        bag.add("mar");
+        Bag<String> expected = BagClasses.newBag("MapBag");
+        expected.addWithOccurrences("foo", 2);
+        expected.add("mar");
+        assertEquals(expected, bag);
+    }
+
+    @Test
+    public void testDeduplicatesSnapshots() throws BagException {
+        Set<Bag<String>> snapshots = new HashSet<>();
+        for (String bagClass : BagClasses.ALL) {
+            Bag<String> bag = BagClasses.newBag(bagClass);
+            bag.add("foo");
+            bag.add("bar");
+            snapshots.add(bag);
+        }
+        Bag<String> other = BagClasses.newBag("MapBag");
+        other.add("foo");
+        snapshots.add(other);
+        assertEquals(2, snapshots.size());
+    }
+}
@@ -0,0 +1,65 @@
+package uk.ac.ucl.bag;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import static org.junit.Assert.*;
+
+public class BagIngesterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File write(String text) throws IOException {
+        File file = folder.newFile();
+        Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    @Test
+    public void testIngest() throws IOException, BagException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            text.append("foo bar\tcafé\n").append(i % 7).append("  ");
+        }
+        File file = write(text.toString());
+        StringBag bag = new BagIngester(4).ingest(Collections.singletonList(file.toPath()));
+        assertEquals(10, bag.size());
+        assertEquals(1000, bag.countOf("foo"));
+        assertEquals(1000, bag.countOf("café"));
+        assertEquals(143, bag.countOf("0"));
+        assertEquals(142, bag.countOf("6"));
+    }
+
+    @Test
+    public void testIngestSeveralFiles() throws IOException, BagException {
+        File first = write("a b c");
+        File second = write("c d\n\n");
+        File empty = write("");
+        StringBag bag = new BagIngester(8).ingest(Arrays.asList(first.toPath(), second.toPath(), empty.toPath()));
+        assertEquals("[a: 1, b: 1, c: 2, d: 1]", bag.toString());
+    }
+
+    @Test
+    public void testMoreTokensThanBagMaxSize() throws IOException, BagException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            text.append("token").append(i).append(' ');
+        }
+        File file = write(text.toString());
+        StringBag bag = new BagIngester(4).ingest(Collections.singletonList(file.toPath()));
+        assertEquals(5000, bag.size());
+        assertEquals(1, bag.countOf("token4999"));
+    }
+
+    @Test(expected = BagException.class)
+    public void testMaxTokens() throws IOException, BagException {
+        File file = write("a b c d e f");
+        new BagIngester(2, 5).ingest(Collections.singletonList(file.toPath()));
+    }
+}
@@ -0,0 +1,115 @@
+package uk.ac.ucl.bag;
+
+import org.junit.Test;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import static org.junit.Assert.*;
+
+public class BagMapTest {
+
+    private Bag<String> newBag(String bagClass) throws BagException {
+        Bag<String> bag = BagClasses.newBag(bagClass);
+        bag.addWithOccurrences("a", 3);
+        bag.add("b");
+        bag.addWithOccurrences("c", 2);
+        return bag;
+    }
+
+    @Test
+    public void testAsMap() throws Exception {
+        Map<String, Integer> expected = new HashMap<>();
+        expected.put("a", 3);
+        expected.put("b", 1);
+        expected.put("c", 2);
+        for (String bagClass : BagClasses.ALL) {
+            Bag<String> bag = newBag(bagClass);
+            Map<String, Integer> map = bag.asMap();
+            assertEquals(bagClass, expected, new HashMap<>(map));
+            assertEquals(Integer.valueOf(3), map.get("a"));
+            assertNull(map.get("z"));
+            assertNull(map.get(42));
+
+            map.put("a", 1);
+            map.put("d", 4);
+            assertEquals(Integer.valueOf(1), map.remove("b"));
+            assertEquals(1, bag.countOf("a"));
+            assertEquals(4, bag.countOf("d"));
+            assertFalse(bag.contains("b"));
+            bag.add("e");
+            assertTrue(map.containsKey("e"));
+            assertEquals(4, map.size());
+        }
+    }
+
+    @Test
+    public void testRemoveThroughViews() throws Exception {
+        for (String bagClass : BagClasses.ALL) {
+            Bag<String> bag = newBag(bagClass);
+            Map<String, Integer> map = bag.asMap();
+            assertTrue(map.keySet().remove("a"));
+            assertFalse(map.keySet().remove("z"));
+            assertFalse(bagClass, bag.contains("a"));
+            assertTrue(map.values().remove(2));
+            assertFalse(bag.contains("c"));
+            assertEquals(Collections.singletonMap("b", 1), new HashMap<>(map));
+
+            bag = newBag(bagClass);
+            map = bag.asMap();
+            map.entrySet().removeIf(entry -> entry.getValue() > 1);
+            assertEquals(bagClass, Collections.singletonMap("b", 1), new HashMap<>(map));
+            map.clear();
+            assertTrue(bag.isEmpty());
+            assertEquals(0, map.size());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPutNegativeCount() throws Exception {
+        newBag("MapBag").asMap().put("a", -1);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testPutNullCount() throws Exception {
+        newBag("MapBag").asMap().put("a", null);
+    }
+
+    @Test
+    public void testAsCollection() throws Exception {
+        for (String bagClass : BagClasses.ALL) {
+            Collection<String> collection = newBag(bagClass).asCollection();
+            assertEquals(6, collection.size());
+            List<String> values = new ArrayList<>(collection);
+            Collections.sort(values);
+            assertEquals(Arrays.asList("a", "a", "a", "b", "c", "c"), values);
+            collection.add("b");
+            assertTrue(collection.remove("a"));
+            assertFalse(collection.remove("z"));
+            assertEquals(6, collection.size());
+        }
+        BagFactory<String> bagFactory = BagFactory.getInstance();
+        bagFactory.setBagClass("MapBag");
+        assertTrue(new ArrayList<>(bagFactory.getBag().asCollection()).isEmpty());
+    }
+
+    @Test
+    public void testEntryStream() throws Exception {
+        for (String bagClass : BagClasses.ALL) {
+            Map<String, Integer> counts = newBag(bagClass).entryStream()
+                    .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+            assertEquals(3, counts.size());
+            assertEquals(Integer.valueOf(2), counts.get("c"));
+        }
+    }
+
+    @Test
+    public void testToBag() throws Exception {
+        BagFactory<String> bagFactory = BagFactory.getInstance();
+        bagFactory.setBagClass("MapBag");
+        Bag<String> bag = IntStream.range(0, 10000).parallel()
+                .mapToObj(i -> "value" + (i % 10))
+                .collect(Bag.toBag(Comparator.<String>naturalOrder()));
+        assertEquals(10, bag.size());
+        assertEquals(1000, bag.countOf("value7"));
+    }
+}
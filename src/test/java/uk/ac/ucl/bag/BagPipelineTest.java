@@ -0,0 +1,143 @@
+package uk.ac.ucl.bag;
+
+import org.junit.Before;
+import org.junit.Test;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import static org.junit.Assert.*;
+
+public class BagPipelineTest {
+
+    private Bag<String> target;
+
+    @Before
+    public void setUp() throws Exception {
+        BagFactory<String> bagFactory = BagFactory.getInstance();
+        bagFactory.setBagClass("MapBag");
+        target = bagFactory.getBag(Comparator.naturalOrder());
+    }
+
+    @Test
+    public void testSources() throws Exception {
+        BagPipeline<String> pipeline = new BagPipeline<>(target, 8, 32);
+        for (int s = 0; s < 50; s++) {
+            pipeline.addSource(sink -> {
+                for (int i = 0; i < 200; i++) {
+                    sink.accept("value" + (i % 5));
+                }
+            });
+        }
+        pipeline.close();
+        assertEquals(10000, pipeline.getAppliedCount());
+        assertEquals(2000, target.countOf("value3"));
+        assertEquals(0, pipeline.getQueueDepth());
+        assertTrue(pipeline.getBatchCount() > 0 && pipeline.getBatchCount() <= 10000);
+        assertTrue(pipeline.getFailures().isEmpty());
+    }
+
+    @Test
+    public void testFailingSource() throws Exception {
+        BagPipeline<String> pipeline = new BagPipeline<>(target, 8, 32);
+        pipeline.addSource(sink -> {
+            sink.accept("foo");
+            throw new IllegalStateException("source failed");
+        });
+        pipeline.close();
+        assertEquals(1, target.countOf("foo"));
+        assertEquals("source failed", pipeline.getFailures().get(0).getMessage());
+    }
+
+    @Test (expected = BagException.class)
+    public void testFullBag() throws Exception {
+        Bag<String> small = BagFactory.<String>getInstance().getBag(1, Comparator.naturalOrder());
+        BagPipeline<String> pipeline = new BagPipeline<>(small, 8, 32);
+        pipeline.addSource(sink -> {
+            sink.accept("foo");
+            sink.accept("bar");
+        });
+        pipeline.close();
+    }
+
+    /*
+      A read-only target throws UnsupportedOperationException. The sources, which send far more values than the
+      queue holds, must still finish, and close must rethrow the failure.
+     */
+    @Test
+    public void testFailingTarget() throws Exception {
+        BagPipeline<String> pipeline = new BagPipeline<>(target.filteredView(value -> true), 4, 8);
+        for (int s = 0; s < 4; s++) {
+            pipeline.addSource(sink -> {
+                for (int i = 0; i < 1000; i++) {
+                    sink.accept("value" + i);
+                }
+            });
+        }
+        try {
+            pipeline.close();
+            fail();
+        } catch (UnsupportedOperationException e) {
+            assertEquals(0, pipeline.getAppliedCount());
+            assertEquals(0, pipeline.getQueueDepth());
+        }
+    }
+
+    @Test
+    public void testAppliedCountExcludesDroppedValues() throws Exception {
+        Bag<String> small = BagFactory.<String>getInstance().getBag(1, Comparator.naturalOrder());
+        BagPipeline<String> pipeline = new BagPipeline<>(small, 8, 1);
+        pipeline.addSource(sink -> {
+            sink.accept("foo");
+            sink.accept("foo");
+            sink.accept("bar");
+            sink.accept("foo");
+        });
+        try {
+            pipeline.close();
+            fail();
+        } catch (BagException e) {
+            assertEquals(2, pipeline.getAppliedCount());
+            assertEquals(2, small.countOf("foo"));
+        }
+    }
+
+    @Test (expected = IllegalStateException.class)
+    public void testNoSourcesAfterClose() throws Exception {
+        BagPipeline<String> pipeline = new BagPipeline<>(target, 8, 32);
+        pipeline.close();
+        pipeline.addSource(sink -> sink.accept("foo"));
+    }
+
+    /*
+      The first close is interrupted while it waits for a source, so END is not queued yet; a second close has to
+      finish waiting and queue it rather than wait for the applier forever.
+     */
+    @Test
+    public void testCloseAgainAfterInterrupt() throws Exception {
+        BagPipeline<String> pipeline = new BagPipeline<>(target, 8, 32);
+        CountDownLatch release = new CountDownLatch(1);
+        pipeline.addSource(sink -> {
+            release.await();
+            sink.accept("foo");
+        });
+        AtomicReference<Throwable> thrown = new AtomicReference<>();
+        Thread closer = new Thread(() -> {
+            try {
+                pipeline.close();
+            } catch (Throwable e) {
+                thrown.set(e);
+            }
+        });
+        closer.start();
+        while (closer.getState() != Thread.State.WAITING && closer.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(1);
+        }
+        closer.interrupt();
+        closer.join();
+        assertTrue(thrown.get() instanceof InterruptedException);
+        release.countDown();
+        pipeline.close();
+        assertEquals(1, target.countOf("foo"));
+        assertEquals(1, pipeline.getAppliedCount());
+    }
+}
@@ -0,0 +1,222 @@
+package uk.ac.ucl.bag;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import static org.junit.Assert.*;
+
+public class BagSegmentTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Comparator<String> order = Comparator.naturalOrder();
+
+    private Path writeSegment(int from, int to, int blockEntries) throws Exception {
+        Path path = folder.newFile().toPath();
+        try (BagSegment.Writer<String> writer = new BagSegment.Writer<>(path, order, BagSegment.STRINGS, blockEntries)) {
+            for (int i = from; i < to; i++) {
+                writer.add(String.format("value%05d", i), i + 1);
+            }
+        }
+        return path;
+    }
+
+    @Test
+    public void testLookup() throws Exception {
+        try (BagSegment<String> segment = BagSegment.open(writeSegment(0, 1000, 16), order, BagSegment.STRINGS)) {
+            assertEquals(1000, segment.size());
+            for (int i = 0; i < 1000; i++) {
+                assertEquals(i + 1, segment.countOf(String.format("value%05d", i)));
+            }
+            assertFalse(segment.contains("a"));
+            assertFalse(segment.contains("value00010x"));
+            assertFalse(segment.contains("z"));
+        }
+    }
+
+    /*
+      Mapping the file in 64 byte windows makes values, counts, the index and the trailer straddle window boundaries,
+      as they do at 1GB boundaries in files larger than 2GB.
+     */
+    @Test
+    public void testSmallWindows() throws Exception {
+        try (BagSegment<String> segment = BagSegment.open(writeSegment(0, 1000, 16), order, BagSegment.STRINGS, 6)) {
+            assertEquals(1000, segment.size());
+            for (int i = 0; i < 1000; i += 7) {
+                assertEquals(i + 1, segment.countOf(String.format("value%05d", i)));
+            }
+            int expected = 0;
+            for (Iterator<Map.Entry<String, Integer>> entries = segment.entries(); entries.hasNext(); expected++) {
+                assertEquals(expected + 1, (int) entries.next().getValue());
+            }
+            assertEquals(1000, expected);
+        }
+    }
+
+    @Test
+    public void testRange() throws Exception {
+        try (BagSegment<String> segment = BagSegment.open(writeSegment(0, 100, 8), order, BagSegment.STRINGS)) {
+            Iterator<Map.Entry<String, Integer>> entries = segment.entries("value00020", "value00030");
+            int expected = 20;
+            while (entries.hasNext()) {
+                Map.Entry<String, Integer> entry = entries.next();
+                assertEquals(String.format("value%05d", expected), entry.getKey());
+                assertEquals(expected + 1, (int) entry.getValue());
+                expected++;
+            }
+            assertEquals(30, expected);
+        }
+    }
+
+    @Test
+    public void testWriteBag() throws Exception {
+        StringBag bag = new StringBag();
+        bag.addWithOccurrences("pear", 2);
+        bag.add("apple");
+        Path path = folder.newFile().toPath();
+        BagSegment.write(path, bag, order, BagSegment.STRINGS);
+        try (BagSegment<String> segment = BagSegment.open(path, order, BagSegment.STRINGS)) {
+            assertEquals(2, segment.countOf("pear"));
+            assertEquals("apple", segment.entries().next().getKey());
+        }
+
+        Path empty = folder.newFile().toPath();
+        BagSegment.write(empty, new StringBag(), order, BagSegment.STRINGS);
+        try (BagSegment<String> segment = BagSegment.open(empty, order, BagSegment.STRINGS)) {
+            assertEquals(0, segment.countOf("pear"));
+            assertFalse(segment.entries().hasNext());
+        }
+    }
+
+    @Test
+    public void testSerializedCodec() throws Exception {
+        Path path = folder.newFile().toPath();
+        Comparator<Integer> integers = Comparator.naturalOrder();
+        try (BagSegment.Writer<Integer> writer =
+                     new BagSegment.Writer<>(path, integers, BagSegment.<Integer>serialized(), 4)) {
+            for (int i = 0; i < 50; i += 5) {
+                writer.add(i, 3);
+            }
+        }
+        try (BagSegment<Integer> segment = BagSegment.open(path, integers, BagSegment.<Integer>serialized())) {
+            assertEquals(3, segment.countOf(45));
+            assertEquals(0, segment.countOf(46));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOutOfOrder() throws Exception {
+        try (BagSegment.Writer<String> writer =
+                     new BagSegment.Writer<>(folder.newFile().toPath(), order, BagSegment.STRINGS, 4)) {
+            writer.add("b", 1);
+            writer.add("a", 1);
+        }
+    }
+
+    @Test
+    public void testFailedWriteLeavesNoSegment() throws Exception {
+        Path path = folder.newFile().toPath();
+        try (BagSegment.Writer<String> writer = new BagSegment.Writer<>(path, order, BagSegment.STRINGS, 4)) {
+            writer.add("a", 1);
+            writer.add("b", 0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertFalse(Files.exists(path));
+        }
+
+        StringBag bag = new StringBag();
+        bag.add("good");
+        bag.add("bad");
+        BagSegment.Codec<String> failing = new BagSegment.Codec<String>() {
+            public byte[] encode(String value) {
+                if (value.equals("good")) throw new UncheckedIOException(new IOException("cannot encode"));
+                return BagSegment.STRINGS.encode(value);
+            }
+
+            public String decode(byte[] bytes) {
+                return BagSegment.STRINGS.decode(bytes);
+            }
+        };
+        try {
+            BagSegment.write(path, bag, order, failing);
+            fail();
+        } catch (UncheckedIOException e) {
+            assertFalse(Files.exists(path));
+        }
+        try {
+            BagSegment.open(path, order, BagSegment.STRINGS).close();
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSegmentBag() throws Exception {
+        List<BagSegment<String>> segments = new ArrayList<>();
+        segments.add(BagSegment.open(writeSegment(0, 60, 8), order, BagSegment.STRINGS));
+        segments.add(BagSegment.open(writeSegment(50, 100, 8), order, BagSegment.STRINGS));
+        try (SegmentBag<String> bag = new SegmentBag<>(segments, order)) {
+            assertEquals(100, bag.size());
+            assertEquals(6, bag.countOf("value00005"));
+            assertEquals(56 * 2, bag.countOf("value00055"));
+            assertEquals(91, bag.countOf("value00090"));
+            String previous = "";
+            int count = 0;
+            for (String value : bag) {
+                assertTrue(value.compareTo(previous) > 0);
+                previous = value;
+                count++;
+            }
+            assertEquals(100, count);
+            Iterator<Map.Entry<String, Integer>> range = bag.entries("value00058", "value00060");
+            assertEquals(59 * 2, (int) range.next().getValue());
+            assertEquals(60 * 2, (int) range.next().getValue());
+            assertFalse(range.hasNext());
+        }
+    }
+
+    @Test
+    public void testSegmentBagSerialization() throws Exception {
+        BagFactory.getInstance().setBagClass("MapBag");
+        List<BagSegment<String>> segments = new ArrayList<>();
+        segments.add(BagSegment.open(writeSegment(0, 20, 8), order, BagSegment.STRINGS));
+        segments.add(BagSegment.open(writeSegment(10, 30, 8), order, BagSegment.STRINGS));
+        try (SegmentBag<String> bag = new SegmentBag<>(segments, order)) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(bag);
+            }
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+                @SuppressWarnings("unchecked")
+                Bag<String> copy = (Bag<String>) in.readObject();
+                assertTrue(copy instanceof MapBag);
+                assertEquals(bag, copy);
+                assertEquals(15 * 2, copy.countOf("value00014"));
+            }
+
+            String path = folder.newFile("segments.xml").getPath();
+            bag.persist(path);
+            @SuppressWarnings("unchecked")
+            Bag<String> loaded = Bag.loadFrom(path);
+            assertEquals(30, loaded.size());
+            assertEquals(15 * 2, loaded.countOf("value00014"));
+        }
+    }
+
+    @Test(expected = NotSerializableException.class)
+    public void testTooLargeToSerialize() throws Exception {
+        BagFactory.getInstance().setBagClass("MapBag");
+        List<BagSegment<String>> segments = new ArrayList<>();
+        segments.add(BagSegment.open(writeSegment(0, Bag.MAX_SIZE + 1, 64), order, BagSegment.STRINGS));
+        try (SegmentBag<String> bag = new SegmentBag<>(segments, order);
+             ObjectOutputStream out = new ObjectOutputStream(new ByteArrayOutputStream())) {
+            out.writeObject(bag);
+        }
+    }
+}
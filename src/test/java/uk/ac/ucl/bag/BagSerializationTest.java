@@ -0,0 +1,101 @@
+package uk.ac.ucl.bag;
+
+import org.junit.Test;
+import java.io.*;
+import java.util.*;
+import static org.junit.Assert.*;
+
+public class BagSerializationTest {
+
+    @SuppressWarnings("unchecked")
+    private <T> T roundTrip(Object object) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(object);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (T) in.readObject();
+        }
+    }
+
+    private int serializedSize(Object object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(object);
+        }
+        return bytes.size();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        for (String bagClass : BagClasses.ALL) {
+            Bag<String> bag = BagClasses.newBag(bagClass);
+            for (int i = 0; i < 500; i++) {
+                bag.addWithOccurrences("value" + i, i + 1);
+            }
+            Bag<String> copy = roundTrip(bag);
+            assertEquals(bagClass, bag.getClass(), copy.getClass());
+            assertEquals(500, copy.size());
+            assertEquals(300, copy.countOf("value299"));
+            copy.add("extra");
+            copy.remove("value0");
+            assertEquals(500, copy.size());
+            assertTrue(bagClass, serializedSize(bag) < 500 * 20);
+        }
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        for (String bagClass : BagClasses.ALL) {
+            Bag<String> copy = roundTrip(BagClasses.newBag(bagClass));
+            assertTrue(copy.isEmpty());
+            copy.add("a");
+            assertEquals(1, copy.countOf("a"));
+        }
+    }
+
+    @Test
+    public void testLongLinkedList() throws Exception {
+        LinkedListBag<Integer> bag = new LinkedListBag<>(Bag.MAX_SIZE, Comparator.<Integer>naturalOrder(),
+                LinkedListBag.SelfOrganization.MOVE_TO_FRONT);
+        for (int i = 0; i < Bag.MAX_SIZE; i++) {
+            bag.add(i);
+        }
+        LinkedListBag<Integer> copy = roundTrip(bag);
+        assertEquals(Bag.MAX_SIZE, copy.size());
+        assertEquals(LinkedListBag.SelfOrganization.MOVE_TO_FRONT, copy.getSelfOrganization());
+        assertEquals(bag.iterator().next(), copy.iterator().next());
+    }
+
+    @Test
+    public void testUnserializableOrderRelation() throws Exception {
+        ArrayBag<String> bag = new ArrayBag<>(100, Comparator.comparing(String::length).thenComparing(s -> s), true);
+        for (int i = 0; i < 50; i++) {
+            bag.add("v" + i);
+        }
+        ArrayBag<String> copy = roundTrip(bag);
+        assertTrue(copy.isSorted());
+        for (int i = 0; i < 50; i++) {
+            assertEquals(1, copy.countOf("v" + i));
+        }
+        copy.add("new");
+        assertEquals(1, copy.countOf("new"));
+    }
+
+    @Test
+    public void testViews() throws Exception {
+        BagFactory<String> bagFactory = BagFactory.getInstance();
+        bagFactory.setBagClass("MapBag");
+        Bag<String> bag1 = bagFactory.getBag(Comparator.naturalOrder());
+        Bag<String> bag2 = bagFactory.getBag(Comparator.naturalOrder());
+        bag1.addWithOccurrences("a", 2);
+        bag2.add("a");
+        bag2.add("b");
+        Bag<String> view = roundTrip(bag1.mergedView(bag2).filteredView(value -> true));
+        assertEquals(3, view.countOf("a"));
+        MergedBag<String> merged = roundTrip(MergedBag.sum(Arrays.asList(bag1, bag2)));
+        assertEquals(3, merged.countOf("a"));
+        assertEquals(2, merged.size());
+        merged.close();
+    }
+}
@@ -0,0 +1,171 @@
+package uk.ac.ucl.bag;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import java.io.*;
+import java.util.*;
+import static org.junit.Assert.*;
+
+public class BagStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private BagStore<String> store;
+
+    @Before
+    public void setUp() throws BagException {
+        store = new BagStore<>(10, Comparator.<String>naturalOrder());
+    }
+
+    private Map<String, Integer> contents(Bag<String> bag) {
+        Map<String, Integer> contents = new TreeMap<>();
+        for (String value : bag) {
+            contents.put(value, bag.countOf(value));
+        }
+        return contents;
+    }
+
+    @Test
+    public void testBagsAreIndependent() throws BagException {
+        Bag<String> first = store.bag(store.newBag());
+        Bag<String> second = store.bag(store.newBag());
+        first.addWithOccurrences("foo", 3);
+        first.add("bar");
+        second.add("foo");
+        second.addWithOccurrences("mar", 2);
+        assertEquals(3, first.countOf("foo"));
+        assertEquals(1, second.countOf("foo"));
+        assertFalse(first.contains("mar"));
+        assertEquals(2, first.size());
+        assertEquals(3, store.dictionarySize());
+
+        first.removeWithOccurrences("foo", 3);
+        assertFalse(first.contains("foo"));
+        assertEquals(1, second.countOf("foo"));
+        assertEquals("[bar: 1]", store.bag(0).toString());
+    }
+
+    @Test
+    public void testIterators() throws BagException {
+        Bag<String> bag = store.bag(store.newBag());
+        bag.addWithOccurrences("foo", 2);
+        bag.add("bar");
+        List<String> all = new ArrayList<>();
+        bag.allOccurrencesIterator().forEachRemaining(all::add);
+        assertEquals(Arrays.asList("foo", "foo", "bar"), all);
+        List<String> unique = new ArrayList<>();
+        bag.forEach(unique::add);
+        assertEquals(Arrays.asList("foo", "bar"), unique);
+    }
+
+    @Test(expected = BagException.class)
+    public void testFull() throws BagException {
+        Bag<String> bag = store.bag(store.newBag());
+        for (int i = 0; i <= 10; i++) {
+            bag.add("value" + i);
+        }
+    }
+
+    /*
+      Many bags growing in turn keep moving their runs, which leaves gaps and packs the arena.
+     */
+    @Test
+    public void testMatchesSeparateBags() throws BagException {
+        Random random = new Random(42);
+        List<Bag<String>> expected = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            store.newBag();
+            expected.add(new MapBag<>(10, Comparator.<String>naturalOrder()));
+        }
+        for (int step = 0; step < 20000; step++) {
+            int id = random.nextInt(200);
+            String value = "value" + random.nextInt(15);
+            Bag<String> bag = store.bag(id);
+            if (random.nextInt(3) == 0) {
+                bag.removeWithOccurrences(value, 2);
+                expected.get(id).removeWithOccurrences(value, 2);
+            } else if (bag.contains(value) || bag.size() < 10) {
+                bag.add(value);
+                expected.get(id).add(value);
+            }
+            if (step % 5000 == 0) {
+                store.compact();
+            }
+        }
+        for (int id = 0; id < 200; id++) {
+            assertEquals(contents(expected.get(id)), contents(store.bag(id)));
+        }
+    }
+
+    @Test
+    public void testCompactDropsUnusedValues() throws BagException {
+        Bag<String> bag = store.bag(store.newBag());
+        bag.add("foo");
+        bag.add("bar");
+        bag.remove("foo");
+        assertEquals(2, store.dictionarySize());
+        store.compact();
+        assertEquals(1, store.dictionarySize());
+        assertEquals(1, bag.countOf("bar"));
+        assertFalse(bag.contains("foo"));
+        bag.add("foo");
+        assertEquals(2, bag.size());
+    }
+
+    @Test
+    public void testSmallerThanSeparateBags() throws BagException {
+        ArrayBag<String> arrayBag = new ArrayBag<>(10, Comparator.<String>naturalOrder());
+        arrayBag.add("foo");
+        arrayBag.add("bar");
+        arrayBag.trimToSize();
+        for (int i = 0; i < 1000; i++) {
+            Bag<String> bag = store.bag(store.newBag());
+            bag.add("foo");
+            bag.add("bar");
+        }
+        store.compact();
+        assertEquals(12 + 16, store.bag(0).estimatedMemoryBytes());
+        assertTrue(store.estimatedMemoryBytes() < 1000 * arrayBag.estimatedMemoryBytes() / 2);
+    }
+
+    @Test
+    public void testPersist() throws Exception {
+        for (int i = 0; i < 50; i++) {
+            Bag<String> bag = store.bag(store.newBag());
+            bag.addWithOccurrences("foo", i + 1);
+            bag.add("value" + i);
+        }
+        String path = folder.newFile("store.xml").getPath();
+        store.persist(path);
+        BagStore<String> loaded = BagStore.loadFrom(path);
+        assertEquals(50, loaded.getBagCount());
+        for (int i = 0; i < 50; i++) {
+            assertEquals(contents(store.bag(i)), contents(loaded.bag(i)));
+        }
+        loaded.bag(3).add("bar");
+        assertEquals(3, loaded.bag(3).size());
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        Bag<String> bag = store.bag(store.newBag());
+        bag.addWithOccurrences("foo", 2);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(store);
+            out.writeObject(bag);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            @SuppressWarnings("unchecked")
+            BagStore<String> copy = (BagStore<String>) in.readObject();
+            assertEquals(2, copy.bag(0).countOf("foo"));
+            @SuppressWarnings("unchecked")
+            Bag<String> standalone = (Bag<String>) in.readObject();
+            assertTrue(standalone instanceof ArrayBag);
+            assertEquals(2, standalone.countOf("foo"));
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package uk.ac.ucl.bag;
+
+import org.junit.Before;
+import org.junit.Test;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.*;
+
+public class BagSubscriberTest {
+
+    private Bag<String> bag;
+
+    @Before
+    public void setUp() throws Exception {
+        BagFactory<String> bagFactory = BagFactory.getInstance();
+        bagFactory.setBagClass("MapBag");
+        bag = bagFactory.getBag(Comparator.naturalOrder());
+    }
+
+    @Test
+    public void testSubscribe() throws Exception {
+        BagSubscriber<String> subscriber = new BagSubscriber<>(bag, 16);
+        try (SubmissionPublisher<String> publisher = new SubmissionPublisher<>()) {
+            publisher.subscribe(subscriber);
+            for (int i = 0; i < 1000; i++) {
+                publisher.submit("value" + (i % 3));
+            }
+        }
+        assertSame(bag, subscriber.completion().get(5, TimeUnit.SECONDS));
+        assertEquals(3, bag.size());
+        assertEquals(334, bag.countOf("value0"));
+        assertEquals(333, bag.countOf("value2"));
+    }
+
+    @Test
+    public void testFull() throws Exception {
+        Bag<String> small = new ArrayBag<>(2, Comparator.<String>naturalOrder());
+        BagSubscriber<String> subscriber = new BagSubscriber<>(small, 4);
+        try (SubmissionPublisher<String> publisher = new SubmissionPublisher<>()) {
+            publisher.subscribe(subscriber);
+            for (int i = 0; i < 100; i++) {
+                publisher.submit("value" + i);
+            }
+        }
+        try {
+            subscriber.completion().get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof BagException);
+        }
+        assertEquals(2, small.size());
+    }
+
+    private Flow.Subscription recording(List<String> calls) {
+        return new Flow.Subscription() {
+            public void request(long n) {
+                calls.add("request " + n);
+            }
+
+            public void cancel() {
+                calls.add("cancel");
+            }
+        };
+    }
+
+    @Test
+    public void testSecondSubscriptionCancelled() {
+        BagSubscriber<String> subscriber = new BagSubscriber<>(bag, 16);
+        List<String> first = new ArrayList<>();
+        List<String> second = new ArrayList<>();
+        subscriber.onSubscribe(recording(first));
+        subscriber.onSubscribe(recording(second));
+        assertEquals(Collections.singletonList("request 16"), first);
+        assertEquals(Collections.singletonList("cancel"), second);
+    }
+}
@@ -0,0 +1,75 @@
+package uk.ac.ucl.bag;
+
+import org.junit.Before;
+import org.junit.Test;
+import java.util.*;
+import static org.junit.Assert.*;
+
+public class BagViewTest {
+
+    private Bag<String> bag1;
+    private Bag<String> bag2;
+
+    @Before
+    public void setUp() throws Exception {
+        BagFactory<String> bagFactory = BagFactory.getInstance();
+        bagFactory.setBagClass("MapBag");
+        bag1 = bagFactory.getBag(Comparator.naturalOrder());
+        bag2 = bagFactory.getBag(Comparator.naturalOrder());
+        bag1.addWithOccurrences("apple", 3);
+        bag1.add("banana");
+        bag2.addWithOccurrences("banana", 2);
+        bag2.add("cherry");
+    }
+
+    private List<String> toList(Iterator<String> iterator) {
+        List<String> values = new ArrayList<>();
+        iterator.forEachRemaining(values::add);
+        Collections.sort(values);
+        return values;
+    }
+
+    @Test
+    public void testMergedView() throws Exception {
+        BagView<String> view = bag1.mergedView(bag2);
+        assertEquals(3, view.size());
+        assertEquals(3, view.countOf("banana"));
+        assertEquals(Arrays.asList("apple", "banana", "cherry"), toList(view.iterator()));
+        assertEquals(7, toList(view.allOccurrencesIterator()).size());
+        bag2.add("date");
+        assertTrue(view.contains("date"));
+        assertEquals(4, view.size());
+    }
+
+    @Test
+    public void testUniqueView() throws Exception {
+        BagView<String> view = bag1.uniqueView(bag2);
+        assertEquals(1, view.countOf("apple"));
+        assertEquals(Arrays.asList("apple", "banana", "cherry"), toList(view.allOccurrencesIterator()));
+    }
+
+    @Test
+    public void testFilteredView() throws Exception {
+        BagView<String> view = bag1.mergedView(bag2).filteredView(value -> value.startsWith("b"));
+        assertEquals(1, view.size());
+        assertEquals(3, view.countOf("banana"));
+        assertEquals(0, view.countOf("apple"));
+        assertFalse(view.contains("cherry"));
+        assertEquals(Arrays.asList("banana", "banana", "banana"), toList(view.allOccurrencesIterator()));
+        assertTrue(bag1.filteredView(value -> false).isEmpty());
+    }
+
+    @Test
+    public void testMaterialize() throws Exception {
+        Bag<String> bag = bag1.mergedView(bag2).materialize();
+        bag1.add("cherry");
+        assertEquals(1, bag.countOf("cherry"));
+        assertEquals(3, bag.countOf("apple"));
+        assertEquals(3, bag.size());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testReadOnly() throws Exception {
+        bag1.mergedView(bag2).add("apple");
+    }
+}
@@ -0,0 +1,94 @@
+package uk.ac.ucl.bag;
+
+import org.junit.Before;
+import org.junit.Test;
+import java.util.*;
+import static org.junit.Assert.*;
+
+public class BagWriterTest {
+
+    private Bag<String> target;
+
+    @Before
+    public void setUp() throws Exception {
+        BagFactory<String> bagFactory = BagFactory.getInstance();
+        bagFactory.setBagClass("ArrayBag");
+        target = bagFactory.getBag(Comparator.naturalOrder());
+    }
+
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        BagWriter<String> writer = new BagWriter<>(target, 16, 0);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    try {
+                        writer.add("value" + (i % 20));
+                    } catch (BagException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) thread.join();
+        writer.close();
+        assertEquals(20, target.size());
+        assertEquals(4000, target.countOf("value7"));
+    }
+
+    @Test
+    public void testFlushWhenFull() throws BagException {
+        BagWriter<String> writer = new BagWriter<>(target, 2, 0);
+        writer.add("foo");
+        writer.add("foo");
+        assertEquals(0, target.countOf("foo"));
+        writer.add("bar");
+        assertEquals(2, target.countOf("foo"));
+        writer.add("mar");
+        writer.flush();
+        assertEquals(1, target.countOf("mar"));
+    }
+
+    @Test
+    public void testFlushWhenIdle() throws Exception {
+        BagWriter<String> writer = new BagWriter<>(target, 100, 10);
+        writer.add("foo");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            synchronized (target) {
+                if (target.contains("foo")) break;
+            }
+            Thread.sleep(5);
+        }
+        synchronized (target) {
+            assertEquals(1, target.countOf("foo"));
+        }
+        writer.close();
+    }
+
+    @Test
+    public void testDropsBuffersOfDeadThreads() throws Exception {
+        BagWriter<String> writer = new BagWriter<>(target, 16, 0);
+        writer.add("foo");
+        for (int t = 0; t < 20; t++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    writer.add("bar");
+                } catch (BagException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            thread.start();
+            thread.join();
+        }
+        assertEquals(21, writer.bufferCount());
+        writer.flushAll();
+        assertEquals(1, writer.bufferCount());
+        assertEquals(20, target.countOf("bar"));
+        writer.add("foo");
+        writer.close();
+        assertEquals(2, target.countOf("foo"));
+    }
+}
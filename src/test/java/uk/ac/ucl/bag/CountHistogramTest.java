@@ -0,0 +1,97 @@
+package uk.ac.ucl.bag;
+
+import org.junit.Test;
+import java.util.*;
+import static org.junit.Assert.*;
+
+public class CountHistogramTest {
+
+    private void checkAgainstScan(Bag<String> bag, CountHistogram histogram) {
+        Map<Integer, Integer> expected = new HashMap<>();
+        for (String value : bag) {
+            expected.merge(bag.countOf(value), 1, Integer::sum);
+        }
+        assertEquals(bag.size(), histogram.getDistinctValues());
+        for (int k = 0; k <= 40; k++) {
+            assertEquals(expected.getOrDefault(k, 0).intValue(), histogram.valuesWithCount(k));
+            int atLeast = 0;
+            for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+                if (entry.getKey() >= k) atLeast += entry.getValue();
+            }
+            assertEquals(atLeast, histogram.valuesWithCountAtLeast(k));
+            assertEquals(bag.size() - atLeast, histogram.valuesWithCountAtMost(k - 1));
+        }
+    }
+
+    @Test
+    public void testImplementations() throws Exception {
+        for (String bagClass : BagClasses.ALL) {
+            Bag<String> bag = BagClasses.newBag(bagClass);
+            bag.addWithOccurrences("before", 3);
+            CountHistogram histogram = bag.countHistogram();
+            assertSame(histogram, bag.countHistogram());
+            Random random = new Random(42);
+            for (int i = 0; i < 2000; i++) {
+                String value = "value" + random.nextInt(50);
+                if (random.nextInt(3) == 0) {
+                    bag.removeWithOccurrences(value, random.nextInt(3) + 1);
+                } else {
+                    bag.add(value);
+                }
+            }
+            checkAgainstScan(bag, histogram);
+        }
+    }
+
+    @Test
+    public void testNonPositiveAddsIgnored() throws Exception {
+        for (String bagClass : BagClasses.ALL) {
+            Bag<String> bag = BagClasses.newBag(bagClass);
+            CountHistogram histogram = bag.countHistogram();
+            bag.add("foo");
+            bag.addWithOccurrences("bar", 0);
+            bag.addWithOccurrences("mar", -2);
+            bag.addWithOccurrences("foo", -1);
+            assertEquals(bagClass, 1, bag.size());
+            assertEquals(bagClass, 1, bag.countOf("foo"));
+            assertFalse(bagClass, bag.contains("bar"));
+            checkAgainstScan(bag, histogram);
+        }
+    }
+
+    @Test
+    public void testLargeCounts() throws Exception {
+        MapBag<String> bag = new MapBag<>(10, Comparator.<String>naturalOrder());
+        CountHistogram histogram = bag.countHistogram();
+        bag.addWithOccurrences("a", 1000000);
+        bag.addWithOccurrences("b", 1000000);
+        bag.addWithOccurrences("c", 5000);
+        bag.add("d");
+        assertEquals(2, histogram.valuesWithCount(1000000));
+        assertEquals(1, histogram.valuesWithCount(5000));
+        assertEquals(3, histogram.valuesWithCountAtLeast(2));
+        assertEquals(2, histogram.valuesWithCountAtLeast(100000));
+        assertEquals(4, histogram.valuesWithCountAtMost(Integer.MAX_VALUE));
+        bag.removeWithOccurrences("a", 999999);
+        assertEquals(2, histogram.valuesWithCount(1));
+        assertEquals(1, histogram.valuesWithCountAtLeast(6000));
+    }
+
+    @Test
+    public void testWindowedAndClear() throws Exception {
+        ArrayBag<String> bag = new ArrayBag<>(10, Comparator.<String>naturalOrder());
+        bag.addWithOccurrences("a", 2);
+        CountHistogram histogram = bag.countHistogram();
+        bag.clear();
+        assertEquals(0, histogram.getDistinctValues());
+
+        long[] now = {0};
+        WindowedBag<String> windowed = new WindowedBag<>(10, Comparator.<String>naturalOrder(), 4, 1000,
+                () -> now[0]);
+        windowed.add("a");
+        assertEquals(1, windowed.countHistogram().valuesWithCount(1));
+        now[0] = 10000;
+        assertTrue(windowed.isEmpty());
+        assertEquals(0, windowed.countHistogram().getDistinctValues());
+    }
+}
@@ -0,0 +1,137 @@
+package uk.ac.ucl.bag;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import java.io.*;
+import java.util.*;
+import static org.junit.Assert.*;
+
+public class EvictingBagTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private EvictingBag<String> bag;
+    private List<String> evicted;
+
+    @Before
+    public void setUp() throws Exception {
+        bag = new EvictingBag<>(3, Comparator.<String>naturalOrder());
+        evicted = new ArrayList<>();
+        bag.addEvictionListener((value, count) -> evicted.add(value + ": " + count));
+        bag.addWithOccurrences("foo", 3);
+        bag.add("bar");
+        bag.addWithOccurrences("mar", 2);
+    }
+
+    @Test
+    public void testIteratesInEvictionOrder() {
+        assertEquals("[bar: 1, mar: 2, foo: 3]", bag.toString());
+        assertEquals("bar", bag.nextEviction());
+        List<String> all = new ArrayList<>();
+        bag.allOccurrencesIterator().forEachRemaining(all::add);
+        assertEquals(Arrays.asList("bar", "mar", "mar", "foo", "foo", "foo"), all);
+    }
+
+    @Test
+    public void testEvictsLeastFrequent() throws BagException {
+        bag.add("car");
+        assertEquals(3, bag.size());
+        assertFalse(bag.contains("bar"));
+        assertEquals(Collections.singletonList("bar: 1"), evicted);
+        bag.add("car");
+        bag.add("dar");
+        assertEquals(Arrays.asList("bar: 1", "mar: 2"), evicted);
+        assertEquals(2, bag.countOf("car"));
+        assertEquals(3, bag.countOf("foo"));
+    }
+
+    @Test
+    public void testEvictsLeastRecentAmongEqualCounts() throws BagException {
+        bag.add("bar");
+        bag.add("car");
+        assertEquals(Collections.singletonList("mar: 2"), evicted);
+        bag.add("dar");
+        assertEquals(Arrays.asList("mar: 2", "car: 1"), evicted);
+    }
+
+    @Test
+    public void testRemoveMovesDown() throws BagException {
+        bag.removeWithOccurrences("foo", 2);
+        assertEquals(1, bag.countOf("foo"));
+        assertEquals("[bar: 1, foo: 1, mar: 2]", bag.toString());
+        bag.removeWithOccurrences("bar", 5);
+        assertFalse(bag.contains("bar"));
+        assertEquals(2, bag.size());
+        bag.add("car");
+        assertTrue(evicted.isEmpty());
+    }
+
+    @Test
+    public void testAddJumpsBuckets() throws BagException {
+        bag.addWithOccurrences("bar", 10);
+        assertEquals(11, bag.countOf("bar"));
+        assertEquals("[mar: 2, foo: 3, bar: 11]", bag.toString());
+    }
+
+    @Test
+    public void testAging() throws BagException {
+        EvictingBag<String> aging = new EvictingBag<>(10, Comparator.<String>naturalOrder(), 10);
+        aging.addEvictionListener((value, count) -> evicted.add(value + ": " + count));
+        aging.addWithOccurrences("foo", 5);
+        aging.addWithOccurrences("bar", 1);
+        aging.addWithOccurrences("mar", 2);
+        aging.addWithOccurrences("car", 3);
+        assertEquals("[mar: 1, car: 1, foo: 2]", aging.toString());
+        assertEquals(Collections.singletonList("bar: 1"), evicted);
+    }
+
+    @Test
+    public void testChangesAndHistogram() throws BagException {
+        CountHistogram histogram = bag.countHistogram();
+        List<String> changes = new ArrayList<>();
+        bag.changes().addListener((value, oldCount, newCount) -> changes.add(value + " " + oldCount + "->" + newCount));
+        bag.add("car");
+        assertEquals(Arrays.asList("bar 1->0", "car 0->1"), changes);
+        assertEquals(1, histogram.valuesWithCount(1));
+        assertEquals(3, histogram.getDistinctValues());
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(bag);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            @SuppressWarnings("unchecked")
+            EvictingBag<String> copy = (EvictingBag<String>) in.readObject();
+            assertEquals(bag.toString(), copy.toString());
+            copy.add("car");
+            assertFalse(copy.contains("bar"));
+        }
+    }
+
+    @Test
+    public void testPersist() throws IOException {
+        String path = folder.newFile("evicting.xml").getPath();
+        bag.persist(path);
+        Bag<?> loaded = Bag.loadFrom(path);
+        assertEquals(bag.toString(), loaded.toString());
+        assertEquals(3, ((EvictingBag<?>) loaded).getMaxSize());
+    }
+
+    @Test
+    public void testFactory() throws BagException {
+        BagFactory<String> bagFactory = BagFactory.getInstance();
+        bagFactory.setBagClass("EvictingBag");
+        Bag<String> created = bagFactory.getBag(2, Comparator.<String>naturalOrder());
+        created.add("foo");
+        created.add("bar");
+        created.add("mar");
+        assertEquals(2, created.size());
+        assertFalse(created.contains("foo"));
+    }
+}
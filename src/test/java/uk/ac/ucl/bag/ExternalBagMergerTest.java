@@ -0,0 +1,150 @@
+package uk.ac.ucl.bag;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import static org.junit.Assert.*;
+
+public class ExternalBagMergerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Comparator<String> order = Comparator.naturalOrder();
+
+    // Entries value0..value(n-1), each value i with count i + 1, in reverse order and split into two halves
+    private Iterator<Map.Entry<String, Integer>> entries(int n) {
+        List<Map.Entry<String, Integer>> entries = new ArrayList<>();
+        for (int i = n - 1; i >= 0; i--) {
+            entries.add(new AbstractMap.SimpleEntry<>("value" + i, (i + 1) / 2));
+            entries.add(new AbstractMap.SimpleEntry<>("value" + i, (i + 2) / 2));
+        }
+        return entries.iterator();
+    }
+
+    private BagSegment<String> merge(MergedBag.Mode mode, int small, int large) throws Exception {
+        return merge(mode, small, large, ExternalBagMerger.DEFAULT_MAX_FAN_IN);
+    }
+
+    private BagSegment<String> merge(MergedBag.Mode mode, int small, int large, int maxFanIn) throws Exception {
+        File temp = folder.newFolder();
+        Path output = folder.newFile().toPath();
+        try (ExternalBagMerger<String> merger =
+                 new ExternalBagMerger<>(order, BagSegment.STRINGS, temp.toPath(), 7, maxFanIn)) {
+            merger.addOperand(entries(large));
+            merger.addOperand(entries(small));
+            merger.merge(mode, output);
+        }
+        assertEquals(0, temp.list().length);
+        return BagSegment.open(output, order, BagSegment.STRINGS);
+    }
+
+    @Test
+    public void testSum() throws Exception {
+        try (BagSegment<String> result = merge(MergedBag.Mode.SUM, 50, 100)) {
+            assertEquals(100, result.size());
+            assertEquals(2 * 11, result.countOf("value10"));
+            assertEquals(61, result.countOf("value60"));
+            String previous = "";
+            for (Iterator<Map.Entry<String, Integer>> entries = result.entries(); entries.hasNext(); ) {
+                String value = entries.next().getKey();
+                assertTrue(value.compareTo(previous) > 0);
+                previous = value;
+            }
+        }
+    }
+
+    @Test
+    public void testUnique() throws Exception {
+        try (BagSegment<String> result = merge(MergedBag.Mode.UNIQUE, 50, 100)) {
+            assertEquals(100, result.size());
+            assertEquals(1, result.countOf("value10"));
+            assertEquals(1, result.countOf("value99"));
+        }
+    }
+
+    @Test
+    public void testDifference() throws Exception {
+        try (BagSegment<String> result = merge(MergedBag.Mode.DIFFERENCE, 50, 100)) {
+            assertEquals(50, result.size());
+            assertFalse(result.contains("value10"));
+            assertEquals(51, result.countOf("value50"));
+        }
+    }
+
+    /*
+      Each operand spills to dozens of runs of 7 entries, so a small fan-in needs several intermediate passes, which
+      must give the same result as merging every run at once.
+     */
+    @Test
+    public void testLimitedFanIn() throws Exception {
+        for (MergedBag.Mode mode : MergedBag.Mode.values()) {
+            for (int maxFanIn : new int[] {2, 3, 16}) {
+                try (BagSegment<String> expected = merge(mode, 50, 100);
+                     BagSegment<String> result = merge(mode, 50, 100, maxFanIn)) {
+                    assertEquals(mode + " " + maxFanIn, expected.size(), result.size());
+                    Iterator<Map.Entry<String, Integer>> actual = result.entries();
+                    for (Iterator<Map.Entry<String, Integer>> entries = expected.entries(); entries.hasNext(); ) {
+                        assertEquals(mode + " " + maxFanIn, entries.next(), actual.next());
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testBags() throws Exception {
+        BagFactory<String> bagFactory = BagFactory.getInstance();
+        bagFactory.setBagClass("MapBag");
+        Bag<String> bag1 = bagFactory.getBag(Comparator.naturalOrder());
+        Bag<String> bag2 = bagFactory.getBag(Comparator.naturalOrder());
+        bag1.addWithOccurrences("a", 3);
+        bag1.add("b");
+        bag2.add("a");
+        bag2.addWithOccurrences("c", 2);
+        Path output = folder.newFile().toPath();
+        ExternalBagMerger<String> merger = new ExternalBagMerger<>(order, BagSegment.STRINGS,
+                folder.newFolder().toPath(), ExternalBagMerger.DEFAULT_RUN_ENTRIES);
+        merger.addOperand(bag1);
+        merger.addOperand(bag2);
+        assertEquals(2, merger.merge(MergedBag.Mode.DIFFERENCE, output));
+        try (SegmentBag<String> result = new SegmentBag<>(
+                Collections.singletonList(BagSegment.open(output, order, BagSegment.STRINGS)), order)) {
+            assertEquals(2, result.countOf("a"));
+            assertEquals(1, result.countOf("b"));
+            assertFalse(result.contains("c"));
+        }
+    }
+
+    @Test
+    public void testFailedMergeLeavesNoFiles() throws Exception {
+        File temp = folder.newFolder();
+        Path output = folder.newFile().toPath();
+        List<Map.Entry<String, Integer>> large = Arrays.asList(new AbstractMap.SimpleEntry<>("a", 1),
+            new AbstractMap.SimpleEntry<>("big", Integer.MAX_VALUE));
+        try (ExternalBagMerger<String> merger = new ExternalBagMerger<>(order, BagSegment.STRINGS, temp.toPath(), 7)) {
+            merger.addOperand(large.iterator());
+            merger.addOperand(large.iterator());
+            try {
+                merger.merge(MergedBag.Mode.SUM, output);
+                fail();
+            } catch (ArithmeticException e) {
+                assertFalse(Files.exists(output));
+            }
+
+            List<Map.Entry<String, Integer>> repeated = new ArrayList<>(large);
+            repeated.addAll(large);
+            try {
+                merger.addOperand(repeated.iterator());
+                fail();
+            } catch (ArithmeticException e) {
+                assertEquals(0, temp.list().length);
+            }
+        }
+        assertEquals(0, temp.list().length);
+    }
+}
@@ -0,0 +1,64 @@
+package uk.ac.ucl.bag;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import java.util.*;
+import static org.junit.Assert.*;
+
+public class InternerTest {
+
+    private BagFactory<String> bagFactory;
+    private Interner<String> interner;
+
+    @Before
+    public void setUp() {
+        bagFactory = BagFactory.getInstance();
+        interner = new Interner<>();
+        bagFactory.setInterner(interner);
+    }
+
+    @After
+    public void tearDown() {
+        bagFactory.setInterner(null);
+    }
+
+    @Test
+    public void testIntern() {
+        String first = new String("foo");
+        String second = new String("foo");
+        assertSame(first, interner.intern(first));
+        assertSame(first, interner.intern(second));
+        assertSame(first, interner.canonical(new String("foo")));
+        assertEquals("bar", interner.canonical("bar"));
+        assertEquals(1, interner.size());
+    }
+
+    @Test
+    public void testBagsShareCanonicalValues() throws BagException {
+        for (String bagClass : Arrays.asList("ArrayBag", "SortedArrayBag", "MapBag", "LinkedListBag")) {
+            bagFactory.setBagClass(bagClass);
+            Bag<String> bag = bagFactory.getBag(Comparator.naturalOrder());
+            bag.add(new String("foo"));
+            bag.add(new String("foo"));
+            bag.add(new String("bar"));
+            assertEquals(2, bag.countOf(new String("foo")));
+            for (String value : bag) {
+                assertSame(interner.canonical(value), value);
+            }
+        }
+        assertEquals(2, interner.size());
+    }
+
+    @Test
+    public void testDefaultBagsUseInterner() throws BagException {
+        for (String bagClass : Arrays.asList("ArrayBag", "SortedArrayBag", "MapBag", "LinkedListBag")) {
+            bagFactory.setBagClass(bagClass);
+            Bag<String> bag = bagFactory.getBag();
+            bag.add(new String("foo"));
+            assertEquals(1, bag.countOf(new String("foo")));
+            assertSame(interner.canonical("foo"), bag.iterator().next());
+        }
+        assertEquals(1, interner.size());
+    }
+}
@@ -214,4 +214,51 @@ public class LinkedListBagTest {
         assertTrue(bag.toString().equals(Bag.loadFrom("tmp.xml").toString()));
     }
 
+    @Test
+    public void testMoveToFront() throws BagException {
+        LinkedListBag<String> bag = new LinkedListBag<>(Bag.MAX_SIZE, Comparator.<String>naturalOrder(),
+                LinkedListBag.SelfOrganization.MOVE_TO_FRONT);
+        for (int i = 0; i < 20; i++) {
+            bag.add("value" + i);
+        }
+        assertEquals(1, bag.countOf("value3"));
+        bag.add("value7");
+        assertEquals("value7", bag.iterator().next());
+        assertEquals(20, bag.size());
+        assertTrue(bag.toString().startsWith("[value7: 2, value3: 1, value19: 1"));
+    }
+
+    @Test
+    public void testTranspose() throws BagException {
+        LinkedListBag<String> bag = new LinkedListBag<>(Bag.MAX_SIZE, Comparator.<String>naturalOrder(),
+                LinkedListBag.SelfOrganization.TRANSPOSE);
+        for (int i = 0; i < 10; i++) {
+            bag.add("value" + i);
+        }
+        bag.contains("value1");
+        bag.contains("value1");
+        Iterator<String> iterator = bag.iterator();
+        for (int i = 0; i < 6; i++) {
+            iterator.next();
+        }
+        assertEquals("value1", iterator.next());
+        assertEquals("value3", iterator.next());
+    }
+
+    @Test
+    public void testPersistManyNodes() throws IOException, BagException {
+        Bag<String> bag = bagFactory.getInstance().getBag(Comparator.naturalOrder());
+        for (int i = 0; i < 20; i++) {
+            bag.addWithOccurrences("value" + i, i + 1);
+        }
+        for (int i = 0; i < 20; i += 3) {
+            for (int j = 0; j <= i; j++) {
+                bag.remove("value" + i);
+            }
+        }
+        bag.persist("tmp.xml");
+        assertEquals(13, bag.size());
+        assertEquals(bag.toString(), Bag.loadFrom("tmp.xml").toString());
+    }
+
 }
\ No newline at end of file
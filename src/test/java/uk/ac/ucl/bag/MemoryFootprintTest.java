@@ -0,0 +1,150 @@
+package uk.ac.ucl.bag;
+
+import org.junit.Test;
+import java.util.*;
+import static org.junit.Assert.*;
+
+public class MemoryFootprintTest {
+
+    private static final int VALUES = 800;
+
+    private List<Bag<String>> newBags() throws BagException {
+        List<Bag<String>> bags = new ArrayList<>();
+        bags.add(new ArrayBag<>(Bag.MAX_SIZE, Comparator.<String>naturalOrder()));
+        bags.add(new ArrayBag<>(Bag.MAX_SIZE, Comparator.<String>naturalOrder(), true));
+        bags.add(new MapBag<>(Bag.MAX_SIZE, Comparator.<String>naturalOrder()));
+        bags.add(new LinkedListBag<>(Bag.MAX_SIZE, Comparator.<String>naturalOrder()));
+        bags.add(new StringBag());
+        return bags;
+    }
+
+    private void fill(Bag<String> bag) throws BagException {
+        for (int i = 0; i < VALUES; i++) {
+            bag.addWithOccurrences("value" + i, i % 3 + 1);
+        }
+    }
+
+    private void removeMost(Bag<String> bag) {
+        for (int i = 0; i < VALUES; i++) {
+            if (i % 10 != 0) {
+                bag.removeWithOccurrences("value" + i, 3);
+            }
+        }
+    }
+
+    private void assertRemaining(Bag<String> bag) {
+        assertEquals(VALUES / 10, bag.size());
+        for (int i = 0; i < VALUES; i += 10) {
+            assertEquals(i % 3 + 1, bag.countOf("value" + i));
+        }
+        assertEquals(0, bag.countOf("value1"));
+    }
+
+    @Test
+    public void testEstimateGrowsWithContents() throws BagException {
+        for (Bag<String> bag : newBags()) {
+            long empty = bag.estimatedMemoryBytes();
+            assertTrue(empty > 0);
+            fill(bag);
+            assertTrue(bag.getClass().getSimpleName(), bag.estimatedMemoryBytes() > empty + VALUES * 4);
+        }
+    }
+
+    @Test
+    public void testArrayBagEstimate() throws BagException {
+        ArrayBag<String> bag = new ArrayBag<>(Bag.MAX_SIZE, Comparator.<String>naturalOrder());
+        fill(bag);
+        bag.trimToSize();
+        // The object, an array of 800 references and an array of 800 ints.
+        assertEquals(64 + (16 + 800 * 4) + (16 + 800 * 4), bag.estimatedMemoryBytes());
+    }
+
+    @Test
+    public void testTrimToSize() throws BagException {
+        for (Bag<String> bag : newBags()) {
+            fill(bag);
+            removeMost(bag);
+            long before = bag.estimatedMemoryBytes();
+            bag.trimToSize();
+            assertTrue(bag.getClass().getSimpleName(), bag.estimatedMemoryBytes() < before);
+            assertRemaining(bag);
+            long trimmed = bag.estimatedMemoryBytes();
+            bag.trimToSize();
+            assertEquals(trimmed, bag.estimatedMemoryBytes());
+        }
+    }
+
+    @Test
+    public void testTrimmedBagGrowsAgain() throws BagException {
+        for (Bag<String> bag : newBags()) {
+            fill(bag);
+            removeMost(bag);
+            bag.trimToSize();
+            for (int i = 0; i < VALUES; i++) {
+                if (i % 10 != 0) {
+                    bag.addWithOccurrences("value" + i, i % 3 + 1);
+                }
+            }
+            assertEquals(VALUES, bag.size());
+            assertEquals(3, bag.countOf("value5"));
+        }
+    }
+
+    @Test
+    public void testTrimEmptyBag() throws BagException {
+        for (Bag<String> bag : newBags()) {
+            fill(bag);
+            for (int i = 0; i < VALUES; i++) {
+                bag.removeWithOccurrences("value" + i, 3);
+            }
+            bag.trimToSize();
+            assertTrue(bag.isEmpty());
+            bag.add("again");
+            assertEquals(1, bag.countOf("again"));
+        }
+    }
+
+    @Test
+    public void testShrinkOnRemove() throws BagException {
+        for (Bag<String> bag : newBags()) {
+            fill(bag);
+            long full = bag.estimatedMemoryBytes();
+            bag.setShrinkThreshold(0.25);
+            removeMost(bag);
+            assertTrue(bag.getClass().getSimpleName(), bag.estimatedMemoryBytes() < full / 2);
+            assertRemaining(bag);
+        }
+    }
+
+    @Test
+    public void testNoShrinkByDefault() throws BagException {
+        ArrayBag<String> bag = new ArrayBag<>(Bag.MAX_SIZE, Comparator.<String>naturalOrder());
+        fill(bag);
+        long full = bag.estimatedMemoryBytes();
+        removeMost(bag);
+        assertEquals(full, bag.estimatedMemoryBytes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidShrinkThreshold() throws BagException {
+        new MapBag<String>().setShrinkThreshold(1.0);
+    }
+
+    @Test
+    public void testShardedBag() throws BagException {
+        BagFactory<String> bagFactory = BagFactory.getInstance();
+        bagFactory.setBagClass("ArrayBag");
+        ShardedBag<String> bag = new ShardedBag<>(4, Bag.MAX_SIZE, Comparator.<String>naturalOrder());
+        fill(bag);
+        long full = bag.estimatedMemoryBytes();
+        long shards = 0;
+        for (int i = 0; i < bag.getShardCount(); i++) {
+            shards += bag.getShard(i).estimatedMemoryBytes();
+        }
+        assertTrue(full > shards);
+        bag.setShrinkThreshold(0.25);
+        removeMost(bag);
+        assertTrue(bag.estimatedMemoryBytes() < full);
+        assertRemaining(bag);
+    }
+}
@@ -0,0 +1,117 @@
+package uk.ac.ucl.bag;
+
+import org.junit.Before;
+import org.junit.Test;
+import java.io.*;
+import java.util.*;
+import static org.junit.Assert.*;
+
+public class MergedBagTest {
+
+    private Bag<String> bag1;
+    private Bag<String> bag2;
+
+    @Before
+    public void setUp() throws Exception {
+        BagFactory<String> bagFactory = BagFactory.getInstance();
+        bagFactory.setBagClass("ArrayBag");
+        bag1 = bagFactory.getBag(Comparator.naturalOrder());
+        bag2 = new LinkedListBag<>(Bag.MAX_SIZE, Comparator.<String>naturalOrder());
+        bag1.addWithOccurrences("a", 3);
+        bag1.add("b");
+        bag2.addWithOccurrences("b", 2);
+        bag2.add("c");
+    }
+
+    @Test
+    public void testSum() throws Exception {
+        MergedBag<String> merged = MergedBag.sum(Arrays.asList(bag1, bag2));
+        assertEquals(3, merged.size());
+        assertEquals(3, merged.countOf("b"));
+        bag2.addWithOccurrences("a", 2);
+        bag1.add("d");
+        bag1.removeWithOccurrences("b", 5);
+        assertEquals(5, merged.countOf("a"));
+        assertEquals(2, merged.countOf("b"));
+        assertEquals(4, merged.size());
+        bag2.removeWithOccurrences("b", 2);
+        assertFalse(merged.contains("b"));
+        assertEquals(3, merged.size());
+
+        Iterator<String> iterator = merged.allOccurrencesIterator();
+        int count = 0;
+        while (iterator.hasNext()) {
+            iterator.next();
+            count++;
+        }
+        assertEquals(7, count);
+    }
+
+    @Test
+    public void testUnion() throws Exception {
+        MergedBag<String> merged = MergedBag.union(Arrays.asList(bag1, bag2));
+        assertEquals(1, merged.countOf("b"));
+        bag1.remove("b");
+        assertTrue(merged.contains("b"));
+        bag2.removeWithOccurrences("b", 2);
+        assertFalse(merged.contains("b"));
+        assertEquals(2, merged.size());
+    }
+
+    @Test
+    public void testDifference() throws Exception {
+        MergedBag<String> merged = MergedBag.difference(bag2, Collections.singletonList(bag1));
+        assertEquals(1, merged.countOf("b"));
+        assertEquals(1, merged.countOf("c"));
+        assertFalse(merged.contains("a"));
+        assertEquals(2, merged.size());
+        bag1.add("b");
+        assertFalse(merged.contains("b"));
+        bag2.addWithOccurrences("a", 4);
+        assertEquals(1, merged.countOf("a"));
+        assertEquals(2, merged.size());
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        MergedBag<String> merged = MergedBag.sum(Arrays.asList(bag1, bag2));
+        merged.close();
+        bag1.add("z");
+        assertFalse(merged.contains("z"));
+        assertEquals(3, merged.countOf("a"));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testReadOnly() throws Exception {
+        MergedBag.sum(Arrays.asList(bag1, bag2)).add("a");
+    }
+
+    @SuppressWarnings("unchecked")
+    private MergedBag<String> copy(MergedBag<String> merged) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(merged);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (MergedBag<String>) in.readObject();
+        }
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        bag2.addWithOccurrences("a", 5);
+        List<MergedBag<String>> merges = Arrays.asList(MergedBag.sum(Arrays.asList(bag1, bag2)),
+            MergedBag.union(Arrays.asList(bag1, bag2)), MergedBag.difference(bag1, Collections.singletonList(bag2)));
+        for (MergedBag<String> merged : merges) {
+            MergedBag<String> copy = copy(merged);
+            merged.close();
+            assertEquals(merged.getMode(), copy.getMode());
+            assertEquals(merged.size(), copy.size());
+            assertEquals(merged, copy);
+            bag1.add("e");
+            assertFalse(copy.contains("e"));
+            bag1.remove("e");
+        }
+        assertEquals(0, copy(merges.get(2)).size());
+    }
+}
@@ -0,0 +1,104 @@
+package uk.ac.ucl.bag;
+
+import org.junit.Test;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import static org.junit.Assert.*;
+
+public class ReadMostlyBagTest {
+
+    private ReadMostlyBag<String> newBag(String bagClass) throws BagException {
+        ReadMostlyBag<String> bag = BagClasses.newReadMostlyBag(bagClass);
+        for (int i = 0; i < 50; i++) {
+            bag.addWithOccurrences("value" + i, i + 1);
+        }
+        return bag;
+    }
+
+    @Test
+    public void testReadsAndWrites() throws BagException {
+        for (String bagClass : BagClasses.ALL) {
+            ReadMostlyBag<String> bag = newBag(bagClass);
+            assertEquals(bagClass, 50, bag.size());
+            assertEquals(bagClass, 6, bag.countOf("value5"));
+            assertTrue(bagClass, bag.contains("value49"));
+            bag.removeWithOccurrences("value5", 6);
+            bag.applyBatch(new BagBatch<String>().add("extra", 2).remove("value0"));
+            assertFalse(bagClass, bag.contains("value5"));
+            assertEquals(bagClass, 2, bag.countOf("extra"));
+            assertEquals(bagClass, 49, bag.size());
+            int total = 0;
+            for (Iterator<String> iterator = bag.allOccurrencesIterator(); iterator.hasNext(); iterator.next()) {
+                total++;
+            }
+            assertEquals(bagClass, 50 * 51 / 2 - 6 - 1 + 2, total);
+        }
+    }
+
+    @Test
+    public void testIteratorIsSnapshot() throws BagException {
+        ReadMostlyBag<String> bag = newBag("ArrayBag");
+        Iterator<String> iterator = bag.iterator();
+        bag.add("extra");
+        int values = 0;
+        while (iterator.hasNext()) {
+            assertNotEquals("extra", iterator.next());
+            values++;
+        }
+        assertEquals(50, values);
+    }
+
+    /*
+      A writer keeps adding and removing one value, which moves other values around in the underlying storage,
+      while readers check that the values it does not touch always have the right count.
+     */
+    @Test
+    public void testConcurrentReadsSeeConsistentCounts() throws Exception {
+        for (String bagClass : BagClasses.ALL) {
+            ReadMostlyBag<String> bag = newBag(bagClass);
+            AtomicBoolean running = new AtomicBoolean(true);
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            try {
+                Future<?> writer = executor.submit(() -> {
+                    for (int i = 0; i < 20000; i++) {
+                        bag.add("churn" + (i % 7));
+                        bag.removeWithOccurrences("churn" + (i % 7), 2);
+                    }
+                    running.set(false);
+                    return null;
+                });
+                List<Future<?>> readers = new ArrayList<>();
+                for (int r = 0; r < 3; r++) {
+                    readers.add(executor.submit(() -> {
+                        Random random = new Random();
+                        while (running.get()) {
+                            int i = random.nextInt(50);
+                            assertEquals(i + 1, bag.countOf("value" + i));
+                            assertTrue(bag.contains("value" + i));
+                            int size = bag.size();
+                            assertTrue(size >= 50 && size <= 51);
+                        }
+                        return null;
+                    }));
+                }
+                writer.get(30, TimeUnit.SECONDS);
+                for (Future<?> reader : readers) {
+                    reader.get(30, TimeUnit.SECONDS);
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+            assertEquals(bagClass, 50, bag.size());
+        }
+    }
+
+    @Test
+    public void testPublishesChangesOfUnderlyingBag() throws BagException {
+        ReadMostlyBag<String> bag = newBag("MapBag");
+        List<String> changes = new ArrayList<>();
+        bag.changes().addListener((value, oldCount, newCount) -> changes.add(value + " " + oldCount + "->" + newCount));
+        bag.add("value0");
+        assertEquals(Collections.singletonList("value0 1->2"), changes);
+    }
+}
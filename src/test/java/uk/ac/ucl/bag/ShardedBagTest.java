@@ -0,0 +1,100 @@
+package uk.ac.ucl.bag;
+
+import org.junit.Before;
+import org.junit.Test;
+import java.io.IOException;
+import java.util.*;
+import static org.junit.Assert.*;
+
+public class ShardedBagTest {
+
+    private ShardedBag<String> bag;
+
+    @Before
+    public void setUp() throws Exception {
+        BagFactory<String> bagFactory = BagFactory.getInstance();
+        bagFactory.setBagClass("MapBag");
+        bag = new ShardedBag<>(4, Bag.MAX_SIZE, Comparator.<String>naturalOrder());
+        for (int i = 0; i < 100; i++) {
+            bag.addWithOccurrences("value" + i, i % 3 + 1);
+        }
+    }
+
+    @Test
+    public void testCountOf() {
+        assertEquals(100, bag.size());
+        assertEquals(3, bag.countOf("value5"));
+        assertEquals(0, bag.countOf("missing"));
+    }
+
+    @Test
+    public void testIterators() {
+        Set<String> unique = new HashSet<>();
+        for (String value : bag) {
+            unique.add(value);
+        }
+        int occurrences = 0;
+        Iterator<String> iterator = bag.allOccurrencesIterator();
+        while (iterator.hasNext()) {
+            iterator.next();
+            occurrences++;
+        }
+        assertEquals(100, unique.size());
+        assertEquals(199, occurrences);
+    }
+
+    @Test
+    public void testConcurrentAdds() throws InterruptedException {
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    try {
+                        bag.add("value" + (i % 10));
+                    } catch (BagException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) thread.join();
+        assertEquals(801, bag.countOf("value0"));
+    }
+
+    @Test
+    public void testMerge() throws BagException {
+        ShardedBag<String> other = new ShardedBag<>(4, Bag.MAX_SIZE, Comparator.<String>naturalOrder());
+        other.addWithOccurrences("value1", 5);
+        other.add("extra");
+        Bag<String> merged = bag.createMergedAllOccurrences(other);
+        assertEquals(101, merged.size());
+        assertEquals(7, merged.countOf("value1"));
+        assertEquals(1, bag.createMergedAllUnique(other).countOf("value1"));
+    }
+
+    @Test
+    public void testPersist() throws IOException {
+        bag.persist("tmp.xml");
+        ShardedBag<String> loaded = ShardedBag.loadFrom("tmp.xml", 4, Comparator.<String>naturalOrder());
+        assertEquals(100, loaded.size());
+        assertEquals(2, loaded.countOf("value4"));
+        for (int i = 0; i < 4; i++) {
+            new java.io.File(ShardedBag.shardPath("tmp.xml", i)).delete();
+        }
+    }
+
+    @Test
+    public void testExistingShards() throws BagException {
+        List<AbstractBag<String>> shards = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            shards.add(new LinkedListBag<>(Bag.MAX_SIZE, Comparator.<String>naturalOrder()));
+        }
+        ShardedBag<String> sharded = new ShardedBag<>(shards, Comparator.<String>naturalOrder());
+        sharded.applyBatch(new BagBatch<String>().add("foo", 2).add("bar"));
+        sharded.applyBatch(new BagBatch<String>().remove("foo"));
+        assertEquals(1, sharded.countOf("foo"));
+        assertEquals(2, sharded.size());
+        assertEquals(2, shards.get(0).size() + shards.get(1).size());
+    }
+}
@@ -0,0 +1,117 @@
+package uk.ac.ucl.bag;
+
+import org.junit.Before;
+import org.junit.Test;
+import java.io.IOException;
+import java.util.*;
+import static org.junit.Assert.*;
+
+public class StringBagTest {
+
+    private Bag<String> bag;
+    private BagFactory<String> bagFactory;
+
+    @Before
+    public void setUp() throws Exception {
+        bagFactory = BagFactory.getInstance();
+        bagFactory.setBagClass("StringBag");
+        bag = bagFactory.getBag(4, Comparator.naturalOrder());
+        bag.add("tea");
+        bag.addWithOccurrences("team", 2);
+        bag.add("ten");
+        bag.add("café");
+    }
+
+    @Test
+    public void testToString() {
+        assertEquals("[café: 1, tea: 1, team: 2, ten: 1]", bag.toString());
+    }
+
+    @Test (expected = BagException.class)
+    public void testAddToFullBag() throws BagException {
+        bag.add("to");
+    }
+
+    @Test
+    public void testCountOf() {
+        StringBuilder builder = new StringBuilder("tea");
+        builder.append('m');
+        assertEquals(2, ((StringBag) bag).countOf(builder));
+        assertEquals(1, bag.countOf("café"));
+        assertEquals(0, bag.countOf("te"));
+        assertFalse(bag.contains("caf"));
+    }
+
+    @Test
+    public void testPrefix() {
+        StringBag stringBag = (StringBag) bag;
+        assertEquals(3, stringBag.countWithPrefix("tea"));
+        assertEquals(4, stringBag.countWithPrefix("t"));
+        assertEquals(5, stringBag.countWithPrefix(""));
+        assertEquals(0, stringBag.countWithPrefix("x"));
+
+        List<String> values = new ArrayList<>();
+        stringBag.iteratePrefix("te").forEachRemaining(values::add);
+        assertEquals(Arrays.asList("tea", "team", "ten"), values);
+    }
+
+    @Test
+    public void testRemove() throws BagException {
+        bag.remove("tea");
+        bag.removeWithOccurrences("team", 5);
+        assertEquals("[café: 1, ten: 1]", bag.toString());
+        assertEquals(1, ((StringBag) bag).countWithPrefix("te"));
+        bag.add("tee");
+        bag.add("😀");
+        assertEquals("[café: 1, tee: 1, ten: 1, 😀: 1]", bag.toString());
+    }
+
+    @Test
+    public void testAllOccurrencesIterator() {
+        List<String> values = new ArrayList<>();
+        bag.allOccurrencesIterator().forEachRemaining(values::add);
+        assertEquals(Arrays.asList("café", "tea", "team", "team", "ten"), values);
+    }
+
+    @Test
+    public void testEmptyString() throws BagException {
+        bag.remove("café");
+        bag.add("");
+        assertEquals(1, bag.countOf(""));
+        assertEquals("[: 1, tea: 1, team: 2, ten: 1]", bag.toString());
+    }
+
+    @Test
+    public void testPersist() throws IOException {
+        bag.persist("tmp.xml");
+        assertEquals(bag.toString(), Bag.loadFrom("tmp.xml").toString());
+    }
+
+    @Test
+    public void testUnpairedSurrogate() throws BagException {
+        StringBag stringBag = new StringBag();
+        stringBag.add("a\uD800");
+        stringBag.add("a?");
+        assertEquals(1, stringBag.size());
+        String value = stringBag.iterator().next();
+        assertEquals("a?", value);
+        assertEquals(2, stringBag.countOf(value));
+        assertEquals(2, stringBag.countOf("a\uDC00"));
+        assertEquals(2, stringBag.countWithPrefix("a"));
+        stringBag.add("\uD83D\uDE00");
+        assertTrue(stringBag.contains("\uD83D\uDE00"));
+        assertFalse(stringBag.contains("?"));
+    }
+
+    @Test
+    public void testTotalsBeyondIntRange() throws BagException {
+        StringBag stringBag = new StringBag();
+        stringBag.addWithOccurrences("tea", Integer.MAX_VALUE);
+        stringBag.addWithOccurrences("ten", Integer.MAX_VALUE);
+        assertEquals(2L * Integer.MAX_VALUE, stringBag.countWithPrefix(""));
+        assertEquals(2L * Integer.MAX_VALUE, stringBag.countWithPrefix("te"));
+        stringBag.removeWithOccurrences("tea", Integer.MAX_VALUE);
+        assertEquals(Integer.MAX_VALUE, stringBag.countWithPrefix("t"));
+        assertFalse(stringBag.contains("tea"));
+    }
+}
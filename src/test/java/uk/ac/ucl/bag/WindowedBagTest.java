@@ -0,0 +1,70 @@
+package uk.ac.ucl.bag;
+
+import org.junit.Before;
+import org.junit.Test;
+import java.io.IOException;
+import java.util.*;
+import static org.junit.Assert.*;
+
+public class WindowedBagTest {
+
+    private long time;
+    private WindowedBag<String> bag;
+
+    @Before
+    public void setUp() throws Exception {
+        time = 0;
+        bag = new WindowedBag<>(Bag.MAX_SIZE, Comparator.<String>naturalOrder(), 5, 1000, () -> time);
+        bag.addWithOccurrences("foo", 2);
+        time = 1500;
+        bag.add("foo");
+        bag.add("bar");
+        time = 2500;
+        bag.addWithOccurrences("mar", 4);
+    }
+
+    @Test
+    public void testCountOverWindow() {
+        assertEquals(3, bag.countOf("foo"));
+        assertEquals(1, bag.countOf("bar"));
+        assertEquals(3, bag.size());
+    }
+
+    @Test
+    public void testExpiry() {
+        time = 5500;
+        assertEquals(1, bag.countOf("foo"));
+        time = 6500;
+        assertFalse(bag.contains("foo") || bag.contains("bar"));
+        assertEquals("[mar: 4]", bag.toString());
+        time = 60000;
+        assertTrue(bag.isEmpty());
+    }
+
+    @Test
+    public void testRemoveTakesNewestFirst() {
+        bag.remove("foo");
+        assertEquals(2, bag.countOf("foo"));
+        time = 5500;
+        assertEquals(0, bag.countOf("foo"));
+    }
+
+    @Test
+    public void testTopValues() {
+        assertEquals(Arrays.asList("mar", "foo", "bar"), bag.topValues(5));
+        time = 5500;
+        assertEquals(Arrays.asList("mar"), bag.topValues(1));
+    }
+
+    @Test
+    public void testDecayedCountOf() {
+        assertEquals(4.0, bag.decayedCountOf("mar", 1000), 1e-9);
+        assertEquals(0.5 + 2 * 0.25, bag.decayedCountOf("foo", 1000), 1e-9);
+    }
+
+    @Test
+    public void testPersist() throws IOException {
+        bag.persist("tmp.xml");
+        assertEquals(bag.getCurrentInterval(), ((WindowedBag) Bag.loadFrom("tmp.xml")).getCurrentInterval());
+    }
+}